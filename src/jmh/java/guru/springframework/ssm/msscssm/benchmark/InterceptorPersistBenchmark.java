@@ -0,0 +1,66 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import guru.springframework.ssm.msscssm.services.PaymentServiceImpl;
+import guru.springframework.ssm.msscssm.services.PaymentStateMachinePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The interceptor writing a state change to H2. No payment is attached to the machine, so each event is a single
+ * UPDATE keyed by the payment id header.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InterceptorPersistBenchmark {
+
+    PaymentStateMachinePool stateMachinePool;
+    StateMachine<PaymentState, PaymentEvent> sm;
+    Message<PaymentEvent> preAuthApproved;
+
+    @Setup
+    public void setUp(PaymentApplicationState application) {
+        Payment payment = application.getBean(PaymentService.class)
+                .newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        preAuthApproved = MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_APPROVED)
+                .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, payment.getId())
+                .build();
+
+        stateMachinePool = application.getBean(PaymentStateMachinePool.class);
+        sm = stateMachinePool.borrow(PaymentState.NEW);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stateMachinePool.release(sm);
+    }
+
+    @Benchmark
+    public PaymentState persist() {
+        stateMachinePool.reset(sm, PaymentState.NEW);
+        sm.sendEvent(preAuthApproved);
+        return sm.getState().getId();
+    }
+}
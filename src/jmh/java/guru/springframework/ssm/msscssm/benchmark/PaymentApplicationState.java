@@ -0,0 +1,50 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.MsscSsmApplication;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * The application context shared by a benchmark run, started once per fork with the state machine engine under test.
+ */
+@State(Scope.Benchmark)
+public class PaymentApplicationState {
+
+    @Param({"SPRING", "TABLE"})
+    PaymentStateMachineProperties.Engine engine;
+
+    ConfigurableApplicationContext context;
+
+    @Setup
+    public void start() {
+        // Anything the application prints would interleave with the benchmark output
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        context = new SpringApplicationBuilder(MsscSsmApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("payment.statemachine.engine=" + engine,
+                        "spring.jpa.show-sql=false",
+                        "spring.main.banner-mode=off",
+                        "logging.level.root=WARN")
+                .run();
+    }
+
+    @TearDown
+    public void stop() {
+        context.close();
+    }
+
+    <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+}
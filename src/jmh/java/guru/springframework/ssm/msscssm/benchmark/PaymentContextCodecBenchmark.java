@@ -0,0 +1,125 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentContextCodec;
+import guru.springframework.ssm.msscssm.services.PaymentServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.kryo.KryoStateMachineSerialisationService;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a typical payment context with PaymentContextCodec, Spring Statemachine's Kryo
+ * serialisation service and plain Java serialization. The encoded sizes are printed once at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PaymentContextCodecBenchmark {
+
+    PaymentContextCodec codec;
+    KryoStateMachineSerialisationService<PaymentState, PaymentEvent> kryo;
+    StateMachineContext<PaymentState, PaymentEvent> context;
+    byte[] codecBytes;
+    byte[] kryoBytes;
+    byte[] javaBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(PaymentServiceImpl.PAYMENT_ID_HEADER, 123_456L);
+        Map<Object, Object> variables = new HashMap<>();
+        variables.put("amount", new BigDecimal("12.99"));
+        variables.put("attempts", 1);
+        variables.put("previous", PaymentState.NEW);
+        context = new DefaultStateMachineContext<>(PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED, headers,
+                new DefaultExtendedState(variables));
+
+        codec = new PaymentContextCodec();
+        kryo = new KryoStateMachineSerialisationService<>();
+        codecBytes = codec.encode(context);
+        kryoBytes = kryo.serialiseStateMachineContext(context);
+        javaBytes = javaEncode(context);
+        System.out.printf("%nEncoded context: codec %d bytes, kryo %d bytes, java %d bytes%n",
+                codecBytes.length, kryoBytes.length, javaBytes.length);
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return codec.encode(context);
+    }
+
+    @Benchmark
+    public StateMachineContext<PaymentState, PaymentEvent> codecDecode() {
+        return codec.decode(codecBytes);
+    }
+
+    @Benchmark
+    public byte[] kryoEncode() throws Exception {
+        return kryo.serialiseStateMachineContext(context);
+    }
+
+    @Benchmark
+    public StateMachineContext<PaymentState, PaymentEvent> kryoDecode() throws Exception {
+        return kryo.deserialiseStateMachineContext(kryoBytes);
+    }
+
+    @Benchmark
+    public byte[] javaEncode() throws IOException {
+        return javaEncode(context);
+    }
+
+    @Benchmark
+    public StateMachineContext<PaymentState, PaymentEvent> javaDecode() throws Exception {
+        return javaDecode(javaBytes);
+    }
+
+    // DefaultStateMachineContext is not Serializable, so its parts are written in turn
+    static byte[] javaEncode(StateMachineContext<PaymentState, PaymentEvent> context) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(context.getState());
+            out.writeObject(context.getEvent());
+            out.writeObject(new HashMap<>(context.getEventHeaders()));
+            out.writeObject(new HashMap<>(context.getExtendedState().getVariables()));
+            out.writeObject(context.getId());
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    static StateMachineContext<PaymentState, PaymentEvent> javaDecode(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            PaymentState state = (PaymentState) in.readObject();
+            PaymentEvent event = (PaymentEvent) in.readObject();
+            Map<String, Object> headers = (Map<String, Object>) in.readObject();
+            Map<Object, Object> variables = (Map<Object, Object>) in.readObject();
+            String id = (String) in.readObject();
+            return new DefaultStateMachineContext<>(state, event, headers, new DefaultExtendedState(variables), null, id);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.config.StateMachineConfig;
+import guru.springframework.ssm.msscssm.config.guards.PaymentIdGuard;
+import guru.springframework.ssm.msscssm.config.table.PaymentTransitionModel;
+import guru.springframework.ssm.msscssm.config.table.TableStateMachineFactory;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentEventEnvelope;
+import guru.springframework.ssm.msscssm.services.PaymentServiceImpl;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.statemachine.transition.Transition;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the message a payment event travels in costs per event: PRE_AUTHORIZE through a machine with the real payment
+ * id guard, actions that read the payment id as the real ones do and an interceptor that reads it as
+ * PaymentStateChangeInterceptor does, but none of their gateway calls or database writes. MESSAGE_BUILDER is the
+ * message with a payment_id header that was sent before PaymentEventEnvelope; compare gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PaymentEventMessageBenchmark {
+
+    private static final Long PAYMENT_ID = 123_456L;
+
+    public enum MessageType {
+        MESSAGE_BUILDER,
+        ENVELOPE
+    }
+
+    @Param({"SPRING", "TABLE"})
+    PaymentStateMachineProperties.Engine engine;
+
+    @Param({"MESSAGE_BUILDER", "ENVELOPE"})
+    MessageType messageType;
+
+    StateMachine<PaymentState, PaymentEvent> sm;
+    Long seenByAction;
+    Long seenByInterceptor;
+
+    @Setup
+    public void setUp() throws Exception {
+        // As logging.level.root=WARN does for the benchmarks that start the application
+        LoggingSystem.get(getClass().getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.WARN);
+        PaymentStateMachineMetrics metrics = new PaymentStateMachineMetrics(new SimpleMeterRegistry());
+        Action<PaymentState, PaymentEvent> action = context -> seenByAction = PaymentEventEnvelope.paymentId(context);
+
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        beans.addBean("paymentIdGuard", new PaymentIdGuard());
+        PaymentTransitionModel.load().getTransitions()
+                .forEach(transition -> transition.getActions().forEach(name -> beans.addBean(name, action)));
+
+        sm = engine == PaymentStateMachineProperties.Engine.TABLE
+                ? tableMachine(beans, metrics)
+                : springMachine(beans, metrics, action);
+        sm.getStateMachineAccessor().doWithAllRegions(sma -> sma.addStateMachineInterceptor(new StateMachineInterceptorAdapter<>() {
+            @Override
+            public void preStateChange(org.springframework.statemachine.state.State<PaymentState, PaymentEvent> state,
+                                       Message<PaymentEvent> message, Transition<PaymentState, PaymentEvent> transition,
+                                       StateMachine<PaymentState, PaymentEvent> stateMachine) {
+                seenByInterceptor = PaymentEventEnvelope.paymentId(message);
+            }
+        }));
+        sm.start();
+    }
+
+    /**
+     * Building the message alone.
+     */
+    @Benchmark
+    public Message<PaymentEvent> message() {
+        return message(PaymentEvent.PRE_AUTHORIZE);
+    }
+
+    /**
+     * Building the message and sending it: NEW stays NEW, after the guard, the action and the interceptor have each
+     * read the payment id.
+     */
+    @Benchmark
+    public Long event() {
+        sm.sendEvent(message(PaymentEvent.PRE_AUTHORIZE));
+        return seenByInterceptor + seenByAction;
+    }
+
+    private Message<PaymentEvent> message(PaymentEvent event) {
+        return messageType == MessageType.ENVELOPE
+                ? new PaymentEventEnvelope(PAYMENT_ID, event)
+                : MessageBuilder.withPayload(event).setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, PAYMENT_ID).build();
+    }
+
+    private static StateMachine<PaymentState, PaymentEvent> tableMachine(StaticListableBeanFactory beans,
+                                                                        PaymentStateMachineMetrics metrics) {
+        PaymentStateMachineProperties properties = new PaymentStateMachineProperties();
+        properties.setModel(PaymentStateMachineProperties.Model.PRECOMPILED);
+        return new TableStateMachineFactory(null, listeners(beans), beans, metrics,
+                properties).getStateMachine();
+    }
+
+    private static StateMachine<PaymentState, PaymentEvent> springMachine(StaticListableBeanFactory beans,
+                                                                         PaymentStateMachineMetrics metrics,
+                                                                         Action<PaymentState, PaymentEvent> action) throws Exception {
+        StateMachineConfig config = new StateMachineConfig(beans.getBean("paymentIdGuard", PaymentIdGuard.class),
+                action, action, action, action, action, action, metrics, listeners(beans));
+
+        StateMachineBuilder.Builder<PaymentState, PaymentEvent> builder = StateMachineBuilder.builder();
+        config.configure(builder.configureStates());
+        config.configure(builder.configureTransitions());
+        return builder.build();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ObjectProvider<StateMachineListener<PaymentState, PaymentEvent>> listeners(StaticListableBeanFactory beans) {
+        return (ObjectProvider) beans.getBeanProvider(StateMachineListener.class);
+    }
+}
@@ -0,0 +1,68 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import guru.springframework.ssm.msscssm.services.PaymentStateMachinePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateMachine;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A payment going NEW -> PRE_AUTH -> AUTH. The approval events are sent directly, so the gateway's latency and
+ * threads stay out of the numbers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaymentFlowBenchmark {
+
+    PaymentService paymentService;
+    PaymentStateMachinePool stateMachinePool;
+
+    @Setup
+    public void setUp(PaymentApplicationState application) {
+        paymentService = application.getBean(PaymentService.class);
+        stateMachinePool = application.getBean(PaymentStateMachinePool.class);
+    }
+
+    /**
+     * The machine alone: no payment is attached, so nothing is loaded or persisted.
+     */
+    @Benchmark
+    public PaymentState machine() {
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachinePool.borrow(PaymentState.NEW);
+        try {
+            sm.sendEvent(PaymentEvent.PRE_AUTH_APPROVED);
+            sm.sendEvent(PaymentEvent.AUTH_APPROVED);
+            return sm.getState().getId();
+        } finally {
+            stateMachinePool.release(sm);
+        }
+    }
+
+    /**
+     * Through the service: insert the payment, then one transaction per event.
+     */
+    @Benchmark
+    public PaymentState service() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+        return paymentService.sendEvent(payment.getId(), PaymentEvent.AUTH_APPROVED);
+    }
+}
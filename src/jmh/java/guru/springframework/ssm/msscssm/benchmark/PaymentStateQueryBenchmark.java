@@ -0,0 +1,126 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.MsscSsmApplication;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentStateCount;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import guru.springframework.ssm.msscssm.services.PaymentReports;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting and exporting payments by state in a large table, with and without the state index. The table lives in
+ * an H2 file under target so it need not fit in the heap; it is filled once per fork: 2% AUTH_ERROR, 3%
+ * PRE_AUTH_ERROR, 5% NEW, 5% PRE_AUTH and the rest AUTH, one created a second apart going back from now.
+ * <p>
+ * Filling 10M rows takes a few minutes; pass -p rows=1000000 for a quicker run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class PaymentStateQueryBenchmark {
+
+    private static final String FILL_SQL = "insert into payment (id, amount, state, created, state_entered_at, version) "
+            + "select x, 12.99, "
+            + "case when mod(x, 100) < 2 then 'AUTH_ERROR' when mod(x, 100) < 5 then 'PRE_AUTH_ERROR' "
+            + "when mod(x, 100) < 10 then 'NEW' when mod(x, 100) < 15 then 'PRE_AUTH' else 'AUTH' end, "
+            + "dateadd('SECOND', -x, ?), dateadd('SECOND', -x, ?), 0 from system_range(?, ?)";
+
+    @Param("10000000")
+    int rows;
+
+    @Param({"true", "false"})
+    boolean indexed;
+
+    ConfigurableApplicationContext context;
+    PaymentRepository paymentRepository;
+    PaymentReports reports;
+    Instant lastHour;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        context = new SpringApplicationBuilder(MsscSsmApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.datasource.url=jdbc:h2:file:./target/payment-state-query-benchmark;CACHE_SIZE=1048576",
+                        "spring.jpa.hibernate.ddl-auto=create",
+                        "spring.jpa.show-sql=false",
+                        "spring.main.banner-mode=off",
+                        "logging.level.root=WARN",
+                        "payment.statemachine.timeout.enabled=false",
+                        "payment.statemachine.history.snapshot-interval=1h")
+                .run();
+        paymentRepository = context.getBean(PaymentRepository.class);
+        reports = context.getBean(PaymentReports.class);
+
+        JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+        if (!indexed) {
+            jdbcTemplate.execute("drop index payment_state_created_idx");
+        }
+        Timestamp now = Timestamp.from(Instant.now());
+        for (int from = 1; from <= rows; from += 1_000_000) {
+            jdbcTemplate.update(FILL_SQL, now, now, from, Math.min(rows, from + 999_999));
+        }
+        lastHour = Instant.now().minus(Duration.ofHours(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public long countAuthErrors() {
+        return paymentRepository.countByState(PaymentState.AUTH_ERROR);
+    }
+
+    @Benchmark
+    public long countAuthErrorsInLastHour() {
+        return paymentRepository.countByStateAndCreatedGreaterThanEqual(PaymentState.AUTH_ERROR, lastHour);
+    }
+
+    /**
+     * A pass over the whole table with or without the index; H2 reads each row an index entry points to, so this
+     * one is no faster indexed. At 10M rows exclude it with -e countAllStates unless the run may take hours.
+     */
+    @Benchmark
+    public List<PaymentStateCount> countAllStates() {
+        return paymentRepository.countGroupedByState();
+    }
+
+    /**
+     * Every AUTH_ERROR payment, 2% of the table.
+     */
+    @Benchmark
+    public long exportAuthErrors(Blackhole blackhole) {
+        return reports.export(PaymentState.AUTH_ERROR, blackhole::consume);
+    }
+}
@@ -0,0 +1,150 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.MsscSsmApplication;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentStateStore;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import guru.springframework.ssm.msscssm.services.PaymentIngestionService;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The JPA and JDBC payment state stores on H2. store is the store alone: a transaction that loads a payment, moves it
+ * and writes it back. lifecycle and batch go through the service on the table engine, with single events each in
+ * their own transaction and one event to a batch of payments, reported per payment.
+ * <p>
+ * The warmup is long because the persistence code takes a while to compile, the more so on few cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 20, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaymentStateStoreBenchmark {
+
+    private static final int BATCH = 500;
+    private static final BigDecimal AMOUNT = new BigDecimal("12.99");
+
+    @Param({"JPA", "JDBC"})
+    PaymentStateMachineProperties.Store store;
+
+    ConfigurableApplicationContext context;
+    PaymentService paymentService;
+    PaymentStateStore paymentStateStore;
+    TransactionTemplate transactionTemplate;
+    JdbcTemplate jdbcTemplate;
+    Long paymentId;
+
+    @Setup
+    public void start() {
+        // Anything the application prints would interleave with the benchmark output
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        context = new SpringApplicationBuilder(MsscSsmApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("payment.statemachine.store=" + store,
+                        "payment.statemachine.engine=table",
+                        "payment.statemachine.log-state-changes=false",
+                        "spring.jpa.show-sql=false",
+                        "spring.main.banner-mode=off",
+                        "logging.level.root=WARN")
+                .run();
+        paymentService = context.getBean(PaymentService.class);
+        paymentStateStore = context.getBean(PaymentStateStore.class);
+        transactionTemplate = context.getBean(TransactionTemplate.class);
+        jdbcTemplate = context.getBean(JdbcTemplate.class);
+        paymentId = paymentService.newPayment(Payment.builder().amount(AMOUNT).build()).getId();
+    }
+
+    @TearDown
+    public void stop() {
+        context.close();
+    }
+
+    /**
+     * One payment moved back and forth between NEW and PRE_AUTH, as the interceptor would move it.
+     */
+    @Benchmark
+    public PaymentState store() {
+        return transactionTemplate.execute(status -> {
+            Payment payment = paymentStateStore.load(paymentId);
+            PaymentState from = payment.getState();
+            payment.setState(from == PaymentState.NEW ? PaymentState.PRE_AUTH : PaymentState.NEW);
+            payment.setStateEnteredAt(Instant.now());
+            paymentStateStore.writeState(payment, from);
+            return payment.getState();
+        });
+    }
+
+    /**
+     * Insert a payment, then one transaction per event: a load and a state write each.
+     */
+    @Benchmark
+    public PaymentState lifecycle() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(AMOUNT).build());
+        paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+        return paymentService.sendEvent(payment.getId(), PaymentEvent.AUTH_APPROVED);
+    }
+
+    /**
+     * One event to the whole batch: one load and one batched write.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<PaymentEventResult> batch(Batch batch) {
+        return paymentService.sendEvents(PaymentEvent.PRE_AUTH_APPROVED, batch.ids);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Batch {
+
+        JdbcTemplate jdbcTemplate;
+        List<Long> ids;
+
+        @Setup
+        public void seed(PaymentStateStoreBenchmark benchmark) {
+            jdbcTemplate = benchmark.jdbcTemplate;
+            long before = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from payment", Long.class);
+            benchmark.context.getBean(PaymentIngestionService.class).ingest(Stream.generate(() -> Payment.builder()
+                    .amount(AMOUNT).build()).limit(BATCH), progress -> {});
+            ids = jdbcTemplate.queryForList("select id from payment where id > ? order by id", Long.class, before);
+        }
+
+        // Back to NEW, so every payment in the batch accepts the event and is written
+        @Setup(Level.Invocation)
+        public void reset() {
+            jdbcTemplate.update("update payment set state = 'NEW' where id between ? and ?", ids.get(0),
+                    ids.get(ids.size() - 1));
+        }
+    }
+}
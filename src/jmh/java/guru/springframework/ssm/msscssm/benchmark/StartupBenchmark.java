@@ -0,0 +1,106 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.MsscSsmApplication;
+import guru.springframework.ssm.msscssm.web.PaymentController;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Time from starting the application in a fresh JVM to the response to its first payment event over HTTP: a payment
+ * is created and PRE_AUTH_APPROVED sent to it, as the first traffic to a newly scaled out instance would. Each fork
+ * measures one cold start, so run enough forks for the spread to settle.
+ * <p>
+ * DEFAULT is the application as configured in application.properties, FAST_START adds the fast-start profile.
+ * Devtools' LiveReload server is switched off for both, it is not in the packaged application. JVM options go
+ * through JMH, e.g. -jvmArgsAppend -XX:TieredStopAtLevel=1.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    private static final Pattern PAYMENT_ID = Pattern.compile("\"id\"\\s*:\\s*(\\d+)");
+
+    public enum Startup {
+        DEFAULT,
+        FAST_START
+    }
+
+    @Param({"DEFAULT", "FAST_START"})
+    Startup startup;
+
+    HttpClient client;
+    ConfigurableApplicationContext context;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        client = HttpClient.newHttpClient();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String timeToFirstEvent() throws IOException, InterruptedException {
+        SpringApplicationBuilder application = new SpringApplicationBuilder(MsscSsmApplication.class)
+                .properties("server.port=0",
+                        "spring.jpa.show-sql=false",
+                        "spring.main.banner-mode=off",
+                        "spring.devtools.livereload.enabled=false",
+                        "logging.level.root=WARN");
+        if (startup == Startup.FAST_START) {
+            application.profiles("fast-start");
+        }
+        context = application.run();
+
+        String payments = "http://localhost:" + context.getEnvironment().getProperty("local.server.port")
+                + PaymentController.BASE_PATH;
+        String created = post(payments, "{\"amount\": 12.99}");
+        Matcher id = PAYMENT_ID.matcher(created);
+        if (!id.find()) {
+            throw new IllegalStateException("No payment id in " + created);
+        }
+        return post(payments + "/" + id.group(1) + "/events/PRE_AUTH_APPROVED", "");
+    }
+
+    private String post(String uri, String json) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() >= 300) {
+            throw new IllegalStateException(uri + " answered " + response.statusCode() + ": " + response.body());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,49 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.config.table.TableStateMachineFactory;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.config.StateMachineFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building a new machine, what every event paid before machines were pooled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StateMachineFactoryBenchmark {
+
+    StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
+    TableStateMachineFactory tableStateMachineFactory;
+    boolean table;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp(PaymentApplicationState application) {
+        stateMachineFactory = application.getBean(StateMachineFactory.class);
+        tableStateMachineFactory = application.getBean(TableStateMachineFactory.class);
+        table = application.engine == PaymentStateMachineProperties.Engine.TABLE;
+    }
+
+    @Benchmark
+    public StateMachine<PaymentState, PaymentEvent> getStateMachine() {
+        return table ? tableStateMachineFactory.getStateMachine() : stateMachineFactory.getStateMachine();
+    }
+}
@@ -0,0 +1,54 @@
+package guru.springframework.ssm.msscssm.benchmark;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentStateMachinePool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateMachine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stop/reset/start cycle that moves a pooled machine to a payment's stored state before each event.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StateMachineResetBenchmark {
+
+    PaymentStateMachinePool stateMachinePool;
+    StateMachine<PaymentState, PaymentEvent> sm;
+    boolean preAuth;
+
+    @Setup
+    public void setUp(PaymentApplicationState application) {
+        stateMachinePool = application.getBean(PaymentStateMachinePool.class);
+        sm = stateMachinePool.borrow(PaymentState.NEW);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stateMachinePool.release(sm);
+    }
+
+    @Benchmark
+    public PaymentState reset() {
+        // Alternate so every reset actually changes state
+        preAuth = !preAuth;
+        stateMachinePool.reset(sm, preAuth ? PaymentState.PRE_AUTH : PaymentState.NEW);
+        return sm.getState().getId();
+    }
+}
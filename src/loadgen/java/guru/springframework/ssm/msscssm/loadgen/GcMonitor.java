@@ -0,0 +1,131 @@
+package guru.springframework.ssm.msscssm.loadgen;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.HdrHistogram.Histogram;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listens to the JVM's garbage collection notifications and records how long each collection took. With G1,
+ * Parallel and Serial every collection reported is a stop-the-world pause; the concurrent collectors report whole
+ * cycles instead.
+ * <p>
+ * For a soak it can also sample the live heap: the heap still in use right after a full collection, forced for the
+ * purpose. Forced collections are left out of the pauses.
+ */
+class GcMonitor implements NotificationListener, AutoCloseable {
+
+    private static final String FORCED = "System.gc()";
+
+    private final Histogram pausesMillis = new Histogram(3);
+    private final List<long[]> liveHeap = new ArrayList<>();
+    private ScheduledExecutorService sampler;
+
+    GcMonitor() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+
+        GarbageCollectionNotificationInfo gc = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        GcInfo info = gc.getGcInfo();
+        if (!FORCED.equals(gc.getGcCause())) {
+            synchronized (this) {
+                pausesMillis.recordValue(info.getDuration());
+            }
+        }
+    }
+
+    /**
+     * Forget the pauses recorded so far, e.g. at the end of the warmup, and start sampling the live heap if asked to.
+     */
+    synchronized void reset(Duration sampleInterval) {
+        pausesMillis.reset();
+        liveHeap.clear();
+        if (sampleInterval != null && sampler == null) {
+            sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "loadgen-heap");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sampler.scheduleAtFixedRate(this::sampleLiveHeap, 0, sampleInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized Histogram pausesMillis() {
+        return pausesMillis.copy();
+    }
+
+    /**
+     * The least-squares slope, in bytes per hour, of the live heap over the later half of the samples. The earlier
+     * half is left for caches and pools to fill up to their bounds.
+     *
+     * @return NaN with fewer than four samples
+     */
+    synchronized double liveHeapGrowthPerHour() {
+        if (liveHeap.size() < 4) {
+            return Double.NaN;
+        }
+
+        List<long[]> samples = liveHeap.subList(liveHeap.size() / 2, liveHeap.size());
+        // Hours since the first sample; since the epoch, the sums below would lose the slope to rounding
+        long first = samples.get(0)[0];
+        double n = samples.size();
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        for (long[] sample : samples) {
+            double hours = (sample[0] - first) / 3_600_000.0;
+            double bytes = sample[1];
+            sumX += hours;
+            sumY += bytes;
+            sumXY += hours * bytes;
+            sumXX += hours * hours;
+        }
+        return (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+    }
+
+    synchronized long lastLiveHeap() {
+        return liveHeap.isEmpty() ? 0 : liveHeap.get(liveHeap.size() - 1)[1];
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            try {
+                ((NotificationEmitter) gc).removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // Already gone
+            }
+        }
+    }
+
+    private void sampleLiveHeap() {
+        System.gc();
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        synchronized (this) {
+            liveHeap.add(new long[]{System.currentTimeMillis(), used});
+        }
+    }
+}
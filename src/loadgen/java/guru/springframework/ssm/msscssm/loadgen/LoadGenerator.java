@@ -0,0 +1,287 @@
+package guru.springframework.ssm.msscssm.loadgen;
+
+import guru.springframework.ssm.msscssm.MsscSsmApplication;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.loadgen.LoadProperties.Operation;
+import guru.springframework.ssm.msscssm.services.PaymentIngestionService;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Drives {@link PaymentService} in-process at a fixed arrival rate with a mix of creates and events, and reports
+ * throughput, latency percentiles and GC pauses.
+ * <p>
+ * Operations are started on a schedule, not as soon as a thread is free: each has a time it is due, and its response
+ * time is measured from then. An operation that waits for a busy thread or a stalled service counts that wait,
+ * rather than the generator quietly slowing down with the service and dropping its worst moments from the results
+ * (coordinated omission). Service time, measured from when an operation actually started, is reported alongside.
+ * <p>
+ * In soak mode the run lasts an hour against a file backed H2 database, and fails if the heap left after GC keeps
+ * growing. The arguments go to the application too, so its properties can be set alongside, e.g.
+ * --payment.statemachine.engine=table. Exits with 1 if the soak failed.
+ */
+public class LoadGenerator {
+
+    private static final BigDecimal AMOUNT = new BigDecimal("12.99");
+    private static final double MB = 1024 * 1024;
+
+    private final LoadProperties properties;
+    private final PaymentService paymentService;
+    private final PaymentIngestionService ingestionService;
+    private final JdbcTemplate jdbcTemplate;
+    private final String engine;
+    private final PrintStream out;
+
+    // Each operation as often as its weight
+    private final Operation[] operations;
+
+    // Payments events are sent to; creates replace the oldest
+    private AtomicLongArray targets;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // From when each operation was due, including any wait for a thread
+    private final Recorder responseTimes = new Recorder(3);
+    // From when each operation actually started
+    private final Recorder serviceTimes = new Recorder(3);
+
+    LoadGenerator(LoadProperties properties, ConfigurableApplicationContext context, PrintStream out) {
+        this.properties = properties;
+        this.paymentService = context.getBean(PaymentService.class);
+        this.ingestionService = context.getBean(PaymentIngestionService.class);
+        this.jdbcTemplate = context.getBean(JdbcTemplate.class);
+        this.engine = context.getBean(PaymentStateMachineProperties.class).getEngine().name();
+        this.out = out;
+
+        List<Operation> weighted = new ArrayList<>();
+        for (Map.Entry<Operation, Integer> operation : properties.getMix().entrySet()) {
+            for (int i = 0; i < operation.getValue(); i++) {
+                weighted.add(operation.getKey());
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("loadgen.mix gives no operation a weight");
+        }
+        this.operations = weighted.toArray(new Operation[0]);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+        LoadProperties properties = Binder.get(environment).bind("loadgen", LoadProperties.class)
+                .orElseGet(LoadProperties::new);
+
+        // Devtools would run main again in a restart class loader, with System.out already silenced
+        System.setProperty("spring.devtools.restart.enabled", "false");
+
+        // Anything the application prints would interleave with the report
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        SpringApplicationBuilder application = new SpringApplicationBuilder(MsscSsmApplication.class)
+                .web(WebApplicationType.NONE)
+                .properties("spring.jpa.show-sql=false",
+                        "spring.main.banner-mode=off",
+                        "logging.level.root=WARN");
+        if (properties.getSoak().isEnabled()) {
+            application.properties("spring.datasource.url=" + properties.getSoak().getDatasourceUrl(),
+                    "spring.jpa.hibernate.ddl-auto=create");
+        }
+
+        boolean passed;
+        try (ConfigurableApplicationContext context = application.run(args)) {
+            passed = new LoadGenerator(properties, context, out).run();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return false if a soak found the heap growing faster than allowed
+     */
+    boolean run() throws InterruptedException {
+        LoadProperties.Soak soak = properties.getSoak();
+        Duration duration = soak.isEnabled() ? soak.getDuration() : properties.getDuration();
+        out.printf("%s engine: %d operations/s for %s after a %s warmup, %d threads, %d payments, mix %s%s%n",
+                engine, properties.getRate(), duration, properties.getWarmup(), properties.getConcurrency(),
+                properties.getPayments(), properties.getMix(), soak.isEnabled() ? ", soaking" : "");
+
+        seed();
+        try (GcMonitor gc = new GcMonitor()) {
+            out.println("Warming up");
+            drive(properties.getWarmup());
+            failed.set(0);
+            gc.reset(soak.isEnabled() ? soak.getSampleInterval() : null);
+
+            out.println("Measuring");
+            Phase measured = drive(duration);
+            report(measured, gc);
+            return !soak.isEnabled() || heapHeldSteady(gc, soak);
+        }
+    }
+
+    private void seed() {
+        long before = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from payment", Long.class);
+        ingestionService.ingest(Stream.generate(() -> Payment.builder().amount(AMOUNT).build())
+                .limit(properties.getPayments()), progress -> {});
+
+        List<Long> ids = jdbcTemplate.queryForList("select id from payment where id > ? order by id", Long.class, before);
+        targets = new AtomicLongArray(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            targets.set(i, ids.get(i));
+        }
+    }
+
+    private Phase drive(Duration length) throws InterruptedException {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / properties.getRate();
+        long start = System.nanoTime();
+        long end = start + length.toNanos();
+        AtomicLong tickets = new AtomicLong();
+
+        // Started afresh, so the warmup is not counted
+        responseTimes.reset();
+        serviceTimes.reset();
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(properties.getConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "loadgen-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < properties.getConcurrency(); i++) {
+            workers.execute(() -> work(tickets, start, end, intervalNanos));
+        }
+        workers.shutdown();
+
+        Histogram response = new Histogram(3);
+        Histogram service = new Histogram(3);
+        Histogram interval = null;
+        Histogram serviceInterval = null;
+        boolean done = false;
+        while (!done) {
+            done = workers.awaitTermination(properties.getReportInterval().toNanos(), TimeUnit.NANOSECONDS);
+            interval = responseTimes.getIntervalHistogram(interval);
+            serviceInterval = serviceTimes.getIntervalHistogram(serviceInterval);
+            response.add(interval);
+            service.add(serviceInterval);
+            printInterval(start, interval);
+        }
+        return new Phase(response, service, System.nanoTime() - start);
+    }
+
+    private void work(AtomicLong tickets, long start, long end, long intervalNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            long due = start + tickets.getAndIncrement() * intervalNanos;
+            if (due >= end) {
+                return;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            long began = System.nanoTime();
+            try {
+                execute(operations[random.nextInt(operations.length)], random);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+            }
+            long finished = System.nanoTime();
+            responseTimes.recordValue(finished - due);
+            serviceTimes.recordValue(finished - began);
+        }
+    }
+
+    // An event the payment's state does not accept is rejected, not failed, as it would be for a real caller
+    private void execute(Operation operation, ThreadLocalRandom random) {
+        if (operation == Operation.CREATE) {
+            Payment payment = paymentService.newPayment(Payment.builder().amount(AMOUNT).build());
+            targets.set((int) (created.getAndIncrement() % targets.length()), payment.getId());
+        } else {
+            paymentService.sendEvent(targets.get(random.nextInt(targets.length())), operation.getEvent());
+        }
+    }
+
+    private void printInterval(long start, Histogram interval) {
+        double seconds = (interval.getEndTimeStamp() - interval.getStartTimeStamp()) / 1000.0;
+        out.printf("%7.0fs %9d ops %9.1f/s   response p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n",
+                (System.nanoTime() - start) / 1e9, interval.getTotalCount(),
+                seconds > 0 ? interval.getTotalCount() / seconds : 0.0,
+                millis(interval, 50), millis(interval, 99), interval.getMaxValue() / 1e6);
+    }
+
+    private void report(Phase phase, GcMonitor gc) {
+        double seconds = phase.elapsedNanos / 1e9;
+        long operations = phase.response.getTotalCount();
+        out.printf("%n%d operations in %.1fs: %.1f/s against %d/s offered, %d failed%n",
+                operations, seconds, operations / seconds, properties.getRate(), failed.get());
+        printPercentiles("Response time (from when due)", phase.response);
+        printPercentiles("Service time (from start)    ", phase.service);
+
+        Histogram pauses = gc.pausesMillis();
+        out.printf("GC: %d pauses, %.0f ms in total, p50 %d ms  p99 %d ms  max %d ms%n",
+                pauses.getTotalCount(), pauses.getMean() * pauses.getTotalCount(),
+                pauses.getValueAtPercentile(50), pauses.getValueAtPercentile(99), pauses.getMaxValue());
+    }
+
+    private void printPercentiles(String name, Histogram histogram) {
+        out.printf("%s: p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms  max %8.2f ms%n", name,
+                millis(histogram, 50), millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1e6);
+    }
+
+    private boolean heapHeldSteady(GcMonitor gc, LoadProperties.Soak soak) {
+        double growth = gc.liveHeapGrowthPerHour();
+        if (Double.isNaN(growth)) {
+            out.println("Soak: too few live heap samples to fit its growth, run longer or sample more often");
+            return true;
+        }
+
+        boolean steady = growth <= soak.getMaxHeapGrowthPerHour().toBytes();
+        out.printf("Soak: live heap %.1f MB at the end, growing %.1f MB/h, at most %.1f MB/h allowed: %s%n",
+                gc.lastLiveHeap() / MB, growth / MB, soak.getMaxHeapGrowthPerHour().toBytes() / MB,
+                steady ? "PASSED" : "FAILED");
+        return steady;
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    private static final class Phase {
+        final Histogram response;
+        final Histogram service;
+        final long elapsedNanos;
+
+        Phase(Histogram response, Histogram service, long elapsedNanos) {
+            this.response = response;
+            this.service = service;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
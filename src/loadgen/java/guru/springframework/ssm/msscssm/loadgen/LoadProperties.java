@@ -0,0 +1,83 @@
+package guru.springframework.ssm.msscssm.loadgen;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import lombok.Data;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Options for {@link LoadGenerator}, given on the command line as --loadgen.rate=2000 and so on.
+ */
+@Data
+public class LoadProperties {
+
+    // Operations started per second, on schedule whether or not earlier ones have finished
+    private int rate = 1000;
+
+    // Payments created before the run starts; events go to these and then to the ones the run creates
+    private int payments = 10_000;
+
+    // Threads running operations; an operation due while all of them are busy starts late
+    private int concurrency = 16;
+
+    // Measured run, after the warmup
+    private Duration duration = Duration.ofMinutes(1);
+
+    // Run at the full rate before measuring, so the JIT and the pools have settled
+    private Duration warmup = Duration.ofSeconds(10);
+
+    // How often a line of interval figures is printed
+    private Duration reportInterval = Duration.ofSeconds(10);
+
+    // Relative weight of each operation; the gateway's answers to PRE_AUTHORIZE and AUTHORIZE come on top
+    private Map<Operation, Integer> mix = new EnumMap<>(Map.of(
+            Operation.CREATE, 1,
+            Operation.PRE_AUTHORIZE, 2,
+            Operation.PRE_AUTH_APPROVED, 1,
+            Operation.AUTHORIZE, 1,
+            Operation.AUTH_APPROVED, 1));
+
+    private Soak soak = new Soak();
+
+    public enum Operation {
+        CREATE(null),
+        PRE_AUTHORIZE(PaymentEvent.PRE_AUTHORIZE),
+        PRE_AUTH_APPROVED(PaymentEvent.PRE_AUTH_APPROVED),
+        PRE_AUTH_DECLINED(PaymentEvent.PRE_AUTH_DECLINED),
+        AUTHORIZE(PaymentEvent.AUTHORIZE),
+        AUTH_APPROVED(PaymentEvent.AUTH_APPROVED),
+        AUTH_DECLINED(PaymentEvent.AUTH_DECLINED);
+
+        private final PaymentEvent event;
+
+        Operation(PaymentEvent event) {
+            this.event = event;
+        }
+
+        // Null for CREATE
+        public PaymentEvent getEvent() {
+            return event;
+        }
+    }
+
+    @Data
+    public static class Soak {
+        // Run for soak.duration against a file backed database and fail if the heap keeps growing
+        private boolean enabled = false;
+
+        // Replaces duration when soaking
+        private Duration duration = Duration.ofHours(1);
+
+        // How often the live heap is sampled, each time after a forced full collection that also stalls the load
+        private Duration sampleInterval = Duration.ofMinutes(1);
+
+        // Growth of the live heap per hour, fitted over the later half of the run, above which the soak fails
+        private DataSize maxHeapGrowthPerHour = DataSize.ofMegabytes(32);
+
+        // On disk, so the payments and history the run creates grow the database file rather than the heap
+        private String datasourceUrl = "jdbc:h2:file:./target/loadgen/soak";
+    }
+}
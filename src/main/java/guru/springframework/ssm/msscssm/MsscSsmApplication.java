@@ -2,8 +2,12 @@ package guru.springframework.ssm.msscssm;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 
-@SpringBootApplication
+// An auto-configured R2DBC ConnectionFactory would switch off the JDBC DataSource behind JPA, see ReactivePersistenceConfig
+@ConfigurationPropertiesScan
+@SpringBootApplication(exclude = R2dbcAutoConfiguration.class)
 public class MsscSsmApplication {
 
     public static void main(String[] args) {
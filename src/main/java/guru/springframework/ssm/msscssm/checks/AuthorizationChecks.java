@@ -0,0 +1,135 @@
+package guru.springframework.ssm.msscssm.checks;
+
+import guru.springframework.ssm.msscssm.gateway.PaymentGateway;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Forks the gateway's authorization and every {@link PaymentCheck} for a payment at once and joins their answers, so
+ * deciding on AUTH takes as long as the slowest of them rather than their sum. The join declines as soon as any one
+ * fails, without waiting for the others.
+ * <p>
+ * A check that throws or does not answer within the configured timeout fails. A failed gateway call fails the join,
+ * as it did before there were other checks.
+ */
+@Slf4j
+@Component
+public class AuthorizationChecks implements DisposableBean {
+
+    private final PaymentGateway paymentGateway;
+    private final List<TimedCheck> checks;
+    private final PaymentCheckProperties properties;
+    private final ExecutorService executor;
+
+    public AuthorizationChecks(PaymentGateway paymentGateway, ObjectProvider<PaymentCheck> checks,
+                               PaymentCheckProperties properties, MeterRegistry meterRegistry) {
+        this.paymentGateway = paymentGateway;
+        this.checks = checks.orderedStream()
+                .map(check -> new TimedCheck(check, meterRegistry))
+                .collect(Collectors.toList());
+        this.properties = properties;
+        this.executor = newExecutor(properties.getThreads());
+    }
+
+    /**
+     * @return completes with true once the gateway and every check have approved the payment, or with false as soon
+     * as one of them declines it
+     */
+    public CompletableFuture<Boolean> authorize(Long paymentId) {
+        List<CompletableFuture<Boolean>> branches = new ArrayList<>(checks.size() + 1);
+        branches.add(paymentGateway.authorize(paymentId));
+        for (TimedCheck check : checks) {
+            branches.add(check.run(paymentId));
+        }
+        return join(branches);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static CompletableFuture<Boolean> join(List<CompletableFuture<Boolean>> branches) {
+        CompletableFuture<Boolean> joined = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(branches.size());
+
+        for (CompletableFuture<Boolean> branch : branches) {
+            branch.whenComplete((passed, ex) -> {
+                if (ex != null) {
+                    joined.completeExceptionally(ex);
+                } else if (!passed) {
+                    joined.complete(false);
+                } else if (pending.decrementAndGet() == 0) {
+                    joined.complete(true);
+                }
+            });
+        }
+        return joined;
+    }
+
+    private static ExecutorService newExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "payment-check-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                threadFactory);
+    }
+
+    private class TimedCheck {
+
+        final PaymentCheck check;
+        final Timer passed;
+        final Timer failed;
+        final Timer error;
+
+        TimedCheck(PaymentCheck check, MeterRegistry meterRegistry) {
+            this.check = check;
+            this.passed = timer(check, "passed", meterRegistry);
+            this.failed = timer(check, "failed", meterRegistry);
+            this.error = timer(check, "error", meterRegistry);
+        }
+
+        CompletableFuture<Boolean> run(Long paymentId) {
+            long start = System.nanoTime();
+            return CompletableFuture.supplyAsync(() -> check.check(paymentId), executor)
+                    .orTimeout(properties.getTimeout().toNanos(), TimeUnit.NANOSECONDS)
+                    .handle((result, ex) -> {
+                        if (ex != null) {
+                            log.warn("{} check for payment {} did not answer, declining", check.getName(), paymentId, ex);
+                        }
+                        boolean pass = ex == null && result;
+                        (ex != null ? error : pass ? passed : failed)
+                                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        return pass;
+                    });
+        }
+
+        private Timer timer(PaymentCheck check, String result, MeterRegistry meterRegistry) {
+            return Timer.builder("payment.checks")
+                    .description("Time for a check to answer, from being forked to its result")
+                    .tag("check", check.getName())
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package guru.springframework.ssm.msscssm.checks;
+
+/**
+ * A check a payment must pass before it is authorized, independent of the gateway and of other checks, such as fraud
+ * scoring or spending limits. Implementations may block; {@link AuthorizationChecks} calls them on its own threads.
+ */
+public interface PaymentCheck {
+
+    /**
+     * Name the check's timer is tagged with.
+     */
+    String getName();
+
+    /**
+     * @return true if the payment passed
+     */
+    boolean check(Long paymentId);
+}
@@ -0,0 +1,21 @@
+package guru.springframework.ssm.msscssm.checks;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Stub fraud and limit checks until the real services are wired in.
+ */
+@Configuration
+public class PaymentCheckConfig {
+
+    @Bean
+    public PaymentCheck fraudCheck(PaymentCheckProperties properties) {
+        return new StubPaymentCheck("fraud", properties.getFraud());
+    }
+
+    @Bean
+    public PaymentCheck limitCheck(PaymentCheckProperties properties) {
+        return new StubPaymentCheck("limits", properties.getLimits());
+    }
+}
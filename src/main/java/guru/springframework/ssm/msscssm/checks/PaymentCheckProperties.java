@@ -0,0 +1,30 @@
+package guru.springframework.ssm.msscssm.checks;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "payment.checks")
+public class PaymentCheckProperties {
+
+    // Threads the checks run on; each check in flight holds one for as long as it takes
+    private int threads = 16;
+
+    // A check that has not answered by then counts as failed, and the payment is declined
+    private Duration timeout = Duration.ofSeconds(5);
+
+    private Stub fraud = new Stub();
+
+    private Stub limits = new Stub();
+
+    @Data
+    public static class Stub {
+        // Simulated time the check takes
+        private Duration latency = Duration.ZERO;
+
+        // Share of payments that pass, between 0 and 1
+        private double passRate = 1.0;
+    }
+}
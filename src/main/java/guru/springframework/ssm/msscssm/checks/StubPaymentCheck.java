@@ -0,0 +1,34 @@
+package guru.springframework.ssm.msscssm.checks;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process stand-in for a remote check that passes a configurable share of payments after a configurable delay,
+ * spent blocking the calling thread as a synchronous client would.
+ */
+public class StubPaymentCheck implements PaymentCheck {
+
+    private final String name;
+    private final PaymentCheckProperties.Stub stub;
+
+    public StubPaymentCheck(String name, PaymentCheckProperties.Stub stub) {
+        this.name = name;
+        this.stub = stub;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean check(Long paymentId) {
+        try {
+            Thread.sleep(stub.getLatency().toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking payment " + paymentId, e);
+        }
+        return ThreadLocalRandom.current().nextDouble() < stub.getPassRate();
+    }
+}
@@ -0,0 +1,30 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@ConditionalOnProperty(prefix = "payment.cluster", name = "enabled", havingValue = "true")
+@Configuration
+public class ClusterConfig {
+
+    @ConditionalOnMissingBean(ShardMembership.class)
+    @Bean(destroyMethod = "shutdown")
+    public LocalShardMembership localShardMembership(PaymentService paymentService, ClusterProperties clusterProperties,
+                                                     PaymentStateMachineProperties properties) {
+        LocalShardMembership membership = new LocalShardMembership();
+        for (int i = 0; i < clusterProperties.getLocalShards(); i++) {
+            membership.join(new LocalPaymentShard("local-" + i, paymentService, properties.getDispatch()));
+        }
+        return membership;
+    }
+
+    // The application's PaymentEventDispatcher while clustering is enabled, in place of the local one
+    @Bean
+    public ShardedPaymentRouter shardedPaymentRouter(ShardMembership membership, ClusterProperties clusterProperties) {
+        return new ShardedPaymentRouter(membership, clusterProperties.getVirtualNodes());
+    }
+}
@@ -0,0 +1,18 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties(prefix = "payment.cluster")
+public class ClusterProperties {
+
+    // Route payment events to shards by payment id, see ShardedPaymentRouter
+    private boolean enabled = false;
+
+    // Points per shard on the hash ring; more spread payments more evenly at the cost of a larger ring
+    private int virtualNodes = 128;
+
+    // Shards started in this JVM when no other ShardMembership is configured, each with its own dispatcher threads
+    private int localShards = 4;
+}
@@ -0,0 +1,55 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps payment ids to shards. Every shard is placed on a ring of 64 bit hashes at a number of virtual node points,
+ * and a payment belongs to the first point at or after its own hash. When a shard joins it takes over only the ranges
+ * in front of its points, about 1/n of the payments, and when one leaves its ranges pass to the next points along;
+ * everything else keeps its owner. Immutable, so lookups need no locking.
+ */
+final class ConsistentHashRing {
+
+    private final long[] points;
+    private final PaymentShard[] owners;
+
+    ConsistentHashRing(List<PaymentShard> shards, int virtualNodes) {
+        long[][] entries = new long[shards.size() * virtualNodes][];
+        for (int s = 0; s < shards.size(); s++) {
+            long shardHash = shards.get(s).getId().hashCode();
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[s * virtualNodes + v] = new long[]{mix(shardHash << 32 | v), s};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+
+        points = new long[entries.length];
+        owners = new PaymentShard[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = shards.get((int) entries[i][1]);
+        }
+    }
+
+    PaymentShard owner(long paymentId) {
+        if (points.length == 0) {
+            throw new IllegalStateException("No shards to run payment " + paymentId);
+        }
+        int i = Arrays.binarySearch(points, mix(paymentId));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // MurmurHash3's 64 bit finalizer; sequential ids land far apart on the ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,56 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.LocalPaymentEventDispatcher;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A shard in this JVM with its own dispatcher threads, running events through the given payment service.
+ */
+public class LocalPaymentShard implements PaymentShard, AutoCloseable {
+
+    private final String id;
+    private final LocalPaymentEventDispatcher dispatcher;
+
+    public LocalPaymentShard(String id, PaymentService paymentService, PaymentStateMachineProperties.Dispatch dispatch) {
+        PaymentStateMachineProperties properties = new PaymentStateMachineProperties();
+        properties.setDispatch(dispatch);
+        this.id = id;
+        this.dispatcher = new LocalPaymentEventDispatcher(paymentService, properties);
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public CompletableFuture<PaymentState> sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        return dispatcher.dispatch(paymentId, event, idempotencyKey);
+    }
+
+    @Override
+    public CompletableFuture<List<PaymentEventResult>> sendEvents(PaymentEvent event, Collection<Long> paymentIds) {
+        return dispatcher.dispatchAll(event, paymentIds);
+    }
+
+    /**
+     * Wait for the events already dispatched, then stop the shard's threads.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        dispatcher.destroy();
+    }
+
+    @Override
+    public String toString() {
+        return "LocalPaymentShard(" + id + ")";
+    }
+}
@@ -0,0 +1,59 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Membership of shards running in this JVM, joined and left explicitly. Stands in for real node discovery in a single
+ * process and in tests.
+ */
+public class LocalShardMembership implements ShardMembership {
+
+    private final List<PaymentShard> members = new CopyOnWriteArrayList<>();
+    private final List<Consumer<List<PaymentShard>>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public List<PaymentShard> getMembers() {
+        return List.copyOf(members);
+    }
+
+    @Override
+    public void addListener(Consumer<List<PaymentShard>> listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void join(PaymentShard shard) {
+        if (members.stream().anyMatch(member -> member.getId().equals(shard.getId()))) {
+            throw new IllegalArgumentException("Shard " + shard.getId() + " has already joined");
+        }
+        members.add(shard);
+        notifyListeners();
+    }
+
+    /**
+     * Stop routing events to the shard. Events it already has keep running, so it should only be shut down after.
+     */
+    public synchronized void leave(PaymentShard shard) {
+        if (members.remove(shard)) {
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Leave and close every member, after the events each already has.
+     */
+    public void shutdown() throws Exception {
+        for (PaymentShard shard : getMembers()) {
+            leave(shard);
+            if (shard instanceof AutoCloseable) {
+                ((AutoCloseable) shard).close();
+            }
+        }
+    }
+
+    private void notifyListeners() {
+        List<PaymentShard> current = getMembers();
+        listeners.forEach(listener -> listener.accept(current));
+    }
+}
@@ -0,0 +1,30 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A node that runs payment events for the payment ids it owns, see {@link ShardedPaymentRouter}.
+ */
+public interface PaymentShard {
+
+    /**
+     * @return an id that is unique within the membership and stable across restarts, as ownership is hashed from it
+     */
+    String getId();
+
+    /**
+     * @param idempotencyKey may be null, see {@link guru.springframework.ssm.msscssm.services.PaymentService#sendEvent(Long, PaymentEvent, String)}
+     */
+    CompletableFuture<PaymentState> sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey);
+
+    /**
+     * Send one event to payments this shard owns, with one result per payment in the order given.
+     */
+    CompletableFuture<List<PaymentEventResult>> sendEvents(PaymentEvent event, Collection<Long> paymentIds);
+}
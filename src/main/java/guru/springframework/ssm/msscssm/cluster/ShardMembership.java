@@ -0,0 +1,18 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The shards currently able to run payment events. Implementations sit on whatever discovers nodes; the local one
+ * keeps every shard in this JVM.
+ */
+public interface ShardMembership {
+
+    List<PaymentShard> getMembers();
+
+    /**
+     * Call the listener with the new members every time a shard joins or leaves.
+     */
+    void addListener(Consumer<List<PaymentShard>> listener);
+}
@@ -0,0 +1,98 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes each payment's events to the shard that owns it, by consistent hashing of the payment id over the current
+ * members, so a payment's machine always runs on one node and adding nodes adds capacity.
+ * <p>
+ * When membership changes the ring is rebuilt and about 1/n of the payments move to another shard. A payment's next
+ * event is only routed once its previous one has finished, so even while it moves, its events never run on two
+ * shards at once and keep their order. Payment state lives in the shared database, so the new owner needs nothing
+ * handed over.
+ * <p>
+ * With clustering enabled this is the application's {@link PaymentEventDispatcher}, so the web API, gateway answers,
+ * recovery and timeouts all reach payments through it.
+ */
+@Slf4j
+public class ShardedPaymentRouter implements PaymentEventDispatcher {
+
+    private static final CompletableFuture<PaymentState> DONE = CompletableFuture.completedFuture(null);
+
+    private final ShardMembership membership;
+    private final int virtualNodes;
+
+    private volatile ConsistentHashRing ring;
+
+    // Last event routed for each payment with work in flight; the next one is routed once it completes
+    private final ConcurrentHashMap<Long, CompletableFuture<PaymentState>> tails = new ConcurrentHashMap<>();
+
+    public ShardedPaymentRouter(ShardMembership membership, int virtualNodes) {
+        this.membership = membership;
+        this.virtualNodes = virtualNodes;
+        membership.addListener(members -> rebalance());
+        rebalance();
+    }
+
+    @Override
+    public CompletableFuture<PaymentState> dispatch(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        CompletableFuture<PaymentState> next = tails.compute(paymentId, (id, tail) ->
+                (tail == null ? DONE : tail).handle((state, ex) -> null)
+                        .thenCompose(ignored -> owner(paymentId).sendEvent(paymentId, event, idempotencyKey)));
+
+        next.whenComplete((state, ex) -> tails.remove(paymentId, next));
+        return next;
+    }
+
+    /**
+     * Split the payments by owner and send each shard its share as one batch, with the results put back in the order
+     * the payments were given. Like a batch on a single node, not chained behind single events.
+     */
+    @Override
+    public CompletableFuture<List<PaymentEventResult>> dispatchAll(PaymentEvent event, Collection<Long> paymentIds) {
+        ConsistentHashRing current = ring;
+        List<Long> ids = new ArrayList<>(paymentIds);
+        Map<PaymentShard, List<Integer>> byOwner = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            byOwner.computeIfAbsent(current.owner(ids.get(i)), shard -> new ArrayList<>()).add(i);
+        }
+
+        PaymentEventResult[] results = new PaymentEventResult[ids.size()];
+        CompletableFuture<?>[] shares = byOwner.entrySet().stream().map(share -> {
+            List<Integer> indexes = share.getValue();
+            List<Long> shareIds = new ArrayList<>(indexes.size());
+            indexes.forEach(i -> shareIds.add(ids.get(i)));
+            return share.getKey().sendEvents(event, shareIds).thenAccept(shareResults -> {
+                for (int i = 0; i < indexes.size(); i++) {
+                    results[indexes.get(i)] = shareResults.get(i);
+                }
+            });
+        }).toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(shares).thenApply(done -> Arrays.asList(results));
+    }
+
+    public PaymentShard owner(Long paymentId) {
+        return ring.owner(paymentId);
+    }
+
+    // Always built from the membership itself, so rebalances racing each other still end on the latest members
+    private synchronized void rebalance() {
+        List<PaymentShard> members = membership.getMembers();
+        ring = new ConsistentHashRing(members, virtualNodes);
+        log.info("Payments are sharded over {} members", members.size());
+    }
+}
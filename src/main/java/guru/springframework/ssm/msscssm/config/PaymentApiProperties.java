@@ -0,0 +1,12 @@
+package guru.springframework.ssm.msscssm.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties(prefix = "payment.api")
+public class PaymentApiProperties {
+
+    // Database the reactive API reads and inserts payments in; must be the one JPA maps Payment to
+    private String r2dbcUrl = "r2dbc:pool:h2:mem:///testdb";
+}
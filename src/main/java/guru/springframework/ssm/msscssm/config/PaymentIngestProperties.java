@@ -0,0 +1,18 @@
+package guru.springframework.ssm.msscssm.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties(prefix = "payment.ingest")
+public class PaymentIngestProperties {
+
+    // Payments persisted between flush/clear of the persistence context; match hibernate.jdbc.batch_size
+    private int flushSize = 500;
+
+    // Payments committed per transaction
+    private int commitSize = 10_000;
+
+    // Payments between progress reports
+    private int progressInterval = 100_000;
+}
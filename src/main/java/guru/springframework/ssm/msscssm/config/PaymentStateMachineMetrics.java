@@ -0,0 +1,149 @@
+package guru.springframework.ssm.msscssm.config;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer timers for the payment state machine, exposed through Actuator under payment.statemachine.*.
+ * Timers for the fixed tag combinations are registered up front, so recording on the hot path is a nanoTime and an
+ * array or enum map lookup rather than a registry lookup.
+ */
+@Component
+public class PaymentStateMachineMetrics {
+
+    public enum EventOutcome {
+        // The machine took a transition for the event
+        ACCEPTED,
+        // No transition for the event in the current state, or a guard denied it
+        REJECTED,
+        ERROR
+    }
+
+    public enum PersistTarget {
+        // The loaded Payment was moved to its new state and is flushed with the transaction
+        ENTITY,
+        // Written straight through by payment id
+        UPDATE,
+        JOURNAL
+    }
+
+    public enum MachineOperation {
+        BUILD,
+        RESET
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Map<PaymentEvent, Timer[]> eventTimers = new EnumMap<>(PaymentEvent.class);
+    private final Timer[] persistTimers = new Timer[PersistTarget.values().length];
+    private final Timer[] machineTimers = new Timer[MachineOperation.values().length];
+
+    public PaymentStateMachineMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+
+        for (PaymentEvent event : PaymentEvent.values()) {
+            Timer[] timers = new Timer[EventOutcome.values().length];
+            for (EventOutcome outcome : EventOutcome.values()) {
+                timers[outcome.ordinal()] = Timer.builder("payment.statemachine.events")
+                        .description("Time to process a payment event, from taking its lock to the machine settling")
+                        .tag("event", event.name())
+                        .tag("outcome", tagValue(outcome))
+                        .register(meterRegistry);
+            }
+            eventTimers.put(event, timers);
+        }
+        for (PersistTarget target : PersistTarget.values()) {
+            persistTimers[target.ordinal()] = Timer.builder("payment.statemachine.persist")
+                    .description("Time the interceptor spends recording a state change")
+                    .tag("target", tagValue(target))
+                    .register(meterRegistry);
+        }
+        for (MachineOperation operation : MachineOperation.values()) {
+            machineTimers[operation.ordinal()] = Timer.builder("payment.statemachine.machine")
+                    .description("Time to build a pooled machine or reset it to a payment's state")
+                    .tag("operation", tagValue(operation))
+                    .register(meterRegistry);
+        }
+    }
+
+    public void recordEvent(PaymentEvent event, EventOutcome outcome, long startNanos) {
+        eventTimers.get(event)[outcome.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordPersist(PersistTarget target, long startNanos) {
+        persistTimers[target.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordMachine(MachineOperation operation, long startNanos) {
+        machineTimers[operation.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wrap a guard so each evaluation is timed, tagged with the guard's name and its result.
+     */
+    public Guard<PaymentState, PaymentEvent> timed(String name, Guard<PaymentState, PaymentEvent> guard) {
+        Timer allowed = guardTimer(name, "true");
+        Timer denied = guardTimer(name, "false");
+        Timer failed = guardTimer(name, "error");
+
+        return context -> {
+            long start = System.nanoTime();
+            try {
+                boolean result = guard.evaluate(context);
+                (result ? allowed : denied).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return result;
+            } catch (RuntimeException e) {
+                failed.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Wrap an action so each execution is timed, tagged with the action's name and whether it threw.
+     */
+    public Action<PaymentState, PaymentEvent> timed(String name, Action<PaymentState, PaymentEvent> action) {
+        Timer succeeded = actionTimer(name, "success");
+        Timer failed = actionTimer(name, "error");
+
+        return context -> {
+            long start = System.nanoTime();
+            try {
+                action.execute(context);
+                succeeded.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                failed.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                throw e;
+            }
+        };
+    }
+
+    private Timer guardTimer(String name, String result) {
+        return Timer.builder("payment.statemachine.guard")
+                .description("Time to evaluate a transition guard")
+                .tag("guard", name)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private Timer actionTimer(String name, String outcome) {
+        return Timer.builder("payment.statemachine.action")
+                .description("Time to execute a transition action")
+                .tag("action", name)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,196 @@
+package guru.springframework.ssm.msscssm.config;
+
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+@Data
+@ConfigurationProperties(prefix = "payment.statemachine")
+public class PaymentStateMachineProperties {
+
+    // Which runtime processes payment events; both run the guard and action beans from StateMachineConfig
+    private Engine engine = Engine.SPRING;
+
+    // Where the TABLE engine gets its transitions from; the SPRING engine always builds them from the DSL
+    private Model model = Model.DSL;
+
+    // How payments are loaded for events and their new states written back, see PaymentStateStore
+    private Store store = Store.JPA;
+
+    // Log every state change at INFO; when false the logging listener is not registered at all
+    private boolean logStateChanges = true;
+
+    private Pool pool = new Pool();
+
+    private Batch batch = new Batch();
+
+    private Dispatch dispatch = new Dispatch();
+
+    private Lock lock = new Lock();
+
+    private Journal journal = new Journal();
+
+    private Context context = new Context();
+
+    private History history = new History();
+
+    private Timeout timeout = new Timeout();
+
+    private Idempotency idempotency = new Idempotency();
+
+    private Recovery recovery = new Recovery();
+
+    public enum Engine {
+        // Full Spring Statemachine runtime
+        SPRING,
+        // Precompiled (state, event) lookup table, see TableStateMachine
+        TABLE
+    }
+
+    public enum Model {
+        // Run the StateMachineConfig DSL through the Spring Statemachine factory at startup
+        DSL,
+        // Load the model generated from the DSL at build time, see PaymentTransitionModel
+        PRECOMPILED
+    }
+
+    public enum Store {
+        // Hibernate entities, flushed with the transaction; batches are written through JDBC
+        JPA,
+        // Plain JDBC rows, each new state written with a compare-and-set on the state it was loaded in
+        JDBC
+    }
+
+    @Data
+    public static class Pool {
+        // Maximum number of state machines kept wired and ready for reuse
+        private int size = 16;
+
+        // How long a caller waits for a free machine once the pool is exhausted
+        private Duration borrowTimeout = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Batch {
+        // Payments loaded per query and state updates sent per JDBC batch by PaymentService.sendEvents
+        private int size = 500;
+    }
+
+    @Data
+    public static class Dispatch {
+        // Threads that run events handed to PaymentEventDispatcher
+        private DispatchMode mode = DispatchMode.PLATFORM;
+
+        // Worker threads in PLATFORM mode
+        private int threads = 10;
+
+        // Events waiting for a PLATFORM worker before new ones are rejected
+        private int queueCapacity = 10_000;
+    }
+
+    @Data
+    public static class Lock {
+        // Striped locks serializing events for the same payment id, rounded up to a power of two
+        private int stripes = 1024;
+
+        // How long an event waits for another event on the same stripe to commit
+        private Duration timeout = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Journal {
+        // Append state changes to a local write-behind log instead of writing each one to the payment table
+        private boolean enabled = false;
+
+        private String path = "payment-journal.log";
+
+        // Size of the memory mapped log; appends wait for the applier once it is full
+        private DataSize capacity = DataSize.ofMegabytes(64);
+
+        // How often the background applier writes journaled changes to the payment table
+        private Duration applyInterval = Duration.ofMillis(100);
+
+        private int applyBatchSize = 1000;
+    }
+
+    @Data
+    public static class Context {
+        // Store each payment's full machine context after an event and restore machines from it, see PaymentContextStore
+        private boolean enabled = false;
+    }
+
+    @Data
+    public static class History {
+        // Record every state change in the append-only payment_transition log, see PaymentHistory
+        private boolean enabled = true;
+
+        // How often new transitions are folded into the per payment snapshots
+        private Duration snapshotInterval = Duration.ofMinutes(1);
+
+        // Transitions read per query when replaying or snapshotting the log
+        private int pageSize = 1000;
+    }
+
+    @Data
+    public static class Timeout {
+        // Decline payments that stay too long in a state, see PaymentTimeoutScheduler
+        private boolean enabled = true;
+
+        // How long a payment may wait on a gateway call in each state before it is declined; states not listed never
+        // time out
+        private Map<PaymentState, Duration> states = new EnumMap<>(Map.of(
+                PaymentState.NEW, Duration.ofMinutes(15),
+                PaymentState.PRE_AUTH, Duration.ofMinutes(15)));
+
+        // How often to look for payments that have timed out
+        private Duration checkInterval = Duration.ofSeconds(10);
+
+        // Payments declined per query and transaction
+        private int batchSize = 500;
+    }
+
+    @Data
+    public static class Idempotency {
+        // How long an idempotency key is remembered; a retry after that runs the event again
+        private Duration timeToLive = Duration.ofHours(24);
+
+        // Keys kept in memory as well as in processed_event; older ones are looked up in the table
+        private int maxEntries = 100_000;
+
+        // How often expired keys are deleted from processed_event
+        private Duration purgeInterval = Duration.ofMinutes(10);
+    }
+
+    @Data
+    public static class Recovery {
+        // Record gateway calls and start again those a crash or a lost answer left unanswered, see PaymentRecoverySweeper
+        private boolean enabled = true;
+
+        // How long a call may go unanswered before it is started again; keep it well under the timeouts above
+        private Duration gracePeriod = Duration.ofMinutes(1);
+
+        // How often to look for unanswered calls
+        private Duration checkInterval = Duration.ofMinutes(1);
+
+        // Calls read per keyset page
+        private int pageSize = 500;
+
+        // Payments re-driven in parallel
+        private int threads = 2;
+
+        // Payments re-driven per second at most, so recovering a backlog leaves the database to live events
+        private int maxRate = 200;
+    }
+
+    public enum DispatchMode {
+        // Fixed size pool of platform threads with a bounded queue
+        PLATFORM,
+        // One virtual thread per event; needs Java 21 or later at runtime
+        VIRTUAL
+    }
+}
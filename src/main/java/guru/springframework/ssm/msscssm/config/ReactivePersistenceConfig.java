@@ -0,0 +1,43 @@
+package guru.springframework.ssm.msscssm.config;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+/**
+ * R2DBC access for the reactive API. The ConnectionFactory is deliberately not a bean: Spring Boot stops configuring
+ * the JDBC DataSource, and with it JPA, as soon as one is registered.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Configuration
+public class ReactivePersistenceConfig implements DisposableBean {
+
+    private final ConnectionFactory connectionFactory;
+
+    public ReactivePersistenceConfig(PaymentApiProperties properties, DataSourceProperties dataSourceProperties) {
+        // Same credentials as the JDBC side, the database has only the user that created it
+        this.connectionFactory = ConnectionFactories.get(ConnectionFactoryOptions.parse(properties.getR2dbcUrl()).mutate()
+                .option(ConnectionFactoryOptions.USER, dataSourceProperties.determineUsername())
+                .option(ConnectionFactoryOptions.PASSWORD, dataSourceProperties.determinePassword())
+                .build());
+    }
+
+    @Bean
+    public DatabaseClient databaseClient() {
+        return DatabaseClient.create(connectionFactory);
+    }
+
+    @Override
+    public void destroy() {
+        if (connectionFactory instanceof ConnectionPool) {
+            ((ConnectionPool) connectionFactory).dispose();
+        }
+    }
+}
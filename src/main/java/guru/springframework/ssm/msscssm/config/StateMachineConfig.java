@@ -6,6 +6,9 @@ import guru.springframework.ssm.msscssm.domain.PaymentState;
 import guru.springframework.ssm.msscssm.config.guards.PaymentIdGuard;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.statemachine.action.Action;
 import org.springframework.statemachine.config.EnableStateMachineFactory;
@@ -14,6 +17,7 @@ import org.springframework.statemachine.config.builders.StateMachineConfiguratio
 import org.springframework.statemachine.config.builders.StateMachineStateConfigurer;
 import org.springframework.statemachine.config.builders.StateMachineTransitionConfigurer;
 import org.springframework.statemachine.guard.Guard;
+import org.springframework.statemachine.listener.StateMachineListener;
 import org.springframework.statemachine.listener.StateMachineListenerAdapter;
 import org.springframework.statemachine.state.State;
 
@@ -33,6 +37,8 @@ public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentSta
     private final Action<PaymentState, PaymentEvent> preAuthDeclinedAction;
     private final Action<PaymentState, PaymentEvent> authApprovedAction;
     private final Action<PaymentState, PaymentEvent> authDeclinedAction;
+    private final PaymentStateMachineMetrics metrics;
+    private final ObjectProvider<StateMachineListener<PaymentState, PaymentEvent>> listeners;
 
     @Override
     public void configure(StateMachineStateConfigurer<PaymentState, PaymentEvent> states) throws Exception {
@@ -48,34 +54,40 @@ public class StateMachineConfig extends StateMachineConfigurerAdapter<PaymentSta
     public void configure(StateMachineTransitionConfigurer<PaymentState, PaymentEvent> transitions) throws Exception {
         transitions
                 .withExternal().source(PaymentState.NEW).target(PaymentState.NEW).event(PaymentEvent.PRE_AUTHORIZE) // when in NEW state, when PRE_AUTH event occurs, stay in NEW state
-                    .action(preAuthAction).guard(paymentIdGuard) // and trigger preAuthAction if id is non-null
+                    .action(metrics.timed("preAuthAction", preAuthAction)).guard(metrics.timed("paymentIdGuard", paymentIdGuard)) // and trigger preAuthAction if id is non-null
                 .and()
                 .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH).event(PaymentEvent.PRE_AUTH_APPROVED) // when in NEW state, when PRE_AUTH_APPROVED event occurs, move to PRE_AUTH state
-                    .action(preAuthApprovedAction) // and trigger preAuthApprovedAction (notification)
+                    .action(metrics.timed("preAuthApprovedAction", preAuthApprovedAction)) // and trigger preAuthApprovedAction (notification)
                 .and()
                 .withExternal().source(PaymentState.NEW).target(PaymentState.PRE_AUTH_ERROR).event(PaymentEvent.PRE_AUTH_DECLINED) // when in NEW state,  when PRE_AUTH_DECLINED event occurs, move to PRE_AUTH_ERROR state
-                    .action(preAuthDeclinedAction) // and trigger preAuthDeclinedAction (notification)
+                    .action(metrics.timed("preAuthDeclinedAction", preAuthDeclinedAction)) // and trigger preAuthDeclinedAction (notification)
                 .and()
                 .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.PRE_AUTH).event(PaymentEvent.AUTHORIZE) // when in PRE_AUTH state, when AUTHORIZE event occurs, stay in PRE_AUTH state
-                    .action(authAction) // and trigger authAction
+                    .action(metrics.timed("authAction", authAction)) // and trigger authAction
                 .and()
                 .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.AUTH).event(PaymentEvent.AUTH_APPROVED) // when in PRE_AUTH state, when AUTH_APPROVED event occurs, move to AUTH state
-                    .action(authApprovedAction)  // and trigger authApprovedAction (notification)
+                    .action(metrics.timed("authApprovedAction", authApprovedAction))  // and trigger authApprovedAction (notification)
                 .and()
                 .withExternal().source(PaymentState.PRE_AUTH).target(PaymentState.AUTH_ERROR).event(PaymentEvent.AUTH_DECLINED) // when in PRE_AUTH state, when AUTH_DECLINED event occurs, move to AUTH_ERROR state
-                    .action(authDeclinedAction); // and trigger authDeclinedAction (notification)
+                    .action(metrics.timed("authDeclinedAction", authDeclinedAction)); // and trigger authDeclinedAction (notification)
     }
 
     @Override
     public void configure(StateMachineConfigurationConfigurer<PaymentState, PaymentEvent> config) throws Exception {
-        StateMachineListenerAdapter<PaymentState, PaymentEvent> adapter = new StateMachineListenerAdapter<>(){
+        listeners.orderedStream().forEach(config.withConfiguration()::listener);
+    }
+
+    // Exposed as a bean so the table engine notifies the same listener as the Spring runtime. Logs only the state ids
+    // and lets the logger do the formatting, so it costs next to nothing when INFO is off
+    @ConditionalOnProperty(prefix = "payment.statemachine", name = "log-state-changes", matchIfMissing = true)
+    @Bean
+    public StateMachineListener<PaymentState, PaymentEvent> stateChangeListener() {
+        return new StateMachineListenerAdapter<>(){
             @Override
             public void stateChanged(State<PaymentState, PaymentEvent> from, State<PaymentState, PaymentEvent> to) {
-                log.info(String.format("stateChanged(from: %s, to: %s", from, to));
+                log.info("stateChanged(from: {}, to: {})", from == null ? null : from.getId(), to.getId());
             }
         };
-
-        config.withConfiguration().listener(adapter);
     }
 
 //    public Guard<PaymentState, PaymentEvent> paymentIdGuard() {
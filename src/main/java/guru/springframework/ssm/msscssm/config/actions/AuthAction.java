@@ -1,34 +1,32 @@
 package guru.springframework.ssm.msscssm.config.actions;
 
+import guru.springframework.ssm.msscssm.checks.AuthorizationChecks;
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
-import guru.springframework.ssm.msscssm.services.PaymentServiceImpl;
-import org.springframework.messaging.support.MessageBuilder;
+import guru.springframework.ssm.msscssm.services.PaymentEventEnvelope;
+import guru.springframework.ssm.msscssm.services.PaymentGatewayEventSender;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.stereotype.Component;
 
-import java.util.Random;
-
+@Slf4j
+@RequiredArgsConstructor
 @Component
 public class AuthAction implements Action<PaymentState, PaymentEvent> {
+
+    private final AuthorizationChecks authorizationChecks;
+    private final PaymentGatewayEventSender paymentGatewayEventSender;
+
     @Override
     public void execute(StateContext<PaymentState, PaymentEvent> stateContext) {
-        System.out.println("Auth was called!!!");
-        if (new Random().nextInt(10) < 8) {
-            System.out.println("Auth Approved!");
-            stateContext.getStateMachine()
-                    .sendEvent(MessageBuilder.withPayload(PaymentEvent.AUTH_APPROVED)
-                            .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER,
-                                    stateContext.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                            .build());
-        } else {
-            System.out.println("Auth Declined!");
-            stateContext.getStateMachine()
-                    .sendEvent(MessageBuilder.withPayload(PaymentEvent.AUTH_DECLINED)
-                            .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER,
-                                    stateContext.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                            .build());
-        }
+        Long paymentId = PaymentEventEnvelope.paymentId(stateContext);
+        log.debug("Auth was called for payment {}", paymentId);
+
+        // AUTH_APPROVED / AUTH_DECLINED arrive later, in their own transaction, once the gateway and the fraud and
+        // limit checks have decided between them
+        paymentGatewayEventSender.sendWhenComplete(paymentId, stateContext.getEvent(), () -> authorizationChecks.authorize(paymentId)
+                .thenApply(approved -> approved ? PaymentEvent.AUTH_APPROVED : PaymentEvent.AUTH_DECLINED));
     }
 }
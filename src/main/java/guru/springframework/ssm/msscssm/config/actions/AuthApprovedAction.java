@@ -2,14 +2,21 @@ package guru.springframework.ssm.msscssm.config.actions;
 
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.outbox.PaymentOutbox;
+import lombok.RequiredArgsConstructor;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.stereotype.Component;
 
+@RequiredArgsConstructor
 @Component
 public class AuthApprovedAction implements Action<PaymentState, PaymentEvent> {
+
+    private final PaymentOutbox paymentOutbox;
+
     @Override
     public void execute(StateContext<PaymentState, PaymentEvent> stateContext) {
-        System.out.println("Auth Approved action fired!!");
+        // Notify downstream consumers through the outbox, in the same transaction as the state change
+        paymentOutbox.add(stateContext);
     }
 }
\ No newline at end of file
@@ -2,34 +2,30 @@ package guru.springframework.ssm.msscssm.config.actions;
 
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
-import guru.springframework.ssm.msscssm.services.PaymentServiceImpl;
-import org.springframework.messaging.support.MessageBuilder;
+import guru.springframework.ssm.msscssm.gateway.PaymentGateway;
+import guru.springframework.ssm.msscssm.services.PaymentEventEnvelope;
+import guru.springframework.ssm.msscssm.services.PaymentGatewayEventSender;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.action.Action;
 import org.springframework.stereotype.Component;
 
-import java.util.Random;
-
+@Slf4j
+@RequiredArgsConstructor
 @Component
 public class PreAuthAction implements Action<PaymentState, PaymentEvent> {
 
+    private final PaymentGateway paymentGateway;
+    private final PaymentGatewayEventSender paymentGatewayEventSender;
+
     @Override
     public void execute(StateContext<PaymentState, PaymentEvent> stateContext) {
-        System.out.println("PreAuth was called!!!");
-        if (new Random().nextInt(10) < 8) {
-            System.out.println("Approved!");
-            stateContext.getStateMachine()
-                    .sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_APPROVED)
-                            .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER,
-                                    stateContext.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                            .build());
-        } else {
-            System.out.println("Declined! No Credit!!!!!!!!");
-            stateContext.getStateMachine()
-                    .sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_DECLINED)
-                            .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER,
-                                    stateContext.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER))
-                            .build());
-        }
+        Long paymentId = PaymentEventEnvelope.paymentId(stateContext);
+        log.debug("PreAuth was called for payment {}", paymentId);
+
+        // PRE_AUTH_APPROVED / PRE_AUTH_DECLINED arrive later, in their own transaction
+        paymentGatewayEventSender.sendWhenComplete(paymentId, stateContext.getEvent(), () -> paymentGateway.preAuthorize(paymentId)
+                .thenApply(approved -> approved ? PaymentEvent.PRE_AUTH_APPROVED : PaymentEvent.PRE_AUTH_DECLINED));
     }
 }
@@ -2,7 +2,7 @@ package guru.springframework.ssm.msscssm.config.guards;
 
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
-import guru.springframework.ssm.msscssm.services.PaymentServiceImpl;
+import guru.springframework.ssm.msscssm.services.PaymentEventEnvelope;
 import org.springframework.statemachine.StateContext;
 import org.springframework.statemachine.guard.Guard;
 import org.springframework.stereotype.Component;
@@ -11,6 +11,6 @@ import org.springframework.stereotype.Component;
 public class PaymentIdGuard implements Guard<PaymentState, PaymentEvent> {
     @Override
     public boolean evaluate(StateContext<PaymentState, PaymentEvent> stateContext) {
-        return stateContext.getMessageHeader(PaymentServiceImpl.PAYMENT_ID_HEADER) != null;
+        return PaymentEventEnvelope.paymentId(stateContext) != null;
     }
 }
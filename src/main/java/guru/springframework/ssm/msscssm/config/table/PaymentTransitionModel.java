@@ -0,0 +1,74 @@
+package guru.springframework.ssm.msscssm.config.table;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.Value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The payment states and transitions as plain data, with guards and actions referred to by bean name. Generated from
+ * {@code StateMachineConfig} at build time by {@link TransitionModelGenerator} and loaded from the classpath by
+ * {@link TableStateMachineFactory}, so the table engine can start without building the Spring Statemachine model.
+ */
+@Value
+public class PaymentTransitionModel implements Serializable {
+
+    public static final String RESOURCE = "META-INF/payment-transitions.ser";
+
+    private static final long serialVersionUID = 1L;
+
+    Set<PaymentState> states;
+    PaymentState initial;
+    Set<PaymentState> ends;
+    List<TransitionDefinition> transitions;
+
+    @Value
+    public static class TransitionDefinition implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        PaymentState source;
+        PaymentEvent event;
+        PaymentState target;
+        // Bean names, null when the transition has no guard
+        String guard;
+        List<String> actions;
+    }
+
+    /**
+     * Read the model generated into {@link #RESOURCE} by the build.
+     */
+    public static PaymentTransitionModel load() {
+        InputStream resource = PaymentTransitionModel.class.getClassLoader().getResourceAsStream(RESOURCE);
+        if (resource == null) {
+            throw new IllegalStateException(RESOURCE + " is not on the classpath, it is generated in the "
+                    + "process-classes phase of the build");
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(resource)) {
+            return (PaymentTransitionModel) in.readObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + RESOURCE, e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Could not read " + RESOURCE, e);
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file); ObjectOutputStream objects = new ObjectOutputStream(out)) {
+            objects.writeObject(this);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package guru.springframework.ssm.msscssm.config.table;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.Transition;
+
+import java.util.Collection;
+
+/**
+ * Mutable {@link StateContext} owned by a single {@link TableStateMachine} and refilled for every transition, so
+ * guards and actions see the usual Spring Statemachine API without a context being allocated per event.
+ */
+class TableStateContext implements StateContext<PaymentState, PaymentEvent> {
+
+    private final TableStateMachine stateMachine;
+    private PaymentEvent event;
+    private Message<PaymentEvent> message;
+    private TransitionTable.Row row;
+
+    TableStateContext(TableStateMachine stateMachine) {
+        this.stateMachine = stateMachine;
+    }
+
+    void fill(PaymentEvent event, Message<PaymentEvent> message, TransitionTable.Row row) {
+        this.event = event;
+        this.message = message;
+        this.row = row;
+    }
+
+    void clear() {
+        fill(null, null, null);
+    }
+
+    @Override
+    public Stage getStage() {
+        return Stage.TRANSITION;
+    }
+
+    @Override
+    public Message<PaymentEvent> getMessage() {
+        return message;
+    }
+
+    @Override
+    public PaymentEvent getEvent() {
+        return event;
+    }
+
+    @Override
+    public MessageHeaders getMessageHeaders() {
+        return message == null ? null : message.getHeaders();
+    }
+
+    @Override
+    public Object getMessageHeader(Object header) {
+        if (message == null || header == null) {
+            return null;
+        }
+        return message.getHeaders().get(header instanceof String ? (String) header : header.toString());
+    }
+
+    @Override
+    public ExtendedState getExtendedState() {
+        return stateMachine.getExtendedState();
+    }
+
+    @Override
+    public Transition<PaymentState, PaymentEvent> getTransition() {
+        return row == null ? null : row.transition;
+    }
+
+    @Override
+    public StateMachine<PaymentState, PaymentEvent> getStateMachine() {
+        return stateMachine;
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getSource() {
+        return row == null ? null : row.source;
+    }
+
+    @Override
+    public Collection<State<PaymentState, PaymentEvent>> getSources() {
+        return row == null ? null : row.sources;
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getTarget() {
+        return row == null ? null : row.target;
+    }
+
+    @Override
+    public Collection<State<PaymentState, PaymentEvent>> getTargets() {
+        return row == null ? null : row.targets;
+    }
+
+    @Override
+    public Exception getException() {
+        return null;
+    }
+}
@@ -0,0 +1,396 @@
+package guru.springframework.ssm.msscssm.config.table;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+import org.springframework.statemachine.ExtendedState;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.access.StateMachineAccess;
+import org.springframework.statemachine.access.StateMachineAccessor;
+import org.springframework.statemachine.access.StateMachineFunction;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.statemachine.monitor.CompositeStateMachineMonitor;
+import org.springframework.statemachine.monitor.StateMachineMonitor;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.StateMachineInterceptor;
+import org.springframework.statemachine.transition.Transition;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Fast-path payment state machine driven by a precompiled {@link TransitionTable}. It runs the same guard and action
+ * beans and the same interceptors and listeners as the Spring Statemachine runtime, in the same order
+ * (preTransition, guard, actions, preStateChange, stateChanged, postStateChange, postTransition, with both the plain
+ * and root machine variants of the state change callbacks), and like it queues
+ * events sent from inside an action until the current transition has completed. Monitors, a relay or parent machine,
+ * a disabled initial state and a forwarded initial event behave as they do on Spring's own machines.
+ * <p>
+ * Instances are not thread safe; each one is expected to be used by one thread at a time, as the pool does.
+ */
+@Slf4j
+public class TableStateMachine implements StateMachine<PaymentState, PaymentEvent>,
+        StateMachineAccessor<PaymentState, PaymentEvent>, StateMachineAccess<PaymentState, PaymentEvent> {
+
+    private final TransitionTable table;
+    private final List<StateMachineListener<PaymentState, PaymentEvent>> listeners;
+    private final List<StateMachineInterceptor<PaymentState, PaymentEvent>> interceptors = new ArrayList<>();
+    private final UUID uuid;
+    private final String id;
+    private final TableStateContext context = new TableStateContext(this);
+    private final CompositeStateMachineMonitor<PaymentState, PaymentEvent> monitors = new CompositeStateMachineMonitor<>();
+    // Transitions and actions are only timed once a monitor wants the times
+    private boolean monitored;
+
+    // Holds either a PaymentEvent or a Message<PaymentEvent> so plain events are queued without being wrapped
+    private final ArrayDeque<Object> deferred = new ArrayDeque<>();
+
+    private ExtendedState extendedState = new DefaultExtendedState();
+    private State<PaymentState, PaymentEvent> state;
+    private boolean running;
+    private boolean complete;
+    private boolean dispatching;
+    private Exception error;
+
+    // The machine interceptors are told is the root; the one this relays for, if any
+    private StateMachine<PaymentState, PaymentEvent> relay;
+    // Reports events it does not accept itself, so this one doesn't
+    private StateMachine<PaymentState, PaymentEvent> parentMachine;
+    private boolean initialEnabled = true;
+    private Message<PaymentEvent> forwardedInitialEvent;
+
+    TableStateMachine(TransitionTable table, List<StateMachineListener<PaymentState, PaymentEvent>> listeners,
+                      UUID uuid, String id) {
+        this.table = table;
+        this.listeners = new ArrayList<>(listeners);
+        this.uuid = uuid;
+        this.id = id;
+    }
+
+    @Override
+    public void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        if (state == null && initialEnabled) {
+            state = table.getInitialState();
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).stateChanged(null, state);
+            }
+
+            // Spring reports entering the initial state as a post state change without a transition, with the
+            // forwarded initial event as its message if there is one
+            StateMachine<PaymentState, PaymentEvent> root = root();
+            for (int i = 0; i < interceptors.size(); i++) {
+                interceptors.get(i).postStateChange(state, forwardedInitialEvent, null, this);
+                interceptors.get(i).postStateChange(state, forwardedInitialEvent, null, this, root);
+            }
+        }
+
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).stateMachineStarted(this);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).stateMachineStopped(this);
+        }
+    }
+
+    @Override
+    public boolean sendEvent(PaymentEvent event) {
+        return dispatch(event, null);
+    }
+
+    @Override
+    public boolean sendEvent(Message<PaymentEvent> message) {
+        return dispatch(message.getPayload(), message);
+    }
+
+    private boolean dispatch(PaymentEvent event, Message<PaymentEvent> message) {
+        if (!running || complete || error != null) {
+            return false;
+        }
+
+        if (dispatching) {
+            // Sent from within an action: run it once the current transition is complete, as Spring does
+            deferred.add(message != null ? message : event);
+            return true;
+        }
+
+        dispatching = true;
+        try {
+            boolean accepted = fire(event, message);
+
+            Object next;
+            while ((next = deferred.poll()) != null && running && !complete) {
+                if (next instanceof Message) {
+                    @SuppressWarnings("unchecked")
+                    Message<PaymentEvent> nextMessage = (Message<PaymentEvent>) next;
+                    fire(nextMessage.getPayload(), nextMessage);
+                } else {
+                    fire((PaymentEvent) next, null);
+                }
+            }
+
+            return accepted;
+        } finally {
+            deferred.clear();
+            context.clear();
+            dispatching = false;
+        }
+    }
+
+    private boolean fire(PaymentEvent event, Message<PaymentEvent> message) {
+        if (state == null) {
+            // Started with the initial state disabled and not reset to one since
+            notAccepted(message);
+            return false;
+        }
+
+        long start = monitored ? System.currentTimeMillis() : 0;
+        TransitionTable.Row row = table.lookup(state.getId(), event);
+        if (row == null) {
+            notAccepted(message);
+            return false;
+        }
+
+        context.fill(event, message, row);
+
+        StateContext<PaymentState, PaymentEvent> stateContext = context;
+        for (int i = 0; i < interceptors.size() && stateContext != null; i++) {
+            stateContext = interceptors.get(i).preTransition(stateContext);
+        }
+        if (stateContext == null) {
+            notAccepted(message);
+            return false;
+        }
+
+        if (row.guard != null && !row.guard.evaluate(context)) {
+            notAccepted(message);
+            return false;
+        }
+
+        for (Action<PaymentState, PaymentEvent> action : row.actions) {
+            long actionStart = monitored ? System.currentTimeMillis() : 0;
+            try {
+                action.execute(context);
+            } catch (Exception e) {
+                log.warn("Aborting transition {} as action {} failed", row.transition, action, e);
+                return false;
+            } finally {
+                if (monitored) {
+                    monitors.action(this, action, System.currentTimeMillis() - actionStart);
+                }
+            }
+        }
+
+        StateMachine<PaymentState, PaymentEvent> root = root();
+        for (int i = 0; i < interceptors.size(); i++) {
+            interceptors.get(i).preStateChange(row.target, message, row.transition, this);
+            interceptors.get(i).preStateChange(row.target, message, row.transition, this, root);
+        }
+
+        State<PaymentState, PaymentEvent> source = state;
+        state = row.target;
+        complete = table.isEnd(state.getId());
+
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).transition(row.transition);
+            listeners.get(i).stateChanged(source, state);
+        }
+
+        for (int i = 0; i < interceptors.size(); i++) {
+            interceptors.get(i).postStateChange(row.target, message, row.transition, this);
+            interceptors.get(i).postStateChange(row.target, message, row.transition, this, root);
+        }
+
+        for (int i = 0; i < interceptors.size(); i++) {
+            interceptors.get(i).postTransition(context);
+        }
+        if (monitored) {
+            monitors.transition(this, row.transition, System.currentTimeMillis() - start);
+        }
+
+        if (complete) {
+            // Reaching a terminal state stops the machine, just like the Spring runtime
+            stop();
+        }
+
+        return true;
+    }
+
+    private void notAccepted(Message<PaymentEvent> message) {
+        if (message == null || parentMachine != null) {
+            return;
+        }
+
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).eventNotAccepted(message);
+        }
+    }
+
+    private StateMachine<PaymentState, PaymentEvent> root() {
+        return relay != null ? relay : this;
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getState() {
+        return state;
+    }
+
+    @Override
+    public Collection<State<PaymentState, PaymentEvent>> getStates() {
+        return table.getStates();
+    }
+
+    @Override
+    public Collection<Transition<PaymentState, PaymentEvent>> getTransitions() {
+        return table.getTransitions();
+    }
+
+    @Override
+    public State<PaymentState, PaymentEvent> getInitialState() {
+        return table.getInitialState();
+    }
+
+    @Override
+    public ExtendedState getExtendedState() {
+        return extendedState;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void setStateMachineError(Exception exception) {
+        this.error = exception;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).stateMachineError(this, exception);
+        }
+    }
+
+    @Override
+    public boolean hasStateMachineError() {
+        return error != null;
+    }
+
+    @Override
+    public void addStateListener(StateMachineListener<PaymentState, PaymentEvent> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeStateListener(StateMachineListener<PaymentState, PaymentEvent> listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public StateMachineAccessor<PaymentState, PaymentEvent> getStateMachineAccessor() {
+        return this;
+    }
+
+    // StateMachineAccessor: a table machine has a single region, which is the machine itself
+
+    @Override
+    public void doWithAllRegions(StateMachineFunction<StateMachineAccess<PaymentState, PaymentEvent>> stateMachineAccess) {
+        stateMachineAccess.apply(this);
+    }
+
+    @Override
+    public List<StateMachineAccess<PaymentState, PaymentEvent>> withAllRegions() {
+        return Collections.singletonList(this);
+    }
+
+    @Override
+    public void doWithRegion(StateMachineFunction<StateMachineAccess<PaymentState, PaymentEvent>> stateMachineAccess) {
+        stateMachineAccess.apply(this);
+    }
+
+    @Override
+    public StateMachineAccess<PaymentState, PaymentEvent> withRegion() {
+        return this;
+    }
+
+    // StateMachineAccess
+
+    @Override
+    public void resetStateMachine(StateMachineContext<PaymentState, PaymentEvent> stateMachineContext) {
+        PaymentState resetTo = stateMachineContext == null || stateMachineContext.getState() == null
+                ? table.getInitialState().getId()
+                : stateMachineContext.getState();
+
+        state = table.getState(resetTo);
+        complete = table.isEnd(resetTo);
+        error = null;
+        extendedState = stateMachineContext == null || stateMachineContext.getExtendedState() == null
+                ? new DefaultExtendedState()
+                : stateMachineContext.getExtendedState();
+    }
+
+    @Override
+    public void addStateMachineInterceptor(StateMachineInterceptor<PaymentState, PaymentEvent> interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    @Override
+    public void setRelay(StateMachine<PaymentState, PaymentEvent> stateMachine) {
+        this.relay = stateMachine;
+    }
+
+    @Override
+    public void addStateMachineMonitor(StateMachineMonitor<PaymentState, PaymentEvent> stateMachineMonitor) {
+        monitors.register(stateMachineMonitor);
+        monitored = true;
+    }
+
+    @Override
+    public void setInitialEnabled(boolean enabled) {
+        this.initialEnabled = enabled;
+    }
+
+    @Override
+    public void setForwardedInitialEvent(Message<PaymentEvent> message) {
+        this.forwardedInitialEvent = message;
+    }
+
+    @Override
+    public void setParentMachine(StateMachine<PaymentState, PaymentEvent> stateMachine) {
+        this.parentMachine = stateMachine;
+    }
+
+    @Override
+    public String toString() {
+        return "TableStateMachine [id=" + id + ", uuid=" + uuid + ", state=" + (state == null ? null : state.getId()) + "]";
+    }
+}
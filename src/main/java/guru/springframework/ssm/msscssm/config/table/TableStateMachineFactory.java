@@ -0,0 +1,65 @@
+package guru.springframework.ssm.msscssm.config.table;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.statemachine.listener.StateMachineListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Builds {@link TableStateMachine}s. The transition table is compiled once, from a prototype machine obtained from
+ * the regular Spring {@link StateMachineFactory}, so both engines always share one configuration. With the
+ * PRECOMPILED model it is loaded from the {@link PaymentTransitionModel} generated from that same configuration at
+ * build time instead, and the Spring factory is never created.
+ * <p>
+ * Deliberately does not implement {@link StateMachineFactory} so that injecting that type still resolves to the
+ * Spring runtime.
+ */
+@Component
+public class TableStateMachineFactory {
+
+    private final TransitionTable table;
+    private final List<StateMachineListener<PaymentState, PaymentEvent>> listeners;
+
+    @SuppressWarnings("unchecked")
+    public TableStateMachineFactory(ObjectProvider<StateMachineFactory<PaymentState, PaymentEvent>> stateMachineFactory,
+                                    ObjectProvider<StateMachineListener<PaymentState, PaymentEvent>> listeners,
+                                    BeanFactory beanFactory,
+                                    PaymentStateMachineMetrics metrics,
+                                    PaymentStateMachineProperties properties) {
+        // Guards and actions are timed under their bean names, as in StateMachineConfig
+        this.table = properties.getModel() == PaymentStateMachineProperties.Model.PRECOMPILED
+                ? TransitionTable.load(PaymentTransitionModel.load(),
+                        name -> metrics.timed(name, beanFactory.getBean(name, Guard.class)),
+                        name -> metrics.timed(name, beanFactory.getBean(name, Action.class)))
+                : TransitionTable.compile(stateMachineFactory.getObject().getStateMachine());
+        this.listeners = listeners.orderedStream().collect(Collectors.toList());
+    }
+
+    public StateMachine<PaymentState, PaymentEvent> getStateMachine() {
+        return getStateMachine((String) null);
+    }
+
+    public StateMachine<PaymentState, PaymentEvent> getStateMachine(String machineId) {
+        return new TableStateMachine(table, listeners, UUID.randomUUID(), machineId);
+    }
+
+    public StateMachine<PaymentState, PaymentEvent> getStateMachine(UUID uuid) {
+        return new TableStateMachine(table, listeners, uuid, null);
+    }
+
+    public TransitionTable getTable() {
+        return table;
+    }
+}
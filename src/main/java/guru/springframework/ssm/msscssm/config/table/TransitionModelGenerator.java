@@ -0,0 +1,136 @@
+package guru.springframework.ssm.msscssm.config.table;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics;
+import guru.springframework.ssm.msscssm.config.StateMachineConfig;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.statemachine.StateContext;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.config.StateMachineBuilder;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.statemachine.state.PseudoStateKind;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.Transition;
+import org.springframework.statemachine.transition.TransitionKind;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the DSL in {@link StateMachineConfig} outside of Spring and writes the result as a
+ * {@link PaymentTransitionModel}. Run by the build in the process-classes phase, with the output directory as its
+ * only argument.
+ * <p>
+ * Guards and actions are recorded by the names {@code StateMachineConfig} times them under, which by convention are
+ * also their bean names.
+ */
+@Slf4j
+public final class TransitionModelGenerator {
+
+    private TransitionModelGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Thrown rather than exiting: the build runs this inside the Maven JVM, and fails on the exception
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: TransitionModelGenerator <output directory>");
+        }
+        Path file = Paths.get(args[0], PaymentTransitionModel.RESOURCE);
+        generate().write(file);
+        log.info("Wrote the payment transition model to {}", file);
+    }
+
+    public static PaymentTransitionModel generate() throws Exception {
+        // Only the metrics are used while configuring states and transitions, they hand back named placeholders
+        StateMachineConfig config = new StateMachineConfig(null, null, null, null, null, null, null,
+                new NamingMetrics(), null);
+
+        StateMachineBuilder.Builder<PaymentState, PaymentEvent> builder = StateMachineBuilder.builder();
+        config.configure(builder.configureStates());
+        config.configure(builder.configureTransitions());
+        StateMachine<PaymentState, PaymentEvent> machine = builder.build();
+
+        Set<PaymentState> states = EnumSet.noneOf(PaymentState.class);
+        Set<PaymentState> ends = EnumSet.noneOf(PaymentState.class);
+        for (State<PaymentState, PaymentEvent> state : machine.getStates()) {
+            states.add(state.getId());
+            if (state.getPseudoState() != null && state.getPseudoState().getKind() == PseudoStateKind.END) {
+                ends.add(state.getId());
+            }
+        }
+
+        List<PaymentTransitionModel.TransitionDefinition> transitions = new ArrayList<>();
+        for (Transition<PaymentState, PaymentEvent> transition : machine.getTransitions()) {
+            if (transition.getKind() != TransitionKind.EXTERNAL || transition.getTrigger() == null
+                    || transition.getTrigger().getEvent() == null) {
+                throw new IllegalStateException("Only event triggered external transitions can be generated: " + transition);
+            }
+
+            List<String> actions = new ArrayList<>();
+            if (transition.getActions() != null) {
+                transition.getActions().forEach(action -> actions.add(((NamedAction) action).name));
+            }
+            transitions.add(new PaymentTransitionModel.TransitionDefinition(transition.getSource().getId(),
+                    transition.getTrigger().getEvent(), transition.getTarget().getId(),
+                    transition.getGuard() == null ? null : ((NamedGuard) transition.getGuard()).name, actions));
+        }
+        // Same bytes on every build
+        transitions.sort(Comparator.comparing(PaymentTransitionModel.TransitionDefinition::getSource)
+                .thenComparing(PaymentTransitionModel.TransitionDefinition::getEvent));
+
+        return new PaymentTransitionModel(states, machine.getInitialState().getId(), ends, transitions);
+    }
+
+    private static class NamingMetrics extends PaymentStateMachineMetrics {
+
+        NamingMetrics() {
+            super(new SimpleMeterRegistry());
+        }
+
+        @Override
+        public Guard<PaymentState, PaymentEvent> timed(String name, Guard<PaymentState, PaymentEvent> guard) {
+            return new NamedGuard(name);
+        }
+
+        @Override
+        public Action<PaymentState, PaymentEvent> timed(String name, Action<PaymentState, PaymentEvent> action) {
+            return new NamedAction(name);
+        }
+    }
+
+    private static class NamedGuard implements Guard<PaymentState, PaymentEvent> {
+
+        final String name;
+
+        NamedGuard(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean evaluate(StateContext<PaymentState, PaymentEvent> context) {
+            throw new UnsupportedOperationException("Placeholder for the " + name + " bean");
+        }
+    }
+
+    private static class NamedAction implements Action<PaymentState, PaymentEvent> {
+
+        final String name;
+
+        NamedAction(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void execute(StateContext<PaymentState, PaymentEvent> context) {
+            throw new UnsupportedOperationException("Placeholder for the " + name + " bean");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package guru.springframework.ssm.msscssm.config.table;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
+import org.springframework.statemachine.guard.Guard;
+import org.springframework.statemachine.state.DefaultPseudoState;
+import org.springframework.statemachine.state.ObjectState;
+import org.springframework.statemachine.state.PseudoStateKind;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.transition.DefaultExternalTransition;
+import org.springframework.statemachine.transition.Transition;
+import org.springframework.statemachine.transition.TransitionKind;
+import org.springframework.statemachine.trigger.EventTrigger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Immutable (state, event) -> (target, guard, actions) lookup table, compiled either from the transitions of a machine
+ * built by the Spring Statemachine factory or from the {@link PaymentTransitionModel} generated at build time; both
+ * mirror what {@code StateMachineConfig} declares.
+ */
+public class TransitionTable {
+
+    private final Row[][] rows = new Row[PaymentState.values().length][PaymentEvent.values().length];
+    private final Map<PaymentState, State<PaymentState, PaymentEvent>> states = new EnumMap<>(PaymentState.class);
+    private final boolean[] end = new boolean[PaymentState.values().length];
+    private final State<PaymentState, PaymentEvent> initialState;
+    private final Collection<Transition<PaymentState, PaymentEvent>> transitions;
+
+    private TransitionTable(Collection<State<PaymentState, PaymentEvent>> states,
+                            State<PaymentState, PaymentEvent> initialState,
+                            Collection<Transition<PaymentState, PaymentEvent>> transitions) {
+        for (State<PaymentState, PaymentEvent> state : states) {
+            this.states.put(state.getId(), state);
+            end[state.getId().ordinal()] = state.getPseudoState() != null
+                    && state.getPseudoState().getKind() == PseudoStateKind.END;
+        }
+
+        for (Transition<PaymentState, PaymentEvent> transition : transitions) {
+            if (transition.getKind() != TransitionKind.EXTERNAL || transition.getTrigger() == null
+                    || transition.getTrigger().getEvent() == null) {
+                throw new IllegalStateException("Only event triggered external transitions can be compiled: " + transition);
+            }
+
+            PaymentState source = transition.getSource().getId();
+            PaymentEvent event = transition.getTrigger().getEvent();
+            if (rows[source.ordinal()][event.ordinal()] != null) {
+                throw new IllegalStateException("More than one transition from " + source + " on " + event);
+            }
+
+            rows[source.ordinal()][event.ordinal()] = new Row(transition);
+        }
+
+        this.initialState = initialState;
+        this.transitions = Collections.unmodifiableCollection(transitions);
+    }
+
+    public static TransitionTable compile(StateMachine<PaymentState, PaymentEvent> prototype) {
+        return new TransitionTable(prototype.getStates(), prototype.getInitialState(), prototype.getTransitions());
+    }
+
+    /**
+     * Build the table straight from a precompiled model, looking its guards and actions up by name.
+     */
+    public static TransitionTable load(PaymentTransitionModel model,
+                                       Function<String, Guard<PaymentState, PaymentEvent>> guards,
+                                       Function<String, Action<PaymentState, PaymentEvent>> actions) {
+        Map<PaymentState, State<PaymentState, PaymentEvent>> states = new EnumMap<>(PaymentState.class);
+        for (PaymentState id : model.getStates()) {
+            PseudoStateKind kind = id == model.getInitial() ? PseudoStateKind.INITIAL
+                    : model.getEnds().contains(id) ? PseudoStateKind.END : null;
+            states.put(id, kind == null ? new ObjectState<>(id) : new ObjectState<>(id, new DefaultPseudoState<>(kind)));
+        }
+
+        List<Transition<PaymentState, PaymentEvent>> transitions = new ArrayList<>();
+        for (PaymentTransitionModel.TransitionDefinition definition : model.getTransitions()) {
+            List<Action<PaymentState, PaymentEvent>> transitionActions = new ArrayList<>();
+            definition.getActions().forEach(name -> transitionActions.add(actions.apply(name)));
+            transitions.add(new DefaultExternalTransition<>(states.get(definition.getSource()),
+                    states.get(definition.getTarget()), transitionActions, definition.getEvent(),
+                    definition.getGuard() == null ? null : guards.apply(definition.getGuard()),
+                    new EventTrigger<>(definition.getEvent())));
+        }
+
+        return new TransitionTable(states.values(), states.get(model.getInitial()), transitions);
+    }
+
+    /**
+     * @return the transition for this state and event, or null if the event is not accepted in that state
+     */
+    public Row lookup(PaymentState state, PaymentEvent event) {
+        return rows[state.ordinal()][event.ordinal()];
+    }
+
+    public State<PaymentState, PaymentEvent> getState(PaymentState state) {
+        return states.get(state);
+    }
+
+    public Collection<State<PaymentState, PaymentEvent>> getStates() {
+        return Collections.unmodifiableCollection(states.values());
+    }
+
+    public boolean isEnd(PaymentState state) {
+        return end[state.ordinal()];
+    }
+
+    public State<PaymentState, PaymentEvent> getInitialState() {
+        return initialState;
+    }
+
+    public Collection<Transition<PaymentState, PaymentEvent>> getTransitions() {
+        return transitions;
+    }
+
+    public static final class Row {
+        final Transition<PaymentState, PaymentEvent> transition;
+        final State<PaymentState, PaymentEvent> source;
+        final State<PaymentState, PaymentEvent> target;
+        final Guard<PaymentState, PaymentEvent> guard;
+        final Action<PaymentState, PaymentEvent>[] actions;
+
+        // Kept so StateContext.getSources()/getTargets() don't allocate per event
+        final List<State<PaymentState, PaymentEvent>> sources;
+        final List<State<PaymentState, PaymentEvent>> targets;
+
+        @SuppressWarnings("unchecked")
+        private Row(Transition<PaymentState, PaymentEvent> transition) {
+            this.transition = transition;
+            this.source = transition.getSource();
+            this.target = transition.getTarget();
+            this.guard = transition.getGuard();
+            this.actions = transition.getActions() == null
+                    ? new Action[0]
+                    : transition.getActions().toArray(new Action[0]);
+            this.sources = Collections.singletonList(source);
+            this.targets = Collections.singletonList(target);
+        }
+
+        public PaymentState getTarget() {
+            return target.getId();
+        }
+    }
+}
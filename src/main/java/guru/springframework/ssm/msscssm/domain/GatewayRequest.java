@@ -0,0 +1,38 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * A gateway call an action started for a payment, written in the transaction of the event that made it. The row
+ * stays after the answer is delivered; a payment that has left the state it waited in shows that it was.
+ * <p>
+ * Found by event and awaiting since when looking for payments that have waited too long, see PaymentTimeoutScheduler.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = @Index(name = "gateway_request_awaiting_idx", columnList = "event, awaitingSince"))
+public class GatewayRequest {
+
+    // One call at a time per payment; a new one replaces the last
+    @Id
+    private Long paymentId;
+
+    // The event whose action made the call
+    @Enumerated(EnumType.STRING)
+    private PaymentEvent event;
+
+    // When the latest attempt at the call was made; recovery makes it again once this is old enough
+    private Instant requested;
+
+    // When the first attempt was made. Making the same call again, to retry or recover it, leaves this as it was
+    private Instant awaitingSince;
+}
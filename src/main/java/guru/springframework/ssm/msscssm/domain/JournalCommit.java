@@ -0,0 +1,41 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import java.io.Serializable;
+
+/**
+ * A transaction whose payment transitions the journal wrote just before it committed, inserted in that same
+ * transaction. Replaying the journal after a crash takes the transitions only if this row made it; it is deleted
+ * once they are applied. See PaymentTransitionJournal.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@IdClass(JournalCommit.Key.class)
+public class JournalCommit {
+
+    // Set when the journal's file is created, so journals sharing the database keep apart
+    @Id
+    private Long journal;
+
+    // The journal's epoch in the high half, the position of the transaction's first record in the low half
+    @Id
+    private Long firstRecord;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private Long journal;
+        private Long firstRecord;
+    }
+}
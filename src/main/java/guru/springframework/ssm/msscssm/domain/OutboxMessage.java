@@ -0,0 +1,40 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * Notification about a payment decision, waiting in the outbox until the relay has handed it to the publisher.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class OutboxMessage {
+
+    // Stable across retries, so consumers can recognise a message they have already seen
+    @Id
+    @SequenceGenerator(name = "outbox_message_seq", sequenceName = "outbox_message_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_message_seq")
+    private Long id;
+
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentEvent event;
+
+    // State the event moved the payment to
+    @Enumerated(EnumType.STRING)
+    private PaymentState state;
+
+    private Instant created;
+
+    // Failed attempts to publish so far
+    private int attempts;
+}
@@ -4,24 +4,43 @@ import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.DynamicUpdate;
 
 import javax.persistence.*;
 import java.math.BigDecimal;
+import java.time.Instant;
 
 @Data
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
+// Dynamic so a state change is flushed as a targeted update of state (and version), not every column
+@DynamicUpdate
 @Entity
+// By state: counts and exports by state (and creation time) read just the matching range
+@Table(indexes = @Index(name = "payment_state_created_idx", columnList = "state, created"))
 public class Payment {
 
+    // Pooled: Hibernate takes a block of ids per sequence call (see hibernate.id.optimizer.pooled.preferred), which
+    // bulk ingestion depends on. A value taken from the sequence directly starts a block and is safe to use as an id.
     @Id
-    @GeneratedValue
+    @SequenceGenerator(name = "payment_seq", sequenceName = "payment_seq", allocationSize = 50)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "payment_seq")
     private Long id;
 
     @Enumerated(EnumType.STRING)
     private PaymentState state;
 
+    @Column(updatable = false)
+    private Instant created;
+
+    // When the payment last moved to a different state
+    private Instant stateEnteredAt;
+
     private BigDecimal amount;
 
+    // Optimistic check so concurrent transitions of the same payment cannot silently overwrite each other
+    @Version
+    private Integer version;
+
 }
@@ -0,0 +1,26 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Last state machine context of a payment, encoded by PaymentContextCodec. Mapped so the table is created with the
+ * schema; it is read and written through JDBC by PaymentContextStore.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class PaymentContext {
+
+    @Id
+    private Long paymentId;
+
+    @Column(length = 4096)
+    private byte[] context;
+}
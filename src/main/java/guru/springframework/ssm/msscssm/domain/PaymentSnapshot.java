@@ -0,0 +1,29 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * State of a payment as of one of its transitions; the payment's current state is this plus any later transitions.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+public class PaymentSnapshot {
+
+    @Id
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentState state;
+
+    // Last transition folded into this snapshot
+    private Long transitionId;
+
+    private Instant created;
+}
@@ -0,0 +1,14 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.Value;
+
+/**
+ * How many payments are in a state.
+ */
+@Value
+public class PaymentStateCount {
+
+    PaymentState state;
+
+    long payments;
+}
@@ -0,0 +1,21 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * The columns of a payment that exports need, read straight from the query rather than through a managed entity.
+ */
+@Value
+public class PaymentSummary {
+
+    Long id;
+
+    PaymentState state;
+
+    BigDecimal amount;
+
+    Instant created;
+}
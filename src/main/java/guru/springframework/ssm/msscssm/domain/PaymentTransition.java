@@ -0,0 +1,41 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * One state change of a payment and the event that caused it. Rows are only ever inserted, see PaymentHistory.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(indexes = @Index(name = "payment_transition_payment_idx", columnList = "paymentId, id"))
+public class PaymentTransition {
+
+    // Ascending in commit order per payment, which is what replay and snapshots rely on
+    @Id
+    @SequenceGenerator(name = "payment_transition_seq", sequenceName = "payment_transition_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "payment_transition_seq")
+    private Long id;
+
+    private Long paymentId;
+
+    // Null for a payment's first recorded transition when the source state was not known
+    @Enumerated(EnumType.STRING)
+    private PaymentState fromState;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentState toState;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentEvent event;
+
+    private Instant created;
+}
@@ -0,0 +1,36 @@
+package guru.springframework.ssm.msscssm.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * An event sent with an idempotency key and the state it left the payment in, so a retry with the same key is
+ * answered without running the machine again.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+// Expired keys are purged by creation time
+@Table(indexes = @Index(name = "processed_event_created_idx", columnList = "created"))
+public class ProcessedEvent {
+
+    @Id
+    private String idempotencyKey;
+
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentEvent event;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentState state;
+
+    private Instant created;
+}
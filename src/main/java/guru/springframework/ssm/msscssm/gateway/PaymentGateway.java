@@ -0,0 +1,14 @@
+package guru.springframework.ssm.msscssm.gateway;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Remote processor that makes the approve/decline decisions. Implementations must not block the calling thread; the
+ * returned future completes with true if the payment was approved.
+ */
+public interface PaymentGateway {
+
+    CompletableFuture<Boolean> preAuthorize(Long paymentId);
+
+    CompletableFuture<Boolean> authorize(Long paymentId);
+}
@@ -0,0 +1,22 @@
+package guru.springframework.ssm.msscssm.gateway;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "payment.gateway")
+public class PaymentGatewayProperties {
+
+    private Stub stub = new Stub();
+
+    @Data
+    public static class Stub {
+        // Simulated round trip to the gateway
+        private Duration latency = Duration.ZERO;
+
+        // Share of requests the stub approves, between 0 and 1
+        private double approvalRate = 0.8;
+    }
+}
@@ -0,0 +1,36 @@
+package guru.springframework.ssm.msscssm.gateway;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for the real gateway that approves a configurable share of requests after a configurable delay.
+ */
+@RequiredArgsConstructor
+@Component
+public class StubPaymentGateway implements PaymentGateway {
+
+    private final PaymentGatewayProperties properties;
+
+    @Override
+    public CompletableFuture<Boolean> preAuthorize(Long paymentId) {
+        return decide();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> authorize(Long paymentId) {
+        return decide();
+    }
+
+    private CompletableFuture<Boolean> decide() {
+        PaymentGatewayProperties.Stub stub = properties.getStub();
+        Executor delayed = CompletableFuture.delayedExecutor(stub.getLatency().toNanos(), TimeUnit.NANOSECONDS);
+
+        return CompletableFuture.supplyAsync(() -> ThreadLocalRandom.current().nextDouble() < stub.getApprovalRate(), delayed);
+    }
+}
@@ -0,0 +1,57 @@
+package guru.springframework.ssm.msscssm.outbox;
+
+import guru.springframework.ssm.msscssm.domain.OutboxMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process stand-in for a broker. Published messages wait in a bounded queue until a consumer takes them; while it
+ * is full whole batches are rejected, which makes the relay back off, and a configurable share of batches fails to
+ * exercise retries.
+ * <p>
+ * Only enabled on request: nothing but a test consumer ever takes from the queue, so left on its own it fills up and
+ * from then on rejects every batch.
+ */
+@ConditionalOnProperty(prefix = "payment.outbox.in-memory", name = "enabled", havingValue = "true")
+@Component
+public class InMemoryOutboxPublisher implements OutboxPublisher {
+
+    private final BlockingQueue<OutboxMessage> published;
+    private final double failureRate;
+
+    public InMemoryOutboxPublisher(OutboxProperties properties) {
+        this.published = new ArrayBlockingQueue<>(properties.getInMemory().getCapacity());
+        this.failureRate = properties.getInMemory().getFailureRate();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> publish(List<OutboxMessage> messages) {
+        if (published.remainingCapacity() < messages.size()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    "In-memory outbox publisher is full, " + published.size() + " messages waiting for consumers"));
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Simulated publish failure"));
+        }
+
+        published.addAll(messages);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Take up to max published messages, as a consumer would.
+     */
+    public List<OutboxMessage> take(int max) {
+        List<OutboxMessage> messages = new ArrayList<>();
+        published.drainTo(messages, max);
+        return messages;
+    }
+}
@@ -0,0 +1,44 @@
+package guru.springframework.ssm.msscssm.outbox;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "payment.outbox")
+public class OutboxProperties {
+
+    private Relay relay = new Relay();
+
+    private InMemory inMemory = new InMemory();
+
+    @Data
+    public static class Relay {
+        // Messages read from the outbox and published per batch
+        private int batchSize = 100;
+
+        // How long the relay sleeps once the outbox is empty
+        private Duration pollInterval = Duration.ofMillis(100);
+
+        // How long the relay waits for the publisher to accept a batch before retrying it
+        private Duration publishTimeout = Duration.ofSeconds(5);
+
+        // Wait before retrying a batch the publisher failed or rejected; doubles on every failure in a row
+        private Duration initialBackoff = Duration.ofMillis(100);
+
+        private Duration maxBackoff = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class InMemory {
+        // Publish to an in-process queue that only tests consume; otherwise another OutboxPublisher bean is needed
+        private boolean enabled = false;
+
+        // Messages the in-memory publisher holds until consumers take them; full means batches are rejected
+        private int capacity = 100_000;
+
+        // Share of batches the in-memory publisher fails, between 0 and 1, to exercise retries
+        private double failureRate = 0;
+    }
+}
@@ -0,0 +1,16 @@
+package guru.springframework.ssm.msscssm.outbox;
+
+import guru.springframework.ssm.msscssm.domain.OutboxMessage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Downstream channel payment notifications are published to, e.g. a message broker. Implementations must not block
+ * the calling thread. The returned future completes once the whole batch has been accepted; if it fails, none of the
+ * batch may have been delivered, as the relay retries all of it.
+ */
+public interface OutboxPublisher {
+
+    CompletableFuture<Void> publish(List<OutboxMessage> messages);
+}
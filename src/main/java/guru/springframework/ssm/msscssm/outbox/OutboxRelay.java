@@ -0,0 +1,144 @@
+package guru.springframework.ssm.msscssm.outbox;
+
+import guru.springframework.ssm.msscssm.domain.OutboxMessage;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Publishes outbox messages in id order and deletes them once the publisher has accepted them, so a committed message
+ * is published at least once. It is published exactly once unless the relay dies between publishing and deleting,
+ * or a batch the publisher timed out on still goes through; consumers can tell repeats by the message id.
+ * <p>
+ * Only one batch is in flight at a time. When the publisher fails, rejects or times out a batch, the relay retries the
+ * same batch after an exponential backoff rather than moving on, which keeps notifications in order and lets a
+ * saturated publisher slow the relay down. Meanwhile new messages simply wait in the table; the payment path never
+ * waits for the publisher. Run one relay per database, two would publish the same rows.
+ * <p>
+ * Without an {@link OutboxPublisher} bean the relay does not run, and messages stay in the outbox until one is added.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+public class OutboxRelay {
+
+    private static final String BATCH_SQL = "select id, payment_id, event, state, created, attempts "
+            + "from outbox_message order by id limit ?";
+    private static final String DELETE_SQL = "delete from outbox_message where id = ?";
+    private static final String FAILED_SQL = "update outbox_message set attempts = attempts + 1 where id = ?";
+
+    private static final RowMapper<OutboxMessage> MESSAGE_MAPPER = (rs, rowNum) -> OutboxMessage.builder()
+            .id(rs.getLong(1))
+            .paymentId(rs.getObject(2, Long.class))
+            .event(PaymentEvent.valueOf(rs.getString(3)))
+            .state(PaymentState.valueOf(rs.getString(4)))
+            .created(rs.getTimestamp(5).toInstant())
+            .attempts(rs.getInt(6))
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Optional<OutboxPublisher> publisher;
+    private final int batchSize;
+    private final long pollIntervalMillis;
+    private final long publishTimeoutMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private volatile boolean running;
+    private Thread relay;
+
+    public OutboxRelay(JdbcTemplate jdbcTemplate, Optional<OutboxPublisher> publisher, OutboxProperties properties) {
+        OutboxProperties.Relay relay = properties.getRelay();
+        this.jdbcTemplate = jdbcTemplate;
+        this.publisher = publisher;
+        this.batchSize = relay.getBatchSize();
+        this.pollIntervalMillis = relay.getPollInterval().toMillis();
+        this.publishTimeoutMillis = relay.getPublishTimeout().toMillis();
+        this.initialBackoffMillis = relay.getInitialBackoff().toMillis();
+        this.maxBackoffMillis = relay.getMaxBackoff().toMillis();
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!publisher.isPresent()) {
+            log.warn("No outbox publisher configured, payment notifications will stay in the outbox");
+            return;
+        }
+        running = true;
+        relay = new Thread(this::relayLoop, "payment-outbox-relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (relay == null) {
+            return;
+        }
+        running = false;
+        relay.interrupt();
+        relay.join();
+    }
+
+    /**
+     * @return the number of messages not published yet
+     */
+    public long pending() {
+        return jdbcTemplate.queryForObject("select count(*) from outbox_message", Long.class);
+    }
+
+    private void relayLoop() {
+        long backoffMillis = initialBackoffMillis;
+        while (running) {
+            try {
+                if (relayBatch()) {
+                    backoffMillis = initialBackoffMillis;
+                } else {
+                    Thread.sleep(pollIntervalMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException | ExecutionException | TimeoutException e) {
+                log.warn("Could not publish outbox messages, retrying in {}ms: {}", backoffMillis, e.toString());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+            }
+        }
+    }
+
+    // Returns false if the outbox was empty
+    private boolean relayBatch() throws InterruptedException, ExecutionException, TimeoutException {
+        List<OutboxMessage> batch = jdbcTemplate.query(BATCH_SQL, MESSAGE_MAPPER, batchSize);
+        if (batch.isEmpty()) {
+            return false;
+        }
+
+        List<Long> ids = batch.stream().map(OutboxMessage::getId).collect(Collectors.toList());
+        try {
+            publisher.get().publish(batch).get(publishTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            jdbcTemplate.batchUpdate(FAILED_SQL, ids, ids.size(), (ps, id) -> ps.setLong(1, id));
+            throw e;
+        }
+
+        jdbcTemplate.batchUpdate(DELETE_SQL, ids, ids.size(), (ps, id) -> ps.setLong(1, id));
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package guru.springframework.ssm.msscssm.outbox;
+
+import guru.springframework.ssm.msscssm.domain.OutboxMessage;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.BeforeCommitBuffer;
+import guru.springframework.ssm.msscssm.services.PaymentEventEnvelope;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.statemachine.StateContext;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Writes payment notifications to the outbox_message table in the transaction that changes the payment, so a
+ * notification goes out if and only if the change commits. Publishing is left to {@link OutboxRelay}.
+ */
+@RequiredArgsConstructor
+@Component
+public class PaymentOutbox {
+
+    private static final String INSERT_SQL = "insert into outbox_message (id, payment_id, event, state, created, attempts) "
+            + "values (next value for outbox_message_seq, ?, ?, ?, ?, 0)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Queue a notification of the event being handled and the state it leads to.
+     */
+    public void add(StateContext<PaymentState, PaymentEvent> stateContext) {
+        add(PaymentEventEnvelope.paymentId(stateContext), stateContext.getEvent(),
+                stateContext.getTarget().getId());
+    }
+
+    public void add(Long paymentId, PaymentEvent event, PaymentState state) {
+        OutboxMessage message = OutboxMessage.builder()
+                .paymentId(paymentId)
+                .event(event)
+                .state(state)
+                .created(Instant.now())
+                .build();
+
+        // Batched with the rest of the transaction's notifications, e.g. a whole sendEvents batch
+        BeforeCommitBuffer.add(this, message, this::insert);
+    }
+
+    private void insert(List<OutboxMessage> messages) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, messages, messages.size(), (ps, message) -> {
+            ps.setObject(1, message.getPaymentId());
+            ps.setString(2, message.getEvent().name());
+            ps.setString(3, message.getState().name());
+            ps.setTimestamp(4, Timestamp.from(message.getCreated()));
+        });
+    }
+}
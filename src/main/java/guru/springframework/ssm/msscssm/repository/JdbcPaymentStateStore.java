@@ -0,0 +1,129 @@
+package guru.springframework.ssm.msscssm.repository;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityNotFoundException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Payments as plain rows, read and written through JDBC without a persistence context: no proxies, snapshots or
+ * dirty checking, and nothing to flush at commit.
+ * <p>
+ * Each new state is written with a compare-and-set on the state the payment was loaded in, so a payment another
+ * event moved meanwhile fails the write instead of being overwritten; the version is still bumped for JPA readers.
+ * Every statement is a constant string, ids included, so H2 parses each once per connection and reuses it, and a
+ * batch's states go out as one JDBC batch per batch.size payments.
+ */
+@ConditionalOnProperty(prefix = "payment.statemachine", name = "store", havingValue = "jdbc")
+@Component
+public class JdbcPaymentStateStore implements PaymentStateStore {
+
+    private static final String SELECT_SQL = "select id, state, created, state_entered_at, amount, version from payment ";
+    private static final String LOAD_SQL = SELECT_SQL + "where id = ?";
+    // One array parameter rather than an IN list, which would be a different statement for every batch size
+    private static final String LOAD_ALL_SQL = SELECT_SQL + "where id = any(?)";
+    private static final String CAS_SQL =
+            "update payment set state = ?, state_entered_at = ?, version = version + 1 where id = ? and state = ?";
+    private static final String UPDATE_SQL =
+            "update payment set state = ?, state_entered_at = ?, version = version + 1 where id = ?";
+
+    private static final RowMapper<Payment> PAYMENT_MAPPER = (rs, rowNum) -> Payment.builder()
+            .id(rs.getLong(1))
+            .state(rs.getString(2) == null ? null : PaymentState.valueOf(rs.getString(2)))
+            .created(instant(rs.getTimestamp(3)))
+            .stateEnteredAt(instant(rs.getTimestamp(4)))
+            .amount(rs.getBigDecimal(5))
+            .version(rs.getObject(6) == null ? null : rs.getInt(6))
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int batchSize;
+
+    public JdbcPaymentStateStore(JdbcTemplate jdbcTemplate, PaymentStateMachineProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.batchSize = properties.getBatch().getSize();
+    }
+
+    @Override
+    public Payment load(Long paymentId) {
+        List<Payment> payments = jdbcTemplate.query(LOAD_SQL, PAYMENT_MAPPER, paymentId);
+        if (payments.isEmpty()) {
+            throw new EntityNotFoundException("Unable to find " + Payment.class.getName() + " with id " + paymentId);
+        }
+        return payments.get(0);
+    }
+
+    @Override
+    public Map<Long, Payment> loadAll(Collection<Long> paymentIds) {
+        Map<Long, Payment> payments = new HashMap<>();
+        jdbcTemplate.query(LOAD_ALL_SQL, rs -> {
+            Payment payment = PAYMENT_MAPPER.mapRow(rs, 0);
+            payments.put(payment.getId(), payment);
+        }, (Object) paymentIds.toArray(new Long[0]));
+        return payments;
+    }
+
+    @Override
+    public void detach(Payment payment) {
+        // Never attached
+    }
+
+    @Override
+    public void writeState(Payment payment, PaymentState from) {
+        int count = jdbcTemplate.update(CAS_SQL, payment.getState().name(), Timestamp.from(payment.getStateEnteredAt()),
+                payment.getId(), from.name());
+        written(payment, count);
+    }
+
+    @Override
+    public void writeStates(List<StateChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        int[][] counts = jdbcTemplate.batchUpdate(CAS_SQL, changes, batchSize, (ps, change) -> {
+            Payment payment = change.getPayment();
+            ps.setString(1, payment.getState().name());
+            ps.setTimestamp(2, Timestamp.from(payment.getStateEnteredAt()));
+            ps.setLong(3, payment.getId());
+            ps.setString(4, change.getFrom().name());
+        });
+
+        int i = 0;
+        for (int[] batch : counts) {
+            for (int count : batch) {
+                written(changes.get(i++).getPayment(), count);
+            }
+        }
+    }
+
+    @Override
+    public int updateState(Long paymentId, PaymentState state) {
+        return jdbcTemplate.update(UPDATE_SQL, state.name(), Timestamp.from(Instant.now()), paymentId);
+    }
+
+    private static void written(Payment payment, int count) {
+        if (count == 0) {
+            throw new ObjectOptimisticLockingFailureException(Payment.class, payment.getId());
+        }
+        if (payment.getVersion() != null) {
+            payment.setVersion(payment.getVersion() + 1);
+        }
+    }
+
+    private static Instant instant(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toInstant();
+    }
+}
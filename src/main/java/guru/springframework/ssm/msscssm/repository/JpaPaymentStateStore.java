@@ -0,0 +1,122 @@
+package guru.springframework.ssm.msscssm.repository;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.hibernate.Session;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManager;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Payments as Hibernate entities. A single event's payment is a managed reference, loaded on first use and flushed
+ * at commit with Hibernate's version check. A batch's payments are loaded read only and written back in JDBC batches
+ * checked against their version, except those the session already held, which Hibernate flushes.
+ */
+@ConditionalOnProperty(prefix = "payment.statemachine", name = "store", havingValue = "jpa", matchIfMissing = true)
+@Component
+public class JpaPaymentStateStore implements PaymentStateStore {
+
+    private static final String UPDATE_STATE_SQL =
+            "update payment set state = ?, state_entered_at = ?, version = version + 1 where id = ? and version = ?";
+
+    private final PaymentRepository paymentRepository;
+    private final EntityManager entityManager;
+    private final JdbcTemplate jdbcTemplate;
+    private final int batchSize;
+
+    public JpaPaymentStateStore(PaymentRepository paymentRepository, EntityManager entityManager,
+                                JdbcTemplate jdbcTemplate, PaymentStateMachineProperties properties) {
+        this.paymentRepository = paymentRepository;
+        this.entityManager = entityManager;
+        this.jdbcTemplate = jdbcTemplate;
+        this.batchSize = properties.getBatch().getSize();
+    }
+
+    @Override
+    public Payment load(Long paymentId) {
+        return paymentRepository.getOne(paymentId);
+    }
+
+    @Override
+    public Map<Long, Payment> loadAll(Collection<Long> paymentIds) {
+        return paymentRepository.findAllByIdIn(paymentIds).stream()
+                .collect(Collectors.toMap(Payment::getId, Function.identity()));
+    }
+
+    @Override
+    public void detach(Payment payment) {
+        session().setReadOnly(payment, true);
+    }
+
+    @Override
+    public void writeState(Payment payment, PaymentState from) {
+        // A managed payment is flushed at commit, as one targeted UPDATE
+        if (session().isReadOnly(payment)) {
+            write(List.of(payment));
+        }
+    }
+
+    @Override
+    public void writeStates(List<StateChange> changes) {
+        Session session = session();
+        List<Payment> readOnly = new ArrayList<>();
+        boolean managed = false;
+        for (StateChange change : changes) {
+            if (session.isReadOnly(change.getPayment())) {
+                readOnly.add(change.getPayment());
+            } else {
+                managed = true;
+            }
+        }
+
+        write(readOnly);
+        if (managed) {
+            // Keep the database consistent with what was just written through JDBC
+            entityManager.flush();
+        }
+    }
+
+    @Override
+    public int updateState(Long paymentId, PaymentState state) {
+        return paymentRepository.updateState(paymentId, state);
+    }
+
+    private void write(List<Payment> changed) {
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        int[][] counts = jdbcTemplate.batchUpdate(UPDATE_STATE_SQL, changed, batchSize, (ps, payment) -> {
+            ps.setString(1, payment.getState().name());
+            ps.setTimestamp(2, Timestamp.from(payment.getStateEnteredAt()));
+            ps.setLong(3, payment.getId());
+            ps.setInt(4, payment.getVersion());
+        });
+
+        int i = 0;
+        for (int[] batch : counts) {
+            for (int count : batch) {
+                Payment payment = changed.get(i++);
+                if (count == 0) {
+                    throw new ObjectOptimisticLockingFailureException(Payment.class, payment.getId());
+                }
+                payment.setVersion(payment.getVersion() + 1);
+            }
+        }
+    }
+
+    private Session session() {
+        return entityManager.unwrap(Session.class);
+    }
+}
@@ -1,7 +1,49 @@
 package guru.springframework.ssm.msscssm.repository;
 
 import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentStateCount;
+import guru.springframework.ssm.msscssm.domain.PaymentSummary;
+import org.hibernate.jpa.QueryHints;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.QueryHint;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
 
 public interface PaymentRepository extends JpaRepository<Payment, Long> {
+
+    // Read only so Hibernate keeps no snapshots to dirty check; callers write state changes back themselves
+    @org.springframework.data.jpa.repository.QueryHints(@QueryHint(name = QueryHints.HINT_READONLY, value = "true"))
+    List<Payment> findAllByIdIn(Collection<Long> ids);
+
+    long countByState(PaymentState state);
+
+    long countByStateAndCreatedGreaterThanEqual(PaymentState state, Instant since);
+
+    @Query("select new guru.springframework.ssm.msscssm.domain.PaymentStateCount(p.state, count(p)) "
+            + "from Payment p group by p.state")
+    List<PaymentStateCount> countGroupedByState();
+
+    /**
+     * Summaries of the payments in a state, oldest first, read in fetch-size rows at a time. Must be consumed and
+     * closed inside a transaction.
+     */
+    @org.springframework.data.jpa.repository.QueryHints({
+            @QueryHint(name = QueryHints.HINT_FETCH_SIZE, value = "1000"),
+            @QueryHint(name = QueryHints.HINT_READONLY, value = "true")})
+    @Query("select new guru.springframework.ssm.msscssm.domain.PaymentSummary(p.id, p.state, p.amount, p.created) "
+            + "from Payment p where p.state = :state order by p.created")
+    Stream<PaymentSummary> streamSummariesByState(@Param("state") PaymentState state);
+
+    @Transactional
+    @Modifying
+    @Query("update Payment p set p.state = :state, p.stateEnteredAt = current_timestamp, p.version = p.version + 1 where p.id = :id")
+    int updateState(@Param("id") Long id, @Param("state") PaymentState state);
 }
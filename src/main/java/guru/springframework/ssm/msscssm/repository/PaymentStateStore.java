@@ -0,0 +1,63 @@
+package guru.springframework.ssm.msscssm.repository;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.Value;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How payments are read for an event and how the state the event leads to is written back, chosen with
+ * payment.statemachine.store. Creating and querying payments stays with {@link PaymentRepository}.
+ * <p>
+ * Written states are checked against what is stored, so a payment somebody else changed since it was loaded is not
+ * silently overwritten; the write fails with an ObjectOptimisticLockingFailureException instead.
+ */
+public interface PaymentStateStore {
+
+    /**
+     * Load a payment for an event. The interceptor moves the payment to its new state in memory; pass it to
+     * {@link #writeState} afterwards.
+     *
+     * @throws javax.persistence.EntityNotFoundException if there is no such payment, at the latest when its state is
+     *                                                   first read
+     */
+    Payment load(Long paymentId);
+
+    /**
+     * Load many payments for a batch; ids of payments that don't exist are left out.
+     */
+    Map<Long, Payment> loadAll(Collection<Long> paymentIds);
+
+    /**
+     * Stop the store writing changes to a loaded payment by itself; the journal writes them instead.
+     */
+    void detach(Payment payment);
+
+    /**
+     * Write back the state an event moved a loaded payment to.
+     *
+     * @param from the state the payment was loaded in
+     */
+    void writeState(Payment payment, PaymentState from);
+
+    /**
+     * {@link #writeState} for many payments, in as few round trips as the store can manage.
+     */
+    void writeStates(List<StateChange> changes);
+
+    /**
+     * Move a payment that was not loaded to a state, whatever state it is in now.
+     *
+     * @return the number of payments updated, 0 if there is no such payment
+     */
+    int updateState(Long paymentId, PaymentState state);
+
+    @Value
+    class StateChange {
+        Payment payment;
+        PaymentState from;
+    }
+}
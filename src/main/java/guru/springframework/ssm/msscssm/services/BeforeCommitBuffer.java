@@ -0,0 +1,49 @@
+package guru.springframework.ssm.msscssm.services;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects rows written during a transaction and hands them over in one go just before it commits, so they can be
+ * inserted as a single JDBC batch in the same transaction. Nothing is written if the transaction rolls back.
+ */
+public final class BeforeCommitBuffer {
+
+    private BeforeCommitBuffer() {
+    }
+
+    /**
+     * Add an item to the owner's buffer for the current transaction, or flush it straight away if there is none.
+     */
+    public static <T> void add(Object owner, T item, Consumer<List<T>> flush) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            flush.accept(Collections.singletonList(item));
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> pending = (List<T>) TransactionSynchronizationManager.getResource(owner);
+        if (pending == null) {
+            List<T> items = new ArrayList<>();
+            TransactionSynchronizationManager.bindResource(owner, items);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    flush.accept(items);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(owner);
+                }
+            });
+            pending = items;
+        }
+        pending.add(item);
+    }
+}
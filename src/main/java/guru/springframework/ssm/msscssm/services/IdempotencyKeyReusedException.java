@@ -0,0 +1,11 @@
+package guru.springframework.ssm.msscssm.services;
+
+/**
+ * An idempotency key sent again with another payment or event than the one it was first used for.
+ */
+public class IdempotencyKeyReusedException extends IllegalArgumentException {
+
+    public IdempotencyKeyReusedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,187 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.ProcessedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events already processed under an idempotency key, kept for the configured time to live.
+ * <p>
+ * Keys are written to the processed_event table in the transaction of the event they belong to, so a key is stored
+ * if and only if its event committed, and survives restarts. Once committed they are also kept in a bounded in-memory
+ * map, oldest evicted first, that answers most retries with a hash lookup and no database access. Expired rows are
+ * purged in the background; until then they are ignored.
+ */
+@Slf4j
+@Lazy(false)
+@Component
+public class IdempotencyStore {
+
+    private static final String FIND_SQL = "select idempotency_key, payment_id, event, state, created "
+            + "from processed_event where idempotency_key = ? and created >= ?";
+    private static final String DELETE_EXPIRED_SQL = "delete from processed_event where idempotency_key = ? and created < ?";
+    private static final String INSERT_SQL = "insert into processed_event "
+            + "(idempotency_key, payment_id, event, state, created) values (?, ?, ?, ?, ?)";
+    private static final String PURGE_SQL = "delete from processed_event where created < ?";
+
+    private static final RowMapper<ProcessedEvent> PROCESSED_EVENT_MAPPER = (rs, rowNum) -> ProcessedEvent.builder()
+            .idempotencyKey(rs.getString(1))
+            .paymentId(rs.getLong(2))
+            .event(PaymentEvent.valueOf(rs.getString(3)))
+            .state(PaymentState.valueOf(rs.getString(4)))
+            .created(rs.getTimestamp(5).toInstant())
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Duration timeToLive;
+    private final long purgeIntervalMillis;
+
+    // Insertion ordered, so the eldest entry is also the first to expire
+    private final Map<String, ProcessedEvent> recent;
+
+    private ScheduledExecutorService purger;
+
+    public IdempotencyStore(JdbcTemplate jdbcTemplate, PaymentStateMachineProperties properties) {
+        PaymentStateMachineProperties.Idempotency idempotency = properties.getIdempotency();
+        int maxEntries = idempotency.getMaxEntries();
+        this.jdbcTemplate = jdbcTemplate;
+        this.timeToLive = idempotency.getTimeToLive();
+        this.purgeIntervalMillis = idempotency.getPurgeInterval().toMillis();
+        this.recent = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ProcessedEvent> eldest) {
+                return size() > maxEntries || isExpired(eldest.getValue());
+            }
+        };
+    }
+
+    @PostConstruct
+    public void start() {
+        purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-idempotency-purger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        purger.scheduleWithFixedDelay(() -> {
+            try {
+                purgeExpired();
+            } catch (RuntimeException e) {
+                log.error("Could not purge expired idempotency keys, will retry", e);
+            }
+        }, purgeIntervalMillis, purgeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        purger.shutdownNow();
+        purger.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The committed event stored under the key, looked up in memory only.
+     */
+    public Optional<ProcessedEvent> findRecent(String idempotencyKey) {
+        ProcessedEvent processed;
+        synchronized (recent) {
+            processed = recent.get(idempotencyKey);
+        }
+        return Optional.ofNullable(processed).filter(event -> !isExpired(event));
+    }
+
+    /**
+     * The committed event stored under the key, looked up in memory and then in the database.
+     */
+    public Optional<ProcessedEvent> find(String idempotencyKey) {
+        Optional<ProcessedEvent> recentEvent = findRecent(idempotencyKey);
+        if (recentEvent.isPresent()) {
+            return recentEvent;
+        }
+
+        Timestamp cutoff = Timestamp.from(Instant.now().minus(timeToLive));
+        Optional<ProcessedEvent> stored = jdbcTemplate.query(FIND_SQL, PROCESSED_EVENT_MAPPER, idempotencyKey, cutoff)
+                .stream()
+                .findFirst();
+        stored.ifPresent(this::remember);
+        return stored;
+    }
+
+    /**
+     * Store the event's outcome in the current transaction; it is remembered in memory once that commits. A key that
+     * expired but has not been purged yet is replaced.
+     *
+     * @throws IdempotencyKeyReusedException if another transaction stored the key meanwhile. Events on one payment
+     *                                       are serialized, so that one was for another payment
+     */
+    public void record(String idempotencyKey, Long paymentId, PaymentEvent event, PaymentState state) {
+        ProcessedEvent processed = ProcessedEvent.builder()
+                .idempotencyKey(idempotencyKey)
+                .paymentId(paymentId)
+                .event(event)
+                .state(state)
+                .created(Instant.now())
+                .build();
+
+        // Row locked until this transaction completes, so a concurrent reuse of the key waits and then fails the insert
+        jdbcTemplate.update(DELETE_EXPIRED_SQL, idempotencyKey, Timestamp.from(processed.getCreated().minus(timeToLive)));
+        try {
+            jdbcTemplate.update(INSERT_SQL, processed.getIdempotencyKey(), processed.getPaymentId(),
+                    processed.getEvent().name(), processed.getState().name(), Timestamp.from(processed.getCreated()));
+        } catch (DuplicateKeyException e) {
+            throw new IdempotencyKeyReusedException("Idempotency key " + idempotencyKey
+                    + " is already in use for another payment");
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    remember(processed);
+                }
+            });
+        } else {
+            remember(processed);
+        }
+    }
+
+    /**
+     * @return the number of expired keys deleted from the database
+     */
+    public int purgeExpired() {
+        int purged = jdbcTemplate.update(PURGE_SQL, Timestamp.from(Instant.now().minus(timeToLive)));
+        if (purged > 0) {
+            log.debug("Purged {} expired idempotency keys", purged);
+        }
+        return purged;
+    }
+
+    private void remember(ProcessedEvent processed) {
+        synchronized (recent) {
+            recent.put(processed.getIdempotencyKey(), processed);
+        }
+    }
+
+    private boolean isExpired(ProcessedEvent processed) {
+        return processed.getCreated().plus(timeToLive).isBefore(Instant.now());
+    }
+}
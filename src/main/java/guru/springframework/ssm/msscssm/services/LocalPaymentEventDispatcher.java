@@ -0,0 +1,133 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs payment events off the caller's thread, in this JVM. Events for the same payment id run one after another in
+ * the order they were dispatched, while events for different payments run in parallel on either a bounded pool of
+ * platform threads or on virtual threads, see {@link PaymentStateMachineProperties.DispatchMode}.
+ * <p>
+ * Dispatch happens around {@link PaymentService#sendEvent} rather than through a Spring Statemachine task executor, as
+ * pooled machines must have finished processing an event before they are handed back to the pool.
+ * <p>
+ * The application's dispatcher unless clustering is enabled, in which case each local shard has one of its own.
+ */
+@ConditionalOnProperty(prefix = "payment.cluster", name = "enabled", havingValue = "false", matchIfMissing = true)
+@Component
+public class LocalPaymentEventDispatcher implements PaymentEventDispatcher, DisposableBean {
+
+    private static final CompletableFuture<PaymentState> DONE = CompletableFuture.completedFuture(null);
+
+    private final PaymentService paymentService;
+    private final ExecutorService executor;
+
+    // Last event dispatched for each payment with work in flight; a new event is chained onto it
+    private final ConcurrentHashMap<Long, CompletableFuture<PaymentState>> tails = new ConcurrentHashMap<>();
+
+    public LocalPaymentEventDispatcher(PaymentService paymentService, PaymentStateMachineProperties properties) {
+        this.paymentService = paymentService;
+        this.executor = newExecutor(properties.getDispatch());
+    }
+
+    @Override
+    public CompletableFuture<PaymentState> dispatch(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        CompletableFuture<PaymentState> next = new CompletableFuture<>();
+        tails.compute(paymentId, (id, tail) -> {
+            // A failed predecessor must not stop later events for the payment from running. Submitted from whichever
+            // thread completes the predecessor, so a full queue fails this event rather than that thread.
+            (tail == null ? DONE : tail).whenComplete((state, ex) ->
+                    submit(next, () -> paymentService.sendEvent(paymentId, event, idempotencyKey)));
+            return next;
+        });
+
+        next.whenComplete((state, ex) -> tails.remove(paymentId, next));
+        return next;
+    }
+
+    @Override
+    public CompletableFuture<List<PaymentEventResult>> dispatchAll(PaymentEvent event, Collection<Long> paymentIds) {
+        CompletableFuture<List<PaymentEventResult>> result = new CompletableFuture<>();
+        submit(result, () -> paymentService.sendEvents(event, paymentIds));
+        return result;
+    }
+
+    // Whether events for the payment are queued or running
+    boolean isInFlight(Long paymentId) {
+        return tails.containsKey(paymentId);
+    }
+
+    // Completes the future with the work's outcome, or with the RejectedExecutionException if the queue is full
+    private <T> void submit(CompletableFuture<T> future, Supplier<T> work) {
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(work.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private static ExecutorService newExecutor(PaymentStateMachineProperties.Dispatch dispatch) {
+        if (dispatch.getMode() == PaymentStateMachineProperties.DispatchMode.VIRTUAL) {
+            return newVirtualThreadPerTaskExecutor();
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "payment-dispatch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        return new ThreadPoolExecutor(dispatch.getThreads(), dispatch.getThreads(), 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(dispatch.getQueueCapacity()), threadFactory);
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively as the project still targets Java 11
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread dispatch needs Java 21 or later, "
+                    + "set payment.statemachine.dispatch.mode=platform", e);
+        }
+    }
+}
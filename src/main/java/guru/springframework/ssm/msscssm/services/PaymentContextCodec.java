@@ -0,0 +1,255 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary form of a payment {@link StateMachineContext}: state, last event, event headers, extended state
+ * variables, history states and machine id. Values are written with a one byte type tag and read back through a
+ * switch on it, so decoding needs no reflection or class lookup. Only the value types payments use are supported;
+ * anything else is rejected when encoding rather than silently dropped.
+ */
+public class PaymentContextCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte INTEGER = 2;
+    private static final byte STRING = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte BIG_DECIMAL = 5;
+    private static final byte UUID_VALUE = 6;
+    private static final byte PAYMENT_STATE = 7;
+    private static final byte PAYMENT_EVENT = 8;
+
+    private static final PaymentState[] STATES = PaymentState.values();
+    private static final PaymentEvent[] EVENTS = PaymentEvent.values();
+
+    public byte[] encode(StateMachineContext<PaymentState, PaymentEvent> context) {
+        if (context.getChilds() != null && !context.getChilds().isEmpty()) {
+            throw new IllegalArgumentException("Payment machines have no regions, cannot encode child contexts");
+        }
+
+        Writer out = new Writer();
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(context.getState() == null ? -1 : context.getState().ordinal());
+        out.writeByte(context.getEvent() == null ? -1 : context.getEvent().ordinal());
+
+        Map<String, Object> headers = context.getEventHeaders() == null ? Map.of() : context.getEventHeaders();
+        out.writeShort(headers.size());
+        headers.forEach((name, value) -> {
+            out.writeString(name);
+            writeValue(out, name, value);
+        });
+
+        Map<Object, Object> variables = context.getExtendedState() == null
+                ? Map.of() : context.getExtendedState().getVariables();
+        out.writeShort(variables.size());
+        variables.forEach((name, value) -> {
+            writeValue(out, name, name);
+            writeValue(out, name, value);
+        });
+
+        Map<PaymentState, PaymentState> history = context.getHistoryStates() == null
+                ? Map.of() : context.getHistoryStates();
+        out.writeShort(history.size());
+        history.forEach((region, state) -> {
+            out.writeByte(region.ordinal());
+            out.writeByte(state.ordinal());
+        });
+
+        out.writeNullableString(context.getId());
+        return out.toByteArray();
+    }
+
+    public StateMachineContext<PaymentState, PaymentEvent> decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        byte version = in.get();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown payment context format " + version);
+        }
+
+        byte state = in.get();
+        byte event = in.get();
+
+        int headerCount = in.getShort();
+        Map<String, Object> headers = new HashMap<>(capacity(headerCount));
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readValue(in));
+        }
+
+        int variableCount = in.getShort();
+        Map<Object, Object> variables = new HashMap<>(capacity(variableCount));
+        for (int i = 0; i < variableCount; i++) {
+            variables.put(readValue(in), readValue(in));
+        }
+
+        int historyCount = in.getShort();
+        Map<PaymentState, PaymentState> history = new HashMap<>(capacity(historyCount));
+        for (int i = 0; i < historyCount; i++) {
+            history.put(STATES[in.get()], STATES[in.get()]);
+        }
+
+        String id = in.get() == NULL ? null : readString(in);
+
+        return new DefaultStateMachineContext<>(state < 0 ? null : STATES[state], event < 0 ? null : EVENTS[event],
+                headers, new DefaultExtendedState(variables), history, id);
+    }
+
+    private static void writeValue(Writer out, Object name, Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            byte[] unscaled = decimal.unscaledValue().toByteArray();
+            out.writeByte(BIG_DECIMAL);
+            out.writeInt(decimal.scale());
+            out.writeShort(unscaled.length);
+            out.writeBytes(unscaled);
+        } else if (value instanceof UUID) {
+            out.writeByte(UUID_VALUE);
+            out.writeLong(((UUID) value).getMostSignificantBits());
+            out.writeLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof PaymentState) {
+            out.writeByte(PAYMENT_STATE);
+            out.writeByte(((PaymentState) value).ordinal());
+        } else if (value instanceof PaymentEvent) {
+            out.writeByte(PAYMENT_EVENT);
+            out.writeByte(((PaymentEvent) value).ordinal());
+        } else {
+            throw new IllegalArgumentException("Cannot encode " + value.getClass().getName() + " value of " + name
+                    + " in a payment context");
+        }
+    }
+
+    private static Object readValue(ByteBuffer in) {
+        byte type = in.get();
+        switch (type) {
+            case NULL:
+                return null;
+            case LONG:
+                return in.getLong();
+            case INTEGER:
+                return in.getInt();
+            case STRING:
+                return readString(in);
+            case BOOLEAN:
+                return in.get() != 0;
+            case BIG_DECIMAL:
+                int scale = in.getInt();
+                byte[] unscaled = new byte[in.getShort()];
+                in.get(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            case UUID_VALUE:
+                return new UUID(in.getLong(), in.getLong());
+            case PAYMENT_STATE:
+                return STATES[in.get()];
+            case PAYMENT_EVENT:
+                return EVENTS[in.get()];
+            default:
+                throw new IllegalArgumentException("Unknown value type " + type + " in payment context");
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static int capacity(int entries) {
+        return (int) (entries / 0.75f) + 1;
+    }
+
+    // Growable big endian buffer; contexts are a few dozen bytes, so the initial size rarely has to grow
+    private static final class Writer {
+
+        private byte[] buffer = new byte[64];
+        private int position;
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeShort(int value) {
+            if (value > 0xFFFF) {
+                throw new IllegalArgumentException("Payment context entry too large: " + value);
+            }
+            ensureCapacity(2);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeShort(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeNullableString(String value) {
+            if (value == null) {
+                writeByte(NULL);
+            } else {
+                writeByte(STRING);
+                writeString(value);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.StateMachinePersist;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Keeps each payment's full state machine context, so a machine is restored with the extended state and event
+ * headers of its last transition rather than rebuilt from the state column alone. One row per payment, read with a
+ * single query and decoded by {@link PaymentContextCodec}.
+ */
+@ConditionalOnProperty(prefix = "payment.statemachine.context", name = "enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Component
+public class PaymentContextStore implements StateMachinePersist<PaymentState, PaymentEvent, Long> {
+
+    private static final String WRITE_SQL = "merge into payment_context (payment_id, context) key (payment_id) values (?, ?)";
+    private static final String READ_SQL = "select context from payment_context where payment_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PaymentContextCodec codec = new PaymentContextCodec();
+
+    @Override
+    public void write(StateMachineContext<PaymentState, PaymentEvent> context, Long paymentId) {
+        jdbcTemplate.update(WRITE_SQL, paymentId, codec.encode(context));
+    }
+
+    /**
+     * @return the stored context, or null if none was written for the payment yet
+     */
+    @Override
+    public StateMachineContext<PaymentState, PaymentEvent> read(Long paymentId) {
+        List<byte[]> contexts = jdbcTemplate.query(READ_SQL, (rs, rowNum) -> rs.getBytes(1), paymentId);
+        return contexts.isEmpty() ? null : codec.decode(contexts.get(0));
+    }
+}
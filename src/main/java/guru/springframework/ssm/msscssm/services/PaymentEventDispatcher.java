@@ -0,0 +1,32 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs payment events off the caller's thread, one after another per payment in the order they were dispatched. In a
+ * single node that is {@link LocalPaymentEventDispatcher}; with clustering enabled the
+ * {@link guru.springframework.ssm.msscssm.cluster.ShardedPaymentRouter} routes each payment's events to the shard that
+ * owns it.
+ */
+public interface PaymentEventDispatcher {
+
+    default CompletableFuture<PaymentState> dispatch(Long paymentId, PaymentEvent event) {
+        return dispatch(paymentId, event, null);
+    }
+
+    /**
+     * Dispatch an event at most once per idempotency key, see {@link PaymentService#sendEvent(Long, PaymentEvent, String)}.
+     */
+    CompletableFuture<PaymentState> dispatch(Long paymentId, PaymentEvent event, String idempotencyKey);
+
+    /**
+     * Send one event to many payments, see {@link PaymentService#sendEvents}. Not chained behind single events for the
+     * same payments; the batch's own locking or version check keeps them consistent.
+     */
+    CompletableFuture<List<PaymentEventResult>> dispatchAll(PaymentEvent event, Collection<Long> paymentIds);
+}
@@ -0,0 +1,81 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.statemachine.StateContext;
+
+import java.util.Collections;
+
+/**
+ * The message a payment event is sent to the state machine in, with the event and the payment id as typed fields.
+ * Guards, actions and the interceptor read the id through {@link #paymentId}, which needs no header lookup for an
+ * envelope; other messages still work through the {@link PaymentServiceImpl#PAYMENT_ID_HEADER} header.
+ * <p>
+ * Headers are only built if something asks for them, and without the id and timestamp {@code MessageBuilder}
+ * generates for every message. The Spring Statemachine runtime asks once per state context, the table engine never.
+ */
+public final class PaymentEventEnvelope implements Message<PaymentEvent> {
+
+    private final Long paymentId;
+    private final PaymentEvent event;
+
+    // Racing threads at worst build equal headers twice
+    private MessageHeaders headers;
+
+    /**
+     * @param paymentId kept as passed in, so reading it back neither boxes nor looks anything up
+     */
+    public PaymentEventEnvelope(Long paymentId, PaymentEvent event) {
+        this.paymentId = paymentId;
+        this.event = event;
+    }
+
+    public Long getPaymentId() {
+        return paymentId;
+    }
+
+    @Override
+    public PaymentEvent getPayload() {
+        return event;
+    }
+
+    @Override
+    public MessageHeaders getHeaders() {
+        MessageHeaders built = headers;
+        if (built == null) {
+            built = new EnvelopeHeaders(paymentId);
+            headers = built;
+        }
+        return built;
+    }
+
+    /**
+     * @return the id of the payment the event was sent for, or null if it was sent without one
+     */
+    public static Long paymentId(Message<PaymentEvent> message) {
+        if (message instanceof PaymentEventEnvelope) {
+            return ((PaymentEventEnvelope) message).paymentId;
+        }
+        return message == null ? null : message.getHeaders().get(PaymentServiceImpl.PAYMENT_ID_HEADER, Long.class);
+    }
+
+    public static Long paymentId(StateContext<?, PaymentEvent> stateContext) {
+        return paymentId(stateContext.getMessage());
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentEventEnvelope [paymentId=" + paymentId + ", event=" + event + "]";
+    }
+
+    private static final class EnvelopeHeaders extends MessageHeaders {
+
+        private static final long serialVersionUID = 1L;
+
+        EnvelopeHeaders(Long paymentId) {
+            super(paymentId == null ? null : Collections.singletonMap(PaymentServiceImpl.PAYMENT_ID_HEADER, paymentId),
+                    ID_VALUE_NONE, -1L);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.Value;
+
+/**
+ * Outcome of sending an event to one payment as part of a batch.
+ */
+@Value
+public class PaymentEventResult {
+
+    Long paymentId;
+
+    // Whether the state machine accepted the event
+    boolean accepted;
+
+    // State of the payment after the event, or null if the payment does not exist
+    PaymentState state;
+}
@@ -0,0 +1,85 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Runs a gateway call on behalf of an action and delivers the event it decides on to the payment later, in a
+ * transaction of its own. The call is only started once the transaction that triggered it has committed, so no
+ * database connection is held while waiting on the gateway.
+ * <p>
+ * With recovery or timeouts enabled the call is also recorded in gateway_request, in the triggering transaction, so a
+ * call whose answer is lost to a crash can be started again by {@link PaymentRecoverySweeper}, and a payment whose call
+ * goes unanswered for too long declined by {@link PaymentTimeoutScheduler}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Component
+public class PaymentGatewayEventSender {
+
+    // A call for another event starts a new wait, the same call made again continues the one in progress
+    private static final String REQUEST_SQL = "merge into gateway_request r "
+            + "using (select cast(? as bigint) payment_id, cast(? as varchar) event, cast(? as timestamp) requested) c "
+            + "on r.payment_id = c.payment_id "
+            + "when matched then update set awaiting_since = "
+            + "case when r.event = c.event then r.awaiting_since else c.requested end, "
+            + "event = c.event, requested = c.requested "
+            + "when not matched then insert (payment_id, event, requested, awaiting_since) "
+            + "values (c.payment_id, c.event, c.requested, c.requested)";
+
+    // Looked up lazily: the dispatcher needs the state machine, whose actions need this sender
+    private final ObjectProvider<PaymentEventDispatcher> paymentEventDispatcher;
+    private final JdbcTemplate jdbcTemplate;
+    private final PaymentStateMachineProperties properties;
+
+    /**
+     * @param request the event whose action makes the call, sent again to make it again
+     */
+    public void sendWhenComplete(Long paymentId, PaymentEvent request, Supplier<CompletableFuture<PaymentEvent>> gatewayCall) {
+        if (paymentId == null) {
+            log.warn("Not calling the gateway: no {} header to deliver its response to", PaymentServiceImpl.PAYMENT_ID_HEADER);
+            return;
+        }
+
+        if (properties.getRecovery().isEnabled() || properties.getTimeout().isEnabled()) {
+            jdbcTemplate.update(REQUEST_SQL, paymentId, request.name(), Timestamp.from(Instant.now()));
+        }
+
+        Runnable call = () -> gatewayCall.get().whenComplete((event, ex) -> {
+            if (ex != null) {
+                log.error("Gateway call for payment {} failed", paymentId, ex);
+                return;
+            }
+
+            // Hand off to the dispatcher so the gateway's thread is not used for database work
+            paymentEventDispatcher.getObject().dispatch(paymentId, event).whenComplete((state, deliveryEx) -> {
+                if (deliveryEx != null) {
+                    log.error("Could not deliver {} to payment {}", event, paymentId, deliveryEx);
+                }
+            });
+        });
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    call.run();
+                }
+            });
+        } else {
+            call.run();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentSnapshot;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentTransition;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of payment transitions in payment_transition, plus periodic snapshots in payment_snapshot.
+ * <p>
+ * Transitions recorded inside a transaction are held until it commits and then inserted in one JDBC batch just
+ * before the state changes are flushed, so the log and the payment table commit or roll back together. The
+ * snapshotter folds new transitions into one snapshot row per payment; a payment's state is its snapshot plus the
+ * transitions after it. Replay pages through the log by id, so it never holds more than a page in memory.
+ */
+@Slf4j
+@ConditionalOnProperty(prefix = "payment.statemachine.history", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Lazy(false)
+@Component
+public class PaymentHistory {
+
+    private static final String INSERT_SQL = "insert into payment_transition (id, payment_id, from_state, to_state, event, created) "
+            + "values (next value for payment_transition_seq, ?, ?, ?, ?, ?)";
+    private static final String PAGE_SQL = "select id, payment_id, from_state, to_state, event, created "
+            + "from payment_transition where id > ? order by id limit ?";
+    private static final String PAYMENT_SQL = "select id, payment_id, from_state, to_state, event, created "
+            + "from payment_transition where payment_id = ? and id > ? order by id";
+    private static final String CHECKPOINT_SQL = "select coalesce(max(transition_id), 0) from payment_snapshot";
+    private static final String SNAPSHOT_SQL = "select state, transition_id from payment_snapshot where payment_id = ?";
+    private static final String WRITE_SNAPSHOT_SQL = "merge into payment_snapshot (payment_id, state, transition_id, created) "
+            + "key (payment_id) values (?, ?, ?, ?)";
+
+    private static final RowMapper<PaymentTransition> TRANSITION_MAPPER = (rs, rowNum) -> PaymentTransition.builder()
+            .id(rs.getLong(1))
+            .paymentId(rs.getLong(2))
+            .fromState(rs.getString(3) == null ? null : PaymentState.valueOf(rs.getString(3)))
+            .toState(PaymentState.valueOf(rs.getString(4)))
+            .event(rs.getString(5) == null ? null : PaymentEvent.valueOf(rs.getString(5)))
+            .created(rs.getTimestamp(6).toInstant())
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int pageSize;
+    private final long snapshotIntervalMillis;
+
+    private ScheduledExecutorService snapshotter;
+
+    public PaymentHistory(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                          PaymentStateMachineProperties properties) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.pageSize = properties.getHistory().getPageSize();
+        this.snapshotIntervalMillis = properties.getHistory().getSnapshotInterval().toMillis();
+    }
+
+    @PostConstruct
+    public void start() {
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-history-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (RuntimeException e) {
+                log.error("Could not snapshot payment history, will retry", e);
+            }
+        }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        snapshotter.shutdownNow();
+        snapshotter.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Record a transition with the current transaction, or straight away if there is none.
+     */
+    public void record(Long paymentId, PaymentState from, PaymentState to, PaymentEvent event) {
+        PaymentTransition transition = PaymentTransition.builder()
+                .paymentId(paymentId)
+                .fromState(from)
+                .toState(to)
+                .event(event)
+                .created(Instant.now())
+                .build();
+
+        BeforeCommitBuffer.add(this, transition, this::recordAll);
+    }
+
+    /**
+     * Insert transitions as one JDBC batch, in the current transaction if there is one.
+     */
+    public void recordAll(Collection<PaymentTransition> transitions) {
+        if (transitions.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(INSERT_SQL, transitions, transitions.size(), (ps, transition) -> {
+            ps.setLong(1, transition.getPaymentId());
+            ps.setString(2, transition.getFromState() == null ? null : transition.getFromState().name());
+            ps.setString(3, transition.getToState().name());
+            ps.setString(4, transition.getEvent() == null ? null : transition.getEvent().name());
+            ps.setTimestamp(5, Timestamp.from(transition.getCreated()));
+        });
+    }
+
+    /**
+     * Stream every transition after the given id, in id order, a page at a time.
+     *
+     * @return the id of the last transition replayed, or afterId if there were none
+     */
+    public long replay(long afterId, Consumer<PaymentTransition> consumer) {
+        return replayPages(afterId, page -> page.forEach(consumer));
+    }
+
+    /**
+     * @return all transitions of the payment, oldest first
+     */
+    public List<PaymentTransition> transitions(Long paymentId) {
+        return jdbcTemplate.query(PAYMENT_SQL, TRANSITION_MAPPER, paymentId, 0L);
+    }
+
+    /**
+     * Rebuild the state of a payment from its latest snapshot and the transitions recorded after it.
+     *
+     * @return the state, or empty if the payment has no recorded transitions
+     */
+    public Optional<PaymentState> currentState(Long paymentId) {
+        List<PaymentSnapshot> snapshots = jdbcTemplate.query(SNAPSHOT_SQL, (rs, rowNum) ->
+                new PaymentSnapshot(paymentId, PaymentState.valueOf(rs.getString(1)), rs.getLong(2), null), paymentId);
+        PaymentState state = snapshots.isEmpty() ? null : snapshots.get(0).getState();
+        long after = snapshots.isEmpty() ? 0L : snapshots.get(0).getTransitionId();
+
+        for (PaymentTransition transition : jdbcTemplate.query(PAYMENT_SQL, TRANSITION_MAPPER, paymentId, after)) {
+            state = transition.getToState();
+        }
+        return Optional.ofNullable(state);
+    }
+
+    /**
+     * Fold every transition recorded since the last snapshot into the payments' snapshot rows, a page per
+     * transaction. The checkpoint is the newest transition snapshotted; one that commits later with a lower id is
+     * missed here but still picked up by {@link #currentState}, which reads everything after a payment's snapshot.
+     *
+     * @return the number of transitions folded in
+     */
+    public long snapshot() {
+        long checkpoint = jdbcTemplate.queryForObject(CHECKPOINT_SQL, Long.class);
+        long[] folded = new long[1];
+        replayPages(checkpoint, page -> {
+            Map<Long, PaymentTransition> latest = new LinkedHashMap<>();
+            page.forEach(transition -> latest.put(transition.getPaymentId(), transition));
+
+            Timestamp now = Timestamp.from(Instant.now());
+            List<PaymentTransition> snapshots = new ArrayList<>(latest.values());
+            transactionTemplate.executeWithoutResult(status ->
+                    jdbcTemplate.batchUpdate(WRITE_SNAPSHOT_SQL, snapshots, snapshots.size(), (ps, transition) -> {
+                        ps.setLong(1, transition.getPaymentId());
+                        ps.setString(2, transition.getToState().name());
+                        ps.setLong(3, transition.getId());
+                        ps.setTimestamp(4, now);
+                    }));
+            folded[0] += page.size();
+        });
+        return folded[0];
+    }
+
+    private long replayPages(long afterId, Consumer<List<PaymentTransition>> consumer) {
+        long last = afterId;
+        while (true) {
+            List<PaymentTransition> page = jdbcTemplate.query(PAGE_SQL, TRANSITION_MAPPER, last, pageSize);
+            if (page.isEmpty()) {
+                return last;
+            }
+            consumer.accept(page);
+            last = page.get(page.size() - 1).getId();
+            if (page.size() < pageSize) {
+                return last;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentIngestProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Creates payments in bulk from a stream, for imports far too large to hold in memory or to save one call at a time.
+ * <p>
+ * Payments are persisted in transactions of commit-size payments. Every flush-size payments the persistence context
+ * is flushed, which Hibernate sends as one JDBC batch insert, and then cleared, so memory stays flat however long
+ * the stream is. Ids come from the pooled payment sequence, one round trip per block. If ingestion fails, the
+ * payments of earlier transactions stay committed and the exception says how many there were.
+ */
+@Slf4j
+@Service
+public class PaymentIngestionService {
+
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final int flushSize;
+    private final int commitSize;
+    private final int progressInterval;
+
+    public PaymentIngestionService(EntityManager entityManager, PlatformTransactionManager transactionManager,
+                                   PaymentIngestProperties properties) {
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.flushSize = properties.getFlushSize();
+        this.commitSize = properties.getCommitSize();
+        this.progressInterval = properties.getProgressInterval();
+    }
+
+    /**
+     * Ingest and close the stream, logging progress.
+     */
+    public Progress ingest(Stream<Payment> payments) {
+        return ingest(payments, progress -> log.info("Ingested {} payments in {} ({} payments/s)",
+                progress.getIngested(), progress.getElapsed(), Math.round(progress.getPaymentsPerSecond())));
+    }
+
+    public Progress ingest(Stream<Payment> payments, Consumer<Progress> listener) {
+        try (payments) {
+            return ingest(payments.iterator(), listener);
+        }
+    }
+
+    /**
+     * Create a NEW payment for each one the iterator returns, reporting progress to the listener every
+     * progress-interval payments and once more at the end.
+     *
+     * @return the final progress
+     */
+    public Progress ingest(Iterator<Payment> payments, Consumer<Progress> listener) {
+        long start = System.nanoTime();
+        long ingested = 0;
+
+        while (payments.hasNext()) {
+            int committed;
+            try {
+                committed = transactionTemplate.execute(status -> persistChunk(payments));
+            } catch (RuntimeException e) {
+                throw new IllegalStateException("Payment ingestion failed after " + ingested + " payments were committed", e);
+            }
+
+            long before = ingested;
+            ingested += committed;
+            if (ingested / progressInterval > before / progressInterval) {
+                listener.accept(progress(ingested, start));
+            }
+        }
+
+        Progress progress = progress(ingested, start);
+        if (ingested % progressInterval != 0 || ingested == 0) {
+            listener.accept(progress);
+        }
+        return progress;
+    }
+
+    private int persistChunk(Iterator<Payment> payments) {
+        int count = 0;
+        while (count < commitSize && payments.hasNext()) {
+            Payment payment = payments.next();
+            Instant now = Instant.now();
+            payment.setState(PaymentState.NEW);
+            payment.setCreated(now);
+            payment.setStateEnteredAt(now);
+            entityManager.persist(payment);
+
+            if (++count % flushSize == 0) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+        return count;
+    }
+
+    private static Progress progress(long ingested, long start) {
+        return new Progress(ingested, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    @Value
+    public static class Progress {
+
+        long ingested;
+
+        Duration elapsed;
+
+        public double getPaymentsPerSecond() {
+            return elapsed.isZero() ? 0 : ingested * 1e9 / elapsed.toNanos();
+        }
+    }
+}
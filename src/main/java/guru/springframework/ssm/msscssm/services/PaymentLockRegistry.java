@@ -0,0 +1,92 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped in-process locks keyed by payment id. Events for the same payment are serialized while payments that hash
+ * to different stripes never contend; the version column on Payment still catches writers outside this JVM.
+ */
+@Component
+public class PaymentLockRegistry {
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final long timeoutMillis;
+
+    public PaymentLockRegistry(PaymentStateMachineProperties properties) {
+        int size = Integer.highestOneBit(Math.max(1, properties.getLock().getStripes() - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+        this.timeoutMillis = properties.getLock().getTimeout().toMillis();
+    }
+
+    /**
+     * Lock the payment's stripe and release it once the current transaction completes.
+     *
+     * @throws CannotAcquireLockException if the stripe isn't free within the configured timeout
+     */
+    public void lockUntilCompletion(Long paymentId) {
+        Assert.state(TransactionSynchronizationManager.isSynchronizationActive(),
+                "Payment locks are released on transaction completion, so a transaction must be active");
+
+        lockStripeUntilCompletion(stripeFor(paymentId), "payment " + paymentId);
+    }
+
+    /**
+     * Lock the stripes of all the payments until the current transaction completes. Stripes are taken in a fixed
+     * order, so two callers locking overlapping sets cannot deadlock each other.
+     *
+     * @throws CannotAcquireLockException if a stripe isn't free within the configured timeout
+     */
+    public void lockAllUntilCompletion(Collection<Long> paymentIds) {
+        Assert.state(TransactionSynchronizationManager.isSynchronizationActive(),
+                "Payment locks are released on transaction completion, so a transaction must be active");
+
+        BitSet indexes = new BitSet(stripes.length);
+        paymentIds.forEach(paymentId -> indexes.set(stripeIndex(paymentId)));
+        for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            lockStripeUntilCompletion(stripes[i], paymentIds.size() + " payments");
+        }
+    }
+
+    private void lockStripeUntilCompletion(ReentrantLock lock, String lockedFor) {
+        try {
+            if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new CannotAcquireLockException("Timed out after " + timeoutMillis
+                        + "ms waiting for the lock on " + lockedFor);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CannotAcquireLockException("Interrupted waiting for the lock on " + lockedFor, e);
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                lock.unlock();
+            }
+        });
+    }
+
+    private ReentrantLock stripeFor(Long paymentId) {
+        return stripes[stripeIndex(paymentId)];
+    }
+
+    private int stripeIndex(Long paymentId) {
+        int h = Long.hashCode(paymentId);
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
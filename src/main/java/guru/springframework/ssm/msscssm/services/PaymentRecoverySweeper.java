@@ -0,0 +1,235 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts again the gateway calls whose answers never arrived, by sending the event that made each call once more.
+ * A crash after the event that made a call commits but before its answer is delivered otherwise leaves the payment
+ * waiting in NEW or PRE_AUTH until it times out.
+ * <p>
+ * Calls made before this instance started can no longer be answered and are re-driven as soon as the application is
+ * ready; after that, calls still unanswered after the grace period are re-driven on every check. Calls are read from
+ * gateway_request a page at a time by payment id, so a sweep holds one page in memory however large the backlog, and
+ * re-driven on a few worker threads at a bounded rate, so live events keep most of the database. Calls whose payment
+ * has moved on were answered; their rows are deleted as the sweep passes them.
+ * <p>
+ * A re-driven payment is sent to the gateway again, which must treat a repeated request for a payment as the same
+ * request. Like the payment locks, this assumes a single instance working on the payment table.
+ */
+@Slf4j
+@ConditionalOnProperty(prefix = "payment.statemachine.recovery", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Lazy(false)
+@Component
+public class PaymentRecoverySweeper {
+
+    private static final String PAGE_SQL = "select r.payment_id, r.event, p.state from gateway_request r "
+            + "join payment p on p.id = r.payment_id "
+            + "where r.payment_id > ? and r.requested < ? order by r.payment_id limit ?";
+    private static final String ANSWERED_SQL = "delete from gateway_request where payment_id = ? and requested < ?";
+
+    // The state a payment waits in for the answer to each call
+    private static final Map<PaymentEvent, PaymentState> AWAITING = new EnumMap<>(Map.of(
+            PaymentEvent.PRE_AUTHORIZE, PaymentState.NEW,
+            PaymentEvent.AUTHORIZE, PaymentState.PRE_AUTH));
+
+    private static final RowMapper<Request> REQUEST_MAPPER = (rs, rowNum) -> new Request(rs.getLong(1),
+            PaymentEvent.valueOf(rs.getString(2)), PaymentState.valueOf(rs.getString(3)));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PaymentEventDispatcher paymentEventDispatcher;
+    private final Duration gracePeriod;
+    private final long checkIntervalMillis;
+    private final int pageSize;
+    private final int threads;
+    private final long permitIntervalNanos;
+
+    // Calls made before this were made by an earlier instance
+    private final Instant startedAt = Instant.now();
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    public PaymentRecoverySweeper(JdbcTemplate jdbcTemplate, PaymentEventDispatcher paymentEventDispatcher,
+                                  PaymentStateMachineProperties properties) {
+        PaymentStateMachineProperties.Recovery recovery = properties.getRecovery();
+        if (recovery.getMaxRate() <= 0) {
+            throw new IllegalArgumentException("payment.statemachine.recovery.max-rate must be positive");
+        }
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.paymentEventDispatcher = paymentEventDispatcher;
+        this.gracePeriod = recovery.getGracePeriod();
+        this.checkIntervalMillis = recovery.getCheckInterval().toMillis();
+        this.pageSize = recovery.getPageSize();
+        this.threads = recovery.getThreads();
+        this.permitIntervalNanos = TimeUnit.SECONDS.toNanos(1) / recovery.getMaxRate();
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "payment-recovery-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Not before: re-driven calls are answered through the dispatcher and the rest of the application
+    @EventListener(ApplicationReadyEvent.class)
+    public void scheduleSweeps() {
+        scheduler.execute(() -> sweep(startedAt));
+        scheduler.scheduleWithFixedDelay(() -> sweep(Instant.now().minus(gracePeriod)),
+                checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        workers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Re-drive every payment still waiting on a gateway call made before the given instant, and forget the calls
+     * that were answered. Returns once every re-driven event has been handled.
+     *
+     * @return the number of payments re-driven
+     */
+    public int recover(Instant requestedBefore) {
+        Timestamp cutoff = Timestamp.from(requestedBefore);
+        Semaphore running = new Semaphore(threads);
+        AtomicInteger redriven = new AtomicInteger();
+        long nextPermit = System.nanoTime();
+        long after = Long.MIN_VALUE;
+
+        try {
+            while (true) {
+                List<Request> page = jdbcTemplate.query(PAGE_SQL, REQUEST_MAPPER, after, cutoff, pageSize);
+                List<Long> answered = new ArrayList<>();
+                for (Request request : page) {
+                    if (request.state != AWAITING.get(request.event)) {
+                        answered.add(request.paymentId);
+                        continue;
+                    }
+
+                    // Throttled here rather than in the workers, so a slow worker doesn't let the others burst
+                    long wait = nextPermit - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextPermit = Math.max(nextPermit, System.nanoTime()) + permitIntervalNanos;
+
+                    running.acquire();
+                    workers.execute(() -> {
+                        try {
+                            if (redrive(request, cutoff)) {
+                                redriven.incrementAndGet();
+                            }
+                        } finally {
+                            running.release();
+                        }
+                    });
+                }
+                forget(answered, cutoff);
+
+                if (page.size() < pageSize) {
+                    break;
+                }
+                after = page.get(page.size() - 1).paymentId;
+            }
+
+            running.acquire(threads);
+            running.release(threads);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted recovering unanswered gateway calls", e);
+        }
+
+        if (redriven.get() > 0) {
+            log.info("Re-drove {} payments whose gateway calls went unanswered", redriven.get());
+        }
+        return redriven.get();
+    }
+
+    private void sweep(Instant requestedBefore) {
+        try {
+            recover(requestedBefore);
+        } catch (RuntimeException e) {
+            log.error("Could not recover unanswered gateway calls, will retry", e);
+        }
+    }
+
+    // Sending the event again makes the call again, which replaces the row with one for the new call. Dispatched like
+    // any other event, so it takes its turn behind those already queued for the payment
+    private boolean redrive(Request request, Timestamp cutoff) {
+        try {
+            PaymentState state = paymentEventDispatcher.dispatch(request.paymentId, request.event).join();
+            if (state == AWAITING.get(request.event)) {
+                return true;
+            }
+            // Moved on since the page was read, or only the payment table lagged behind the journal
+            forget(List.of(request.paymentId), cutoff);
+        } catch (RuntimeException e) {
+            log.debug("Could not re-drive payment {}, leaving it to the next sweep", request.paymentId, e);
+        }
+        return false;
+    }
+
+    private void forget(List<Long> answered, Timestamp cutoff) {
+        if (!answered.isEmpty()) {
+            jdbcTemplate.batchUpdate(ANSWERED_SQL, answered, answered.size(), (ps, paymentId) -> {
+                ps.setLong(1, paymentId);
+                ps.setTimestamp(2, cutoff);
+            });
+        }
+    }
+
+    private static final class Request {
+        final long paymentId;
+        final PaymentEvent event;
+        final PaymentState state;
+
+        Request(long paymentId, PaymentEvent event, PaymentState state) {
+            this.paymentId = paymentId;
+            this.event = event;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentStateCount;
+import guru.springframework.ssm.msscssm.domain.PaymentSummary;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Counts and exports of payments by state for operations. Exports read only their state's range of the state indexes
+ * and stream summaries rather than entities; for a single state, count with {@link PaymentRepository#countByState}.
+ */
+@RequiredArgsConstructor
+@Service
+public class PaymentReports {
+
+    private final PaymentRepository paymentRepository;
+
+    /**
+     * A pass over the whole table, so meant for occasional reports rather than dashboards that refresh.
+     *
+     * @return the number of payments in every state, including those with none
+     */
+    @Transactional(readOnly = true)
+    public Map<PaymentState, Long> countByState() {
+        Map<PaymentState, Long> counts = new EnumMap<>(PaymentState.class);
+        for (PaymentState state : PaymentState.values()) {
+            counts.put(state, 0L);
+        }
+        for (PaymentStateCount count : paymentRepository.countGroupedByState()) {
+            counts.put(count.getState(), count.getPayments());
+        }
+        return counts;
+    }
+
+    /**
+     * Hand every payment in the state to the consumer, oldest first, without holding more than a fetch of them in
+     * memory.
+     *
+     * @return the number of payments exported
+     */
+    @Transactional(readOnly = true)
+    public long export(PaymentState state, Consumer<PaymentSummary> consumer) {
+        try (Stream<PaymentSummary> summaries = paymentRepository.streamSummariesByState(state)) {
+            long exported = 0;
+            for (Iterator<PaymentSummary> it = summaries.iterator(); it.hasNext(); exported++) {
+                consumer.accept(it.next());
+            }
+            return exported;
+        }
+    }
+}
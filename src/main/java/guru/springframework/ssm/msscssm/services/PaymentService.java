@@ -3,15 +3,33 @@ package guru.springframework.ssm.msscssm.services;
 import guru.springframework.ssm.msscssm.domain.Payment;
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
-import org.springframework.statemachine.StateMachine;
+
+import java.util.Collection;
+import java.util.List;
 
 public interface PaymentService {
 
     Payment newPayment(Payment payment);
 
-    StateMachine<PaymentState, PaymentEvent> preAuthorizePayment(Long paymentId);
+    PaymentState preAuthorizePayment(Long paymentId);
+
+    PaymentState authorizePayment(Long paymentId);
+
+    PaymentState declineAuthorizePayment(Long paymentId);
+
+    PaymentState sendEvent(Long paymentId, PaymentEvent event);
 
-    StateMachine<PaymentState, PaymentEvent> authorizePayment(Long paymentId);
+    /**
+     * Send an event at most once per idempotency key. A key seen before returns the state the payment was left in
+     * the first time, without running the machine again; a null key sends the event as usual.
+     *
+     * @throws IdempotencyKeyReusedException if the key was already used for another payment or event
+     */
+    PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey);
 
-    StateMachine<PaymentState, PaymentEvent> declineAuthorizePayment(Long paymentId);
+    /**
+     * Send the same event to many payments in one transaction, returning one result per distinct payment id in the
+     * order given. Unknown payment ids are reported as not accepted.
+     */
+    List<PaymentEventResult> sendEvents(PaymentEvent event, Collection<Long> paymentIds);
 }
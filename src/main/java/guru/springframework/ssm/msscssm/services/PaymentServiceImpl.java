@@ -1,17 +1,35 @@
 package guru.springframework.ssm.msscssm.services;
 
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics.EventOutcome;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
 import guru.springframework.ssm.msscssm.domain.Payment;
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.ProcessedEvent;
 import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import guru.springframework.ssm.msscssm.repository.PaymentStateStore;
+import guru.springframework.ssm.msscssm.repository.PaymentStateStore.StateChange;
 import lombok.RequiredArgsConstructor;
 import org.springframework.messaging.Message;
-import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.statemachine.StateMachine;
-import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
 import org.springframework.statemachine.support.DefaultStateMachineContext;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @RequiredArgsConstructor
 @Service
@@ -20,68 +38,216 @@ public class PaymentServiceImpl implements PaymentService {
     public static final String PAYMENT_ID_HEADER = "payment_id";
 
     private final PaymentRepository paymentRepository;
-    private final StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
-    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+    private final PaymentStateStore paymentStateStore;
+    private final PaymentStateMachinePool stateMachinePool;
+    private final PaymentLockRegistry paymentLockRegistry;
+    private final PaymentStateMachineProperties properties;
+    private final Optional<PaymentTransitionJournal> journal;
+    private final PaymentStateMachineMetrics metrics;
+    private final Optional<PaymentContextStore> contextStore;
+    private final IdempotencyStore idempotencyStore;
+    private final TransactionTemplate transactionTemplate;
 
     @Override
     public Payment newPayment(Payment payment) {
+        Instant now = Instant.now();
         payment.setState(PaymentState.NEW);
+        payment.setCreated(now);
+        payment.setStateEnteredAt(now);
         return paymentRepository.save(payment);
     }
 
     @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> preAuthorizePayment(Long paymentId) {
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
-
-        sendEvent(paymentId, sm, PaymentEvent.PRE_AUTHORIZE);
-
-        return sm;
+    public PaymentState preAuthorizePayment(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE);
     }
 
     @Deprecated
     @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> authorizePayment(Long paymentId) {
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
-
-        sendEvent(paymentId, sm, PaymentEvent.AUTHORIZE);
-
-        return sm;
+    public PaymentState authorizePayment(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.AUTHORIZE);
     }
 
     @Transactional
     @Override
-    public StateMachine<PaymentState, PaymentEvent> declineAuthorizePayment(Long paymentId) {
-        StateMachine<PaymentState, PaymentEvent> sm = build(paymentId);
+    public PaymentState declineAuthorizePayment(Long paymentId) {
+        return sendEvent(paymentId, PaymentEvent.AUTH_DECLINED);
+    }
 
-        sendEvent(paymentId, sm, PaymentEvent.AUTH_DECLINED);
+    @Transactional
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event) {
+        long start = System.nanoTime();
+        try {
+            // Held until commit, so the next event for this payment starts from the state this one persists
+            paymentLockRegistry.lockUntilCompletion(paymentId);
+
+            Map<Long, PaymentState> journaled = journaledStates(Collections.singletonList(paymentId));
+            Payment payment = paymentStateStore.load(paymentId);
+            journal.ifPresent(j -> detachForJournal(payment, journaled));
+            PaymentState before = payment.getState();
+
+            // Pooled machines go back to the pool as soon as the event is processed, so only the resulting state escapes
+            StateMachine<PaymentState, PaymentEvent> sm = stateMachinePool.borrow(restoreContext(payment));
+            try {
+                // Reuse the payment loaded above; the interceptor moves it and the store writes it back, not reloaded
+                sm.getExtendedState().getVariables().put(PaymentStateChangeInterceptor.PAYMENT_VARIABLE, payment);
+                Message<PaymentEvent> message = new PaymentEventEnvelope(paymentId, event);
+                boolean accepted = sm.sendEvent(message);
+                if (payment.getState() != before && !journal.isPresent()) {
+                    paymentStateStore.writeState(payment, before);
+                }
+                metrics.recordEvent(event, accepted ? EventOutcome.ACCEPTED : EventOutcome.REJECTED, start);
+
+                if (accepted) {
+                    contextStore.ifPresent(store -> store.write(storedContext(sm, message), paymentId));
+                }
+
+                return sm.getState().getId();
+            } finally {
+                stateMachinePool.release(sm);
+            }
+        } catch (RuntimeException e) {
+            metrics.recordEvent(event, EventOutcome.ERROR, start);
+            throw e;
+        }
+    }
 
-        return sm;
+    @Override
+    public PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        // Most retries are answered from memory, without a transaction
+        Optional<ProcessedEvent> recent = idempotencyKey == null ? Optional.empty() : idempotencyStore.findRecent(idempotencyKey);
+        if (recent.isPresent()) {
+            return repeated(recent.get(), paymentId, event);
+        }
+
+        return transactionTemplate.execute(status -> {
+            if (idempotencyKey == null) {
+                return sendEvent(paymentId, event);
+            }
+
+            // Held until commit, so a concurrent retry waits here and then finds this event's outcome
+            paymentLockRegistry.lockUntilCompletion(paymentId);
+            Optional<ProcessedEvent> processed = idempotencyStore.find(idempotencyKey);
+            if (processed.isPresent()) {
+                return repeated(processed.get(), paymentId, event);
+            }
+
+            PaymentState state = sendEvent(paymentId, event);
+            idempotencyStore.record(idempotencyKey, paymentId, event, state);
+            return state;
+        });
     }
 
-    private void sendEvent(Long paymentId, StateMachine<PaymentState, PaymentEvent> sm, PaymentEvent event) {
-        Message msg = MessageBuilder.withPayload(event)
-                .setHeader(PAYMENT_ID_HEADER, paymentId)
-                .build();
+    @Transactional
+    @Override
+    public List<PaymentEventResult> sendEvents(PaymentEvent event, Collection<Long> paymentIds) {
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(paymentIds));
+        List<PaymentEventResult> results = new ArrayList<>(ids.size());
+        int batchSize = properties.getBatch().getSize();
+
+        // The journal has no version to check, so with it enabled the batch serializes with single events instead
+        journal.ifPresent(j -> paymentLockRegistry.lockAllUntilCompletion(ids));
+
+        // One machine serves the whole batch; it is reset to each payment's stored state in turn. Batches don't take
+        // the per payment locks, holding thousands of them until commit would invite deadlocks, and rely on the
+        // store's check on what each payment was loaded in instead
+        StateMachine<PaymentState, PaymentEvent> sm = null;
+        try {
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                List<Long> chunk = ids.subList(from, Math.min(from + batchSize, ids.size()));
+                Map<Long, PaymentState> journaled = journaledStates(chunk);
+                Map<Long, Payment> payments = paymentStateStore.loadAll(chunk);
+
+                List<StateChange> changed = new ArrayList<>();
+                for (Long paymentId : chunk) {
+                    Payment payment = payments.get(paymentId);
+                    if (payment == null) {
+                        results.add(new PaymentEventResult(paymentId, false, null));
+                        continue;
+                    }
+
+                    journal.ifPresent(j -> detachForJournal(payment, journaled));
+                    PaymentState before = payment.getState();
+                    if (sm == null) {
+                        sm = stateMachinePool.borrow(before);
+                    } else {
+                        stateMachinePool.reset(sm, before);
+                    }
+
+                    // The interceptor only updates this in-memory payment; changes are written below in one batch
+                    sm.getExtendedState().getVariables().put(PaymentStateChangeInterceptor.PAYMENT_VARIABLE, payment);
+                    long start = System.nanoTime();
+                    boolean accepted = sm.sendEvent(new PaymentEventEnvelope(paymentId, event));
+                    metrics.recordEvent(event, accepted ? EventOutcome.ACCEPTED : EventOutcome.REJECTED, start);
+
+                    results.add(new PaymentEventResult(paymentId, accepted, payment.getState()));
+                    if (payment.getState() != before && !journal.isPresent()) {
+                        changed.add(new StateChange(payment, before));
+                    }
+                }
+
+                paymentStateStore.writeStates(changed);
+            }
+        } finally {
+            if (sm != null) {
+                stateMachinePool.release(sm);
+            }
+        }
+
+        return results;
+    }
 
-        sm.sendEvent(msg);
+    private static PaymentState repeated(ProcessedEvent processed, Long paymentId, PaymentEvent event) {
+        if (!processed.getPaymentId().equals(paymentId) || processed.getEvent() != event) {
+            throw new IdempotencyKeyReusedException("Idempotency key " + processed.getIdempotencyKey()
+                    + " was already used for " + processed.getEvent() + " on payment " + processed.getPaymentId());
+        }
+        return processed.getState();
     }
 
-    private StateMachine<PaymentState, PaymentEvent> build(Long paymentId) {
-        Payment payment = paymentRepository.getOne(paymentId);
+    // The stored context is only trusted while it agrees with the payment; batches and the journal move the state
+    // column without touching it, and the payment is the record of truth
+    private StateMachineContext<PaymentState, PaymentEvent> restoreContext(Payment payment) {
+        StateMachineContext<PaymentState, PaymentEvent> stored = contextStore
+                .map(store -> store.read(payment.getId()))
+                .orElse(null);
+        return stored != null && stored.getState() == payment.getState()
+                ? stored
+                : new DefaultStateMachineContext<>(payment.getState(), null, null, null);
+    }
 
-        StateMachine<PaymentState, PaymentEvent> sm = stateMachineFactory.getStateMachine(Long.toString(payment.getId()));
-        sm.stop();
+    private StateMachineContext<PaymentState, PaymentEvent> storedContext(StateMachine<PaymentState, PaymentEvent> sm,
+                                                                          Message<PaymentEvent> message) {
+        // The loaded payment is persisted as itself; a message id and timestamp, if any, are never reused
+        Map<Object, Object> variables = new HashMap<>(sm.getExtendedState().getVariables());
+        variables.remove(PaymentStateChangeInterceptor.PAYMENT_VARIABLE);
+        Map<String, Object> headers = new HashMap<>(message.getHeaders());
+        headers.remove(MessageHeaders.ID);
+        headers.remove(MessageHeaders.TIMESTAMP);
+
+        return new DefaultStateMachineContext<>(sm.getState().getId(), message.getPayload(), headers,
+                new DefaultExtendedState(variables));
+    }
 
-        // Set state machine state to state of payment from database
-        sm.getStateMachineAccessor()
-                .doWithAllRegions(sma -> {
-                    sma.addStateMachineInterceptor(paymentStateChangeInterceptor);
-                    sma.resetStateMachine(new DefaultStateMachineContext<>(payment.getState(), null, null, null));
-                });
+    // Read before the payments themselves: a change the journal no longer holds has already reached the table
+    private Map<Long, PaymentState> journaledStates(Collection<Long> paymentIds) {
+        if (!journal.isPresent()) {
+            return Collections.emptyMap();
+        }
+        Map<Long, PaymentState> states = new HashMap<>();
+        paymentIds.forEach(id -> journal.get().pendingState(id).ifPresent(state -> states.put(id, state)));
+        return states;
+    }
 
-        sm.start();
-        return sm;
+    // Changes are journaled rather than flushed, and the journal may know a newer state than the payment table
+    private void detachForJournal(Payment payment, Map<Long, PaymentState> journaled) {
+        paymentStateStore.detach(payment);
+        PaymentState state = journaled.get(payment.getId());
+        if (state != null) {
+            payment.setState(state);
+        }
     }
 }
@@ -1,9 +1,11 @@
 package guru.springframework.ssm.msscssm.services;
 
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics.PersistTarget;
 import guru.springframework.ssm.msscssm.domain.Payment;
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
-import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import guru.springframework.ssm.msscssm.repository.PaymentStateStore;
 import lombok.RequiredArgsConstructor;
 import org.springframework.messaging.Message;
 import org.springframework.statemachine.StateMachine;
@@ -12,26 +14,81 @@ import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
 import org.springframework.statemachine.transition.Transition;
 import org.springframework.stereotype.Component;
 
+import java.time.Instant;
 import java.util.Optional;
 
 @Component
 @RequiredArgsConstructor
 public class PaymentStateChangeInterceptor extends StateMachineInterceptorAdapter<PaymentState, PaymentEvent> {
 
+    // Extended state variable holding the Payment the caller already loaded. The interceptor only moves it to its new
+    // state; the caller then has PaymentStateStore write it back.
+    public static final String PAYMENT_VARIABLE = "payment";
 
-    private final PaymentRepository paymentRepository;
-
+    private final PaymentStateStore paymentStateStore;
+    private final Optional<PaymentTransitionJournal> journal;
+    private final PaymentStateMachineMetrics metrics;
+    private final Optional<PaymentHistory> history;
 
     @Override
     public void preStateChange(State<PaymentState, PaymentEvent> state, Message<PaymentEvent> message, Transition<PaymentState, PaymentEvent> transition, StateMachine<PaymentState, PaymentEvent> stateMachine) {
 
-        Optional.ofNullable(message).ifPresent(msg -> {
-            Optional.ofNullable(Long.class.cast(msg.getHeaders().getOrDefault(PaymentServiceImpl.PAYMENT_ID_HEADER, -1L))).ifPresent(paymentId -> {
-                Payment payment = paymentRepository.getOne(paymentId);
-                payment.setState(state.getId());
-                paymentRepository.save(payment);
-            });
-        });
+        long start = System.nanoTime();
+        Payment loaded = stateMachine.getExtendedState().get(PAYMENT_VARIABLE, Payment.class);
+        if (journal.isPresent()) {
+            journal(journal.get(), loaded, state.getId(), message, transition);
+            metrics.recordPersist(PersistTarget.JOURNAL, start);
+            return;
+        }
+
+        PaymentEvent event = message == null ? null : message.getPayload();
+        if (loaded != null) {
+            record(loaded.getId(), loaded.getState(), state.getId(), event);
+            if (loaded.getState() != state.getId()) {
+                loaded.setStateEnteredAt(Instant.now());
+            }
+            loaded.setState(state.getId());
+            metrics.recordPersist(PersistTarget.ENTITY, start);
+            return;
+        }
+
+        // A self transition leaves the payment as it is, and must not restart its time in the state
+        PaymentState from = transition == null || transition.getSource() == null ? null : transition.getSource().getId();
+        if (from == state.getId()) {
+            return;
+        }
+
+        // Nothing loaded by the caller, so write the new state straight through without reading the payment first
+        Long paymentId = PaymentEventEnvelope.paymentId(message);
+        if (paymentId != null) {
+            paymentStateStore.updateState(paymentId, state.getId());
+            record(paymentId, from, state.getId(), event);
+            metrics.recordPersist(PersistTarget.UPDATE, start);
+        }
     }
 
+    // In journal mode the journal applier records history instead, as it writes the changes to the payment table
+    private void record(Long paymentId, PaymentState from, PaymentState to, PaymentEvent event) {
+        if (from != to) {
+            history.ifPresent(h -> h.record(paymentId, from, to, event));
+        }
+    }
+
+    // Write-behind: the journal owns the change, the loaded payment (read only in this mode) just mirrors it
+    private void journal(PaymentTransitionJournal journal, Payment loaded, PaymentState to, Message<PaymentEvent> message,
+                         Transition<PaymentState, PaymentEvent> transition) {
+        PaymentState from = transition == null || transition.getSource() == null ? null : transition.getSource().getId();
+        Long paymentId = null;
+        if (loaded != null) {
+            from = loaded.getState();
+            paymentId = loaded.getId();
+            loaded.setState(to);
+        } else {
+            paymentId = PaymentEventEnvelope.paymentId(message);
+        }
+
+        if (paymentId != null && from != to) {
+            journal.append(paymentId, from, to, message == null ? null : message.getPayload());
+        }
+    }
 }
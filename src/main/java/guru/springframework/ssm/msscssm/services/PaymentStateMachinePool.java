@@ -0,0 +1,156 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineMetrics.MachineOperation;
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.config.table.TableStateMachineFactory;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of payment state machines that already have the {@link PaymentStateChangeInterceptor} attached.
+ * Building a machine through the factory is far more expensive than resetting an existing one, so machines are
+ * created lazily up to the configured size and then reused. Callers must always {@link #release} what they borrow.
+ */
+@Component
+public class PaymentStateMachinePool {
+
+    private final StateMachineFactory<PaymentState, PaymentEvent> stateMachineFactory;
+    private final TableStateMachineFactory tableStateMachineFactory;
+    private final PaymentStateMachineProperties.Engine engine;
+    private final PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+    private final PaymentStateMachineMetrics metrics;
+    private final BlockingQueue<StateMachine<PaymentState, PaymentEvent>> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final int size;
+    private final long borrowTimeoutMillis;
+
+    public PaymentStateMachinePool(ObjectProvider<StateMachineFactory<PaymentState, PaymentEvent>> stateMachineFactory,
+                                   ObjectProvider<TableStateMachineFactory> tableStateMachineFactory,
+                                   PaymentStateChangeInterceptor paymentStateChangeInterceptor,
+                                   PaymentStateMachineMetrics metrics,
+                                   PaymentStateMachineProperties properties) {
+        this.engine = properties.getEngine();
+        // Only the engine in use is created, so a lazily initialized context never builds the other one
+        boolean table = engine == PaymentStateMachineProperties.Engine.TABLE;
+        this.stateMachineFactory = table ? null : stateMachineFactory.getObject();
+        this.tableStateMachineFactory = table ? tableStateMachineFactory.getObject() : null;
+        this.paymentStateChangeInterceptor = paymentStateChangeInterceptor;
+        this.metrics = metrics;
+        this.size = properties.getPool().getSize();
+        this.borrowTimeoutMillis = properties.getPool().getBorrowTimeout().toMillis();
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Borrow a machine and reset it to the given state, waiting up to the configured borrow timeout if all machines
+     * are in use.
+     */
+    public StateMachine<PaymentState, PaymentEvent> borrow(PaymentState state) {
+        return borrow(stateContext(state));
+    }
+
+    /**
+     * Borrow a machine and restore the given context into it, e.g. one read back from {@link PaymentContextStore}.
+     */
+    public StateMachine<PaymentState, PaymentEvent> borrow(StateMachineContext<PaymentState, PaymentEvent> context) {
+        StateMachine<PaymentState, PaymentEvent> sm = idle.poll();
+
+        if (sm == null) {
+            sm = createIfUnderCapacity();
+        }
+
+        if (sm == null) {
+            try {
+                sm = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a payment state machine", e);
+            }
+        }
+
+        if (sm == null) {
+            throw new IllegalStateException("Timed out after " + borrowTimeoutMillis
+                    + "ms waiting for one of " + size + " pooled payment state machines");
+        }
+
+        try {
+            reset(sm, context);
+        } catch (RuntimeException e) {
+            // Left half reset, so not trusted again; free its slot so a fresh one can be built
+            sm.stop();
+            created.decrementAndGet();
+            throw e;
+        }
+        return sm;
+    }
+
+    public void release(StateMachine<PaymentState, PaymentEvent> sm) {
+        // Don't keep whatever the caller put in the extended state (e.g. a loaded Payment) alive while idle
+        sm.getExtendedState().getVariables().clear();
+
+        // A machine that has hit an error is not trusted again; free its slot so a fresh one can be built
+        if (sm.hasStateMachineError() || !idle.offer(sm)) {
+            sm.stop();
+            created.decrementAndGet();
+        }
+    }
+
+    private StateMachine<PaymentState, PaymentEvent> createIfUnderCapacity() {
+        int current;
+        do {
+            current = created.get();
+            if (current >= size) {
+                return null;
+            }
+        } while (!created.compareAndSet(current, current + 1));
+
+        try {
+            long start = System.nanoTime();
+            StateMachine<PaymentState, PaymentEvent> sm = engine == PaymentStateMachineProperties.Engine.TABLE
+                    ? tableStateMachineFactory.getStateMachine()
+                    : stateMachineFactory.getStateMachine();
+            sm.getStateMachineAccessor()
+                    .doWithAllRegions(sma -> sma.addStateMachineInterceptor(paymentStateChangeInterceptor));
+            metrics.recordMachine(MachineOperation.BUILD, start);
+            return sm;
+        } catch (RuntimeException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Reset an already borrowed machine to the given state, so one borrower can process several payments in turn.
+     */
+    public void reset(StateMachine<PaymentState, PaymentEvent> sm, PaymentState state) {
+        reset(sm, stateContext(state));
+    }
+
+    public void reset(StateMachine<PaymentState, PaymentEvent> sm, StateMachineContext<PaymentState, PaymentEvent> context) {
+        long start = System.nanoTime();
+        sm.stop();
+        sm.getExtendedState().getVariables().clear();
+
+        sm.getStateMachineAccessor().doWithAllRegions(sma -> sma.resetStateMachine(context));
+
+        sm.start();
+        metrics.recordMachine(MachineOperation.RESET, start);
+    }
+
+    // Set state machine state to state of payment from database
+    private static StateMachineContext<PaymentState, PaymentEvent> stateContext(PaymentState state) {
+        return new DefaultStateMachineContext<>(state, null, null, null);
+    }
+}
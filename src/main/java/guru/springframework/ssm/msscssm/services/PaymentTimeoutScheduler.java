@@ -0,0 +1,203 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Declines payments that have waited too long for a gateway response: NEW ones with PRE_AUTH_DECLINED and PRE_AUTH
+ * ones with AUTH_DECLINED, through the usual state machine transitions, so the declined actions and their
+ * notifications run as for a real decline.
+ * <p>
+ * Only payments with a call outstanding time out, measured from the first attempt at the call recorded in
+ * gateway_request. A payment no call was ever made for, such as one just imported, waits in NEW for as long as it
+ * takes, and retries of the call don't restart the clock.
+ * <p>
+ * Timed out calls are found through the index on gateway_request (event, awaiting_since), oldest first, a batch at a
+ * time, so each check costs in proportion to the calls that have actually timed out rather than to all those pending.
+ * Calls whose payment has moved on, declined here or answered, are deleted as they are passed.
+ */
+@Slf4j
+@ConditionalOnProperty(prefix = "payment.statemachine.timeout", name = "enabled", havingValue = "true", matchIfMissing = true)
+@Lazy(false)
+@Component
+public class PaymentTimeoutScheduler {
+
+    private static final String EXPIRED_SQL = "select r.payment_id, p.state from gateway_request r "
+            + "join payment p on p.id = r.payment_id "
+            + "where r.event = ? and r.awaiting_since < ? order by r.awaiting_since limit ?";
+    private static final String FORGET_SQL = "delete from gateway_request where payment_id = ? and event = ? "
+            + "and awaiting_since < ?";
+
+    // The decline the state machine accepts in each state that waits on the gateway
+    private static final Map<PaymentState, PaymentEvent> TIMEOUT_EVENTS = new EnumMap<>(Map.of(
+            PaymentState.NEW, PaymentEvent.PRE_AUTH_DECLINED,
+            PaymentState.PRE_AUTH, PaymentEvent.AUTH_DECLINED));
+
+    // The event whose action makes the call a payment waits on in each of those states
+    private static final Map<PaymentState, PaymentEvent> CALLS = new EnumMap<>(Map.of(
+            PaymentState.NEW, PaymentEvent.PRE_AUTHORIZE,
+            PaymentState.PRE_AUTH, PaymentEvent.AUTHORIZE));
+
+    private static final RowMapper<Call> CALL_MAPPER = (rs, rowNum) -> new Call(rs.getLong(1),
+            PaymentState.valueOf(rs.getString(2)));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PaymentEventDispatcher paymentEventDispatcher;
+    private final Map<PaymentState, Duration> timeouts;
+    private final long checkIntervalMillis;
+    private final int batchSize;
+
+    private ScheduledExecutorService scheduler;
+
+    public PaymentTimeoutScheduler(JdbcTemplate jdbcTemplate, PaymentEventDispatcher paymentEventDispatcher,
+                                   PaymentStateMachineProperties properties) {
+        PaymentStateMachineProperties.Timeout timeout = properties.getTimeout();
+        timeout.getStates().keySet().forEach(state -> {
+            if (!TIMEOUT_EVENTS.containsKey(state)) {
+                throw new IllegalArgumentException("Payments in " + state + " cannot time out, only those in "
+                        + TIMEOUT_EVENTS.keySet() + " can");
+            }
+        });
+
+        this.jdbcTemplate = jdbcTemplate;
+        this.paymentEventDispatcher = paymentEventDispatcher;
+        this.timeouts = new EnumMap<>(timeout.getStates());
+        this.checkIntervalMillis = timeout.getCheckInterval().toMillis();
+        this.batchSize = timeout.getBatchSize();
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                declineExpired();
+            } catch (RuntimeException e) {
+                log.error("Could not decline timed out payments, will retry", e);
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Decline every payment that has waited on a gateway call in a state longer than the state's timeout.
+     *
+     * @return the number of payments declined
+     */
+    public int declineExpired() {
+        Instant now = Instant.now();
+        int declined = 0;
+        for (Map.Entry<PaymentState, Duration> timeout : timeouts.entrySet()) {
+            PaymentState state = timeout.getKey();
+            PaymentEvent call = CALLS.get(state);
+            Timestamp cutoff = Timestamp.from(now.minus(timeout.getValue()));
+
+            while (true) {
+                List<Call> calls = jdbcTemplate.query(EXPIRED_SQL, CALL_MAPPER, call.name(), cutoff, batchSize);
+                List<Long> waiting = new ArrayList<>();
+                List<Long> done = new ArrayList<>();
+                for (Call expired : calls) {
+                    (expired.state == state ? waiting : done).add(expired.paymentId);
+                }
+                List<Long> batchDeclined = decline(waiting, state);
+                declined += batchDeclined.size();
+                done.addAll(batchDeclined);
+                forget(done, call, cutoff);
+
+                // Stop once the oldest are all handled, or if none of them could be (e.g. all still locked)
+                if (calls.size() < batchSize || done.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        if (declined > 0) {
+            log.info("Declined {} payments that timed out", declined);
+        }
+        return declined;
+    }
+
+    // Returns the payments declined
+    private List<Long> decline(List<Long> ids, PaymentState state) {
+        if (ids.isEmpty()) {
+            return ids;
+        }
+
+        PaymentEvent event = TIMEOUT_EVENTS.get(state);
+        try {
+            return paymentEventDispatcher.dispatchAll(event, ids).join().stream().filter(PaymentEventResult::isAccepted)
+                    .map(PaymentEventResult::getPaymentId).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof ObjectOptimisticLockingFailureException)) {
+                throw e;
+            }
+        }
+
+        // A gateway response raced the batch; decline one by one so the others still go through
+        List<Long> declined = new ArrayList<>();
+        for (Long id : ids) {
+            try {
+                if (paymentEventDispatcher.dispatch(id, event).join() != state) {
+                    declined.add(id);
+                }
+            } catch (RuntimeException single) {
+                log.debug("Could not decline payment {}", id, single);
+            }
+        }
+        return declined;
+    }
+
+    // Only rows still as found: a payment that left the state cannot make the same call again, and another call
+    // starts its wait afresh
+    private void forget(List<Long> paymentIds, PaymentEvent call, Timestamp cutoff) {
+        if (!paymentIds.isEmpty()) {
+            jdbcTemplate.batchUpdate(FORGET_SQL, paymentIds, paymentIds.size(), (ps, paymentId) -> {
+                ps.setLong(1, paymentId);
+                ps.setString(2, call.name());
+                ps.setTimestamp(3, cutoff);
+            });
+        }
+    }
+
+    private static final class Call {
+        final long paymentId;
+        final PaymentState state;
+
+        Call(long paymentId, PaymentState state) {
+            this.paymentId = paymentId;
+            this.state = state;
+        }
+    }
+}
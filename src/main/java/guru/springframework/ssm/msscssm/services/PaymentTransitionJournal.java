@@ -0,0 +1,632 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentTransition;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind journal for payment state changes. Transitions are appended to a memory mapped, append-only file and
+ * are durable once a group commit has forced them to disk; a background applier then writes them to the payment table
+ * in batches. On startup anything not yet applied is replayed, so a crash loses nothing that was acknowledged.
+ * <p>
+ * Until a change has been applied the table is behind the journal, so readers must consult {@link #pendingState}.
+ * <p>
+ * Changes made in a transaction are journaled just before it commits, so a rollback never reaches the log, and are not
+ * applied until it completes. Should the commit itself fail after that, they are voided in place and never applied.
+ * The transaction also inserts a {@link guru.springframework.ssm.msscssm.domain.JournalCommit} row, and replay after
+ * a crash skips the records of any transaction whose row is missing, so its payments stay in step with the outbox
+ * messages, idempotency keys and gateway requests that did not commit either.
+ * <p>
+ * File layout: a header holding the position up to which records have been applied, the current epoch and an id that
+ * tells this journal's commit rows from those of other journals sharing the database, followed by fixed size records.
+ * Once every record has been applied the log wraps to the start and the epoch is bumped, which marks whatever is left
+ * from the previous pass as stale.
+ */
+@Slf4j
+@ConditionalOnProperty(prefix = "payment.statemachine.journal", name = "enabled", havingValue = "true")
+@Lazy(false)
+@Component
+public class PaymentTransitionJournal {
+
+    private static final int HEADER_SIZE = 64;
+    private static final int APPLIED_POSITION = 0;
+    private static final int EPOCH = 8;
+    private static final int JOURNAL_ID = 16;
+
+    // epoch (4), payment id (8), from (1), to (1), event (1), flags (1), timestamp (8), transaction (4), crc (4).
+    // The transaction is the position of its first record, 0 for a change journaled outside one
+    private static final int RECORD_SIZE = 32;
+    private static final int CHECKSUMMED_BYTES = 28;
+    private static final byte NONE = -1;
+    private static final byte VOID = 1;
+
+    private static final String APPLY_SQL = "update payment set state = ?, state_entered_at = ?, version = version + 1 where id = ?";
+    private static final String COMMIT_SQL = "insert into journal_commit (journal, first_record) values (?, ?)";
+    private static final String COMMITTED_SQL =
+            "select first_record from journal_commit where journal = ? and first_record >= ? and first_record < ?";
+    private static final String IS_COMMITTED_SQL =
+            "select count(*) from journal_commit where journal = ? and first_record = ?";
+    // Ordered by epoch, then position, so everything applied is below the next record to apply
+    private static final String FORGET_SQL = "delete from journal_commit where journal = ? and first_record < ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Optional<PaymentHistory> history;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate newTransactionTemplate;
+    private final Path path;
+    private final int capacity;
+    private final long applyIntervalMillis;
+    private final int applyBatchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Condition applied = lock.newCondition();
+    private final Condition applyRequested = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+
+    // Latest journaled but not yet applied state of each payment
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    // Where the records of each transaction still in flight start; the applier stops at the first of them
+    private final TreeSet<Integer> unresolved = new TreeSet<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long journalId;
+    private int epoch;
+    private int writePosition;
+    private int durablePosition;
+    private int appliedPosition;
+    private boolean applyDue;
+    private volatile boolean running;
+    private Thread committer;
+    private Thread applier;
+
+    public PaymentTransitionJournal(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                    PaymentStateMachineProperties properties, Optional<PaymentHistory> history) {
+        PaymentStateMachineProperties.Journal journal = properties.getJournal();
+        this.jdbcTemplate = jdbcTemplate;
+        this.history = history;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.path = Paths.get(journal.getPath());
+        long capacity = journal.getCapacity().toBytes();
+        if (capacity < HEADER_SIZE + RECORD_SIZE || capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("payment.statemachine.journal.capacity must be between "
+                    + (HEADER_SIZE + RECORD_SIZE) + " bytes and 2GB, was " + journal.getCapacity());
+        }
+        this.capacity = (int) capacity;
+        this.applyIntervalMillis = journal.getApplyInterval().toMillis();
+        this.applyBatchSize = journal.getApplyBatchSize();
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+        recover();
+
+        running = true;
+        committer = startThread("payment-journal-commit", this::commitLoop);
+        applier = startThread("payment-journal-apply", this::applyLoop);
+    }
+
+    /**
+     * Apply everything journaled so far and close the log.
+     */
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        awaitApplied();
+        halt();
+    }
+
+    /**
+     * Stop the background threads and close the log without applying anything; what is left is replayed on the
+     * next {@link #open}. Closing this way is what a crash looks like to the journal.
+     */
+    void halt() throws IOException, InterruptedException {
+        running = false;
+        committer.interrupt();
+        requestApply();
+        committer.join();
+        applier.join();
+
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Append a state change and wait until it is durable. Concurrent appends share a single force to disk.
+     * <p>
+     * Within a transaction the change is only buffered, and the transaction's changes are appended together just
+     * before it commits.
+     */
+    public void append(Long paymentId, PaymentState from, PaymentState to, PaymentEvent event) {
+        Change change = new Change(paymentId, from, to, event);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            write(Collections.singletonList(change), null);
+            return;
+        }
+
+        TransactionChanges changes = (TransactionChanges) TransactionSynchronizationManager.getResource(this);
+        if (changes == null) {
+            changes = new TransactionChanges();
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(changes);
+        }
+        changes.changes.add(change);
+    }
+
+    /**
+     * @return the state of the payment according to the journal, if it is newer than what is in the payment table
+     */
+    public Optional<PaymentState> pendingState(Long paymentId) {
+        Pending latest = pending.get(paymentId);
+        return latest == null ? Optional.empty() : Optional.of(latest.state);
+    }
+
+    /**
+     * Wait until every change journaled so far has been applied to the payment table.
+     */
+    public void awaitApplied() throws InterruptedException {
+        lock.lock();
+        try {
+            int target = writePosition;
+            int targetEpoch = epoch;
+            while (running && epoch == targetEpoch && appliedPosition < target) {
+                requestApply();
+                applied.await(applyIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(List<Change> changes, TransactionChanges transaction) {
+        lock.lock();
+        try {
+            // Room for all of them up front: once the first is written it holds the applier back, so the log could
+            // not wrap for the rest
+            int size = changes.size() * RECORD_SIZE;
+            if (size > capacity - HEADER_SIZE) {
+                throw new IllegalStateException(changes.size() + " payment transitions do not fit in the journal");
+            }
+            while (writePosition + size > capacity) {
+                // Full: wrap to the start once the applier has caught up with everything written
+                if (appliedPosition == writePosition) {
+                    wrap();
+                } else {
+                    requestApply();
+                    applied.await();
+                }
+            }
+
+            int first = writePosition;
+            int last = first;
+            for (Change change : changes) {
+                last = writePosition;
+                writeRecord(last, change, transaction == null ? 0 : first);
+                writePosition += RECORD_SIZE;
+                Pending previous = pending.put(change.paymentId, new Pending(change.to, epoch, last));
+                if (transaction != null) {
+                    if (transaction.positions.isEmpty()) {
+                        unresolved.add(last);
+                        transaction.id = commitId(epoch, last);
+                    }
+                    transaction.positions.add(last);
+                    transaction.previous.add(previous);
+                }
+                written.signal();
+            }
+
+            while (durablePosition <= last) {
+                durable.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the journal to commit", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        while (running) {
+            int target;
+            int targetEpoch;
+            lock.lock();
+            try {
+                while (running && writePosition == durablePosition) {
+                    written.await();
+                }
+                target = writePosition;
+                targetEpoch = epoch;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            // Outside the lock, so appends arriving meanwhile are picked up by the next force
+            buffer.force();
+
+            lock.lock();
+            try {
+                if (epoch == targetEpoch && target > durablePosition) {
+                    durablePosition = target;
+                    durable.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Wakes the applier early, because the log is full, someone is waiting for it to be applied, or to stop. Not with an
+    // interrupt, which would abort an apply under way in the JDBC driver or the connection pool
+    private void requestApply() {
+        lock.lock();
+        try {
+            applyDue = true;
+            applyRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void applyLoop() {
+        while (running) {
+            lock.lock();
+            try {
+                if (!applyDue) {
+                    applyRequested.await(applyIntervalMillis, TimeUnit.MILLISECONDS);
+                }
+                applyDue = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (!running) {
+                return;
+            }
+
+            try {
+                applyDurable();
+            } catch (RuntimeException e) {
+                log.error("Could not apply journaled payment transitions, will retry", e);
+            }
+        }
+    }
+
+    private void applyDurable() {
+        int from;
+        int to;
+        int currentEpoch;
+        lock.lock();
+        try {
+            from = appliedPosition;
+            to = unresolved.isEmpty() ? durablePosition : Math.min(durablePosition, unresolved.first());
+            currentEpoch = epoch;
+        } finally {
+            lock.unlock();
+        }
+
+        for (int batchStart = from; batchStart < to; batchStart += applyBatchSize * RECORD_SIZE) {
+            int batchEnd = Math.min(to, batchStart + applyBatchSize * RECORD_SIZE);
+            applyRecords(readRecords(batchStart, batchEnd, currentEpoch));
+
+            lock.lock();
+            try {
+                appliedPosition = batchEnd;
+                buffer.putInt(APPLIED_POSITION, appliedPosition);
+                applied.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Every transaction starting before the end is resolved, and its records are contiguous, so all applied
+        if (from < to) {
+            jdbcTemplate.update(FORGET_SQL, journalId, commitId(currentEpoch, to));
+        }
+    }
+
+    private void recover() {
+        journalId = buffer.getLong(JOURNAL_ID);
+        if (journalId == 0) {
+            journalId = new SecureRandom().nextLong() | 1;
+            buffer.putLong(JOURNAL_ID, journalId);
+        }
+        epoch = buffer.getInt(EPOCH);
+        int start = Math.max(HEADER_SIZE, buffer.getInt(APPLIED_POSITION));
+
+        List<Record> unapplied = readRecords(start, capacity, epoch);
+        Set<Long> committed = new HashSet<>(jdbcTemplate.queryForList(COMMITTED_SQL, Long.class, journalId,
+                commitId(epoch, 0), commitId(epoch + 1, 0)));
+        int journaled = unapplied.size();
+        unapplied.removeIf(record -> record.transaction != 0 && !committed.contains(commitId(epoch, record.transaction)));
+        if (unapplied.size() < journaled) {
+            log.info("Dropping {} journaled payment transitions whose transaction did not commit",
+                    journaled - unapplied.size());
+        }
+        if (!unapplied.isEmpty()) {
+            log.info("Replaying {} journaled payment transitions", unapplied.size());
+            for (int i = 0; i < unapplied.size(); i += applyBatchSize) {
+                applyRecords(unapplied.subList(i, Math.min(unapplied.size(), i + applyBatchSize)));
+            }
+        }
+
+        wrap();
+        buffer.force();
+        jdbcTemplate.update(FORGET_SQL, journalId, commitId(epoch, 0));
+    }
+
+    private static long commitId(int epoch, int position) {
+        return (long) epoch << 32 | position;
+    }
+
+    // Called with everything applied, so no append is waiting on a position from the old epoch
+    private void wrap() {
+        epoch++;
+        writePosition = HEADER_SIZE;
+        durablePosition = HEADER_SIZE;
+        appliedPosition = HEADER_SIZE;
+        buffer.putInt(EPOCH, epoch);
+        buffer.putInt(APPLIED_POSITION, appliedPosition);
+    }
+
+    private void applyRecords(List<Record> journaled) {
+        // Voided records are the changes of transactions that failed to commit
+        List<Record> records = journaled.stream().filter(record -> !record.voided).collect(Collectors.toList());
+
+        // Only the last state of each payment in the batch needs writing
+        Map<Long, Record> latest = new LinkedHashMap<>();
+        for (Record record : records) {
+            latest.remove(record.paymentId);
+            latest.put(record.paymentId, record);
+        }
+
+        List<Record> updates = new ArrayList<>(latest.values());
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.batchUpdate(APPLY_SQL, updates, updates.size(), (ps, record) -> {
+                ps.setString(1, record.to.name());
+                ps.setTimestamp(2, new Timestamp(record.timestamp));
+                ps.setLong(3, record.paymentId);
+            });
+            // Every transition goes to the history, not just the last per payment. A crash after this commits but
+            // before the applied position is saved replays the batch, so those transitions would be logged twice
+            history.ifPresent(h -> h.recordAll(records.stream().map(Record::toTransition).collect(Collectors.toList())));
+        });
+
+        for (Record record : updates) {
+            pending.computeIfPresent(record.paymentId, (id, p) ->
+                    p.epoch == record.epoch && p.position == record.position ? null : p);
+        }
+    }
+
+    private void writeRecord(int position, Change change, int transaction) {
+        buffer.putInt(position, epoch);
+        buffer.putLong(position + 4, change.paymentId);
+        buffer.put(position + 12, change.from == null ? NONE : (byte) change.from.ordinal());
+        buffer.put(position + 13, (byte) change.to.ordinal());
+        buffer.put(position + 14, change.event == null ? NONE : (byte) change.event.ordinal());
+        buffer.put(position + 15, (byte) 0);
+        buffer.putLong(position + 16, System.currentTimeMillis());
+        buffer.putInt(position + 24, transaction);
+        buffer.putInt(position + CHECKSUMMED_BYTES, checksum(position));
+    }
+
+    // Stops at the first record that is torn or left over from an earlier epoch
+    private List<Record> readRecords(int from, int to, int expectedEpoch) {
+        List<Record> records = new ArrayList<>();
+        for (int position = from; position + RECORD_SIZE <= to; position += RECORD_SIZE) {
+            if (buffer.getInt(position) != expectedEpoch || buffer.getInt(position + CHECKSUMMED_BYTES) != checksum(position)) {
+                break;
+            }
+            records.add(new Record(expectedEpoch, position, buffer.getLong(position + 4), state(buffer.get(position + 12)),
+                    state(buffer.get(position + 13)), event(buffer.get(position + 14)),
+                    buffer.get(position + 15) == VOID, buffer.getLong(position + 16), buffer.getInt(position + 24)));
+        }
+        return records;
+    }
+
+    private static PaymentState state(byte ordinal) {
+        return ordinal == NONE ? null : PaymentState.values()[ordinal];
+    }
+
+    private static PaymentEvent event(byte ordinal) {
+        return ordinal == NONE ? null : PaymentEvent.values()[ordinal];
+    }
+
+    private int checksum(int position) {
+        synchronized (crc) {
+            crc.reset();
+            for (int i = 0; i < CHECKSUMMED_BYTES; i++) {
+                crc.update(buffer.get(position + i));
+            }
+            return (int) crc.getValue();
+        }
+    }
+
+    // Lets the applier past the transaction's records, voiding them first unless it committed
+    private void complete(TransactionChanges transaction, int status) {
+        if (status == TransactionSynchronization.STATUS_UNKNOWN) {
+            status = committed(transaction) ? TransactionSynchronization.STATUS_COMMITTED
+                    : TransactionSynchronization.STATUS_ROLLED_BACK;
+        }
+
+        lock.lock();
+        try {
+            if (status == TransactionSynchronization.STATUS_ROLLED_BACK) {
+                // Newest first, so a payment changed more than once is left pending in the state it had before
+                for (int i = transaction.positions.size() - 1; i >= 0; i--) {
+                    int position = transaction.positions.get(i);
+                    Pending previous = transaction.previous.get(i);
+                    buffer.put(position + 15, VOID);
+                    buffer.putInt(position + CHECKSUMMED_BYTES, checksum(position));
+                    pending.computeIfPresent(transaction.changes.get(i).paymentId, (id, p) ->
+                            p.epoch == epoch && p.position == position ? previous : p);
+                }
+                buffer.force();
+            }
+            unresolved.remove(transaction.positions.get(0));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The transaction's row says whether it committed; if even that cannot be read, replay would have to guess as well
+    private boolean committed(TransactionChanges transaction) {
+        try {
+            return newTransactionTemplate.execute(status ->
+                    jdbcTemplate.queryForObject(IS_COMMITTED_SQL, Integer.class, journalId, transaction.id) > 0);
+        } catch (RuntimeException e) {
+            log.error("Journaled {} payment transitions whose transaction may not have committed",
+                    transaction.positions.size(), e);
+            return true;
+        }
+    }
+
+    private static Thread startThread(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * The changes of one transaction, journaled just before it commits and held back from the applier until it
+     * completes. Ordered first so that a failed commit voids them before the payment locks are released.
+     */
+    private final class TransactionChanges implements TransactionSynchronization {
+        final List<Change> changes = new ArrayList<>();
+        // Where each change was journaled, and the pending state it replaced
+        final List<Integer> positions = new ArrayList<>();
+        final List<Pending> previous = new ArrayList<>();
+        long id;
+
+        @Override
+        public int getOrder() {
+            return Ordered.HIGHEST_PRECEDENCE;
+        }
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            write(changes, this);
+            jdbcTemplate.update(COMMIT_SQL, journalId, id);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(PaymentTransitionJournal.this);
+            if (!positions.isEmpty()) {
+                complete(this, status);
+            }
+        }
+    }
+
+    private static final class Change {
+        final Long paymentId;
+        final PaymentState from;
+        final PaymentState to;
+        final PaymentEvent event;
+
+        Change(Long paymentId, PaymentState from, PaymentState to, PaymentEvent event) {
+            this.paymentId = paymentId;
+            this.from = from;
+            this.to = to;
+            this.event = event;
+        }
+    }
+
+    private static final class Pending {
+        final PaymentState state;
+        final int epoch;
+        final int position;
+
+        Pending(PaymentState state, int epoch, int position) {
+            this.state = state;
+            this.epoch = epoch;
+            this.position = position;
+        }
+    }
+
+    private static final class Record {
+        final int epoch;
+        final int position;
+        final long paymentId;
+        final PaymentState from;
+        final PaymentState to;
+        final PaymentEvent event;
+        final boolean voided;
+        final long timestamp;
+        final int transaction;
+
+        Record(int epoch, int position, long paymentId, PaymentState from, PaymentState to, PaymentEvent event,
+               boolean voided, long timestamp, int transaction) {
+            this.epoch = epoch;
+            this.position = position;
+            this.paymentId = paymentId;
+            this.from = from;
+            this.to = to;
+            this.event = event;
+            this.voided = voided;
+            this.timestamp = timestamp;
+            this.transaction = transaction;
+        }
+
+        PaymentTransition toTransition() {
+            return PaymentTransition.builder()
+                    .paymentId(paymentId)
+                    .fromState(from)
+                    .toState(to)
+                    .event(event)
+                    .created(Instant.ofEpochMilli(timestamp))
+                    .build();
+        }
+    }
+}
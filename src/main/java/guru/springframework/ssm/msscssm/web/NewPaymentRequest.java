@@ -0,0 +1,15 @@
+package guru.springframework.ssm.msscssm.web;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class NewPaymentRequest {
+
+    private BigDecimal amount;
+}
@@ -0,0 +1,40 @@
+package guru.springframework.ssm.msscssm.web;
+
+import guru.springframework.ssm.msscssm.services.IdempotencyKeyReusedException;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.http.HttpStatus;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import javax.persistence.EntityNotFoundException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Maps service failures to statuses for both the servlet and the reactive API.
+ */
+@RestControllerAdvice
+public class PaymentApiExceptionHandler {
+
+    @ResponseStatus(HttpStatus.NOT_FOUND)
+    @ExceptionHandler(EntityNotFoundException.class)
+    public void paymentNotFound() {
+    }
+
+    @ResponseStatus(HttpStatus.CONFLICT)
+    @ExceptionHandler(ObjectOptimisticLockingFailureException.class)
+    public void concurrentUpdate() {
+    }
+
+    @ResponseStatus(HttpStatus.UNPROCESSABLE_ENTITY)
+    @ExceptionHandler(IdempotencyKeyReusedException.class)
+    public void idempotencyKeyReused() {
+    }
+
+    // The dispatch queue is full or the payment stayed locked; the client should back off and retry
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    @ExceptionHandler({RejectedExecutionException.class, CannotAcquireLockException.class})
+    public void overloaded() {
+    }
+}
@@ -0,0 +1,66 @@
+package guru.springframework.ssm.msscssm.web;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import guru.springframework.ssm.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Servlet flavour of the payment API. Events are handed to the {@link PaymentEventDispatcher} and the request is
+ * completed asynchronously, so no container thread waits while a payment's machine runs.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+@RequestMapping(PaymentController.BASE_PATH)
+@RestController
+public class PaymentController {
+
+    public static final String BASE_PATH = "/api/v1/payments";
+
+    // Optional on events; a retry with the same key gets the first response without the event running again
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    private final PaymentService paymentService;
+    private final PaymentRepository paymentRepository;
+    private final PaymentEventDispatcher paymentEventDispatcher;
+
+    @ResponseStatus(HttpStatus.CREATED)
+    @PostMapping
+    public Payment newPayment(@RequestBody NewPaymentRequest request) {
+        return paymentService.newPayment(Payment.builder().amount(request.getAmount()).build());
+    }
+
+    @GetMapping("/{paymentId}")
+    public ResponseEntity<Payment> getPayment(@PathVariable Long paymentId) {
+        return ResponseEntity.of(paymentRepository.findById(paymentId));
+    }
+
+    @PostMapping("/{paymentId}/events/{event}")
+    public CompletableFuture<PaymentStateResponse> sendEvent(@PathVariable Long paymentId, @PathVariable PaymentEvent event,
+                                                             @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return paymentEventDispatcher.dispatch(paymentId, event, idempotencyKey)
+                .thenApply(state -> new PaymentStateResponse(paymentId, state));
+    }
+
+    @PostMapping("/events/{event}")
+    public CompletableFuture<List<PaymentEventResult>> sendEvents(@PathVariable PaymentEvent event, @RequestBody List<Long> paymentIds) {
+        return paymentEventDispatcher.dispatchAll(event, paymentIds);
+    }
+}
@@ -0,0 +1,12 @@
+package guru.springframework.ssm.msscssm.web;
+
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import lombok.Value;
+
+@Value
+public class PaymentStateResponse {
+
+    Long paymentId;
+
+    PaymentState state;
+}
@@ -0,0 +1,61 @@
+package guru.springframework.ssm.msscssm.web;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * WebFlux flavour of the payment API, enabled with the reactive profile. Payments are created and read through
+ * R2DBC; events still run on the {@link PaymentEventDispatcher}, whose futures are bridged to Mono so event loop
+ * threads never wait on the machine or JPA.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequiredArgsConstructor
+@RequestMapping(PaymentController.BASE_PATH)
+@RestController
+public class ReactivePaymentController {
+
+    private final ReactivePaymentQueries reactivePaymentQueries;
+    private final PaymentEventDispatcher paymentEventDispatcher;
+
+    @ResponseStatus(HttpStatus.CREATED)
+    @PostMapping
+    public Mono<Payment> newPayment(@RequestBody NewPaymentRequest request) {
+        return reactivePaymentQueries.newPayment(request.getAmount());
+    }
+
+    @GetMapping("/{paymentId}")
+    public Mono<ResponseEntity<Payment>> getPayment(@PathVariable Long paymentId) {
+        return reactivePaymentQueries.findById(paymentId)
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    @PostMapping("/{paymentId}/events/{event}")
+    public Mono<PaymentStateResponse> sendEvent(@PathVariable Long paymentId, @PathVariable PaymentEvent event,
+                                                @RequestHeader(name = PaymentController.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return Mono.fromFuture(() -> paymentEventDispatcher.dispatch(paymentId, event, idempotencyKey))
+                .map(state -> new PaymentStateResponse(paymentId, state));
+    }
+
+    @PostMapping("/events/{event}")
+    public Mono<List<PaymentEventResult>> sendEvents(@PathVariable PaymentEvent event, @RequestBody List<Long> paymentIds) {
+        return Mono.fromFuture(() -> paymentEventDispatcher.dispatchAll(event, paymentIds));
+    }
+}
@@ -0,0 +1,76 @@
+package guru.springframework.ssm.msscssm.web;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import io.r2dbc.spi.Row;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Optional;
+
+/**
+ * Non-blocking reads and inserts of payments for the reactive API. Works on the same table, and takes ids from the
+ * same sequence, as the JPA mapping of {@link Payment}.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequiredArgsConstructor
+@Component
+public class ReactivePaymentQueries {
+
+    private final DatabaseClient databaseClient;
+
+    public Mono<Payment> newPayment(BigDecimal amount) {
+        return databaseClient.sql("select next value for payment_seq")
+                .map(row -> row.get(0, Long.class))
+                .one()
+                .flatMap(id -> {
+                    Instant now = Instant.now();
+                    Payment payment = Payment.builder().id(id).amount(amount).state(PaymentState.NEW)
+                            .created(now).stateEnteredAt(now).version(0).build();
+                    return databaseClient.sql("insert into payment (id, amount, state, created, state_entered_at, version) "
+                            + "values (:id, :amount, :state, :created, :stateEnteredAt, :version)")
+                            .bind("id", payment.getId())
+                            .bind("amount", payment.getAmount())
+                            .bind("state", payment.getState().name())
+                            .bind("created", toLocal(payment.getCreated()))
+                            .bind("stateEnteredAt", toLocal(payment.getStateEnteredAt()))
+                            .bind("version", payment.getVersion())
+                            .then()
+                            .thenReturn(payment);
+                });
+    }
+
+    public Mono<Payment> findById(Long paymentId) {
+        return databaseClient.sql("select id, amount, state, created, state_entered_at, version from payment where id = :id")
+                .bind("id", paymentId)
+                .map(ReactivePaymentQueries::toPayment)
+                .one();
+    }
+
+    private static Payment toPayment(Row row) {
+        return Payment.builder()
+                .id(row.get("id", Long.class))
+                .amount(row.get("amount", BigDecimal.class))
+                .state(PaymentState.valueOf(row.get("state", String.class)))
+                .created(toInstant(row.get("created", LocalDateTime.class)))
+                .stateEnteredAt(toInstant(row.get("state_entered_at", LocalDateTime.class)))
+                .version(row.get("version", Integer.class))
+                .build();
+    }
+
+    // Timestamps are stored without a zone, as Hibernate writes them through JDBC
+    private static LocalDateTime toLocal(Instant instant) {
+        return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+    }
+
+    private static Instant toInstant(LocalDateTime dateTime) {
+        return Optional.ofNullable(dateTime).map(local -> local.atZone(ZoneId.systemDefault()).toInstant()).orElse(null);
+    }
+}
@@ -0,0 +1,107 @@
+package guru.springframework.ssm.msscssm.checks;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.statemachine.timeout.enabled=false",
+        "payment.gateway.stub.latency=200ms",
+        "payment.gateway.stub.approval-rate=1",
+        "payment.checks.fraud.latency=600ms",
+        "payment.checks.limits.latency=400ms"})
+class AuthorizationChecksTest {
+
+    // Gateway, fraud and limits one after another
+    static final long SEQUENTIAL_MILLIS = 1200;
+    static final long SLOWEST_MILLIS = 600;
+
+    @Autowired
+    AuthorizationChecks authorizationChecks;
+
+    @Autowired
+    PaymentCheckProperties properties;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Test
+    void authorizationTakesAsLongAsTheSlowestCheck() throws Exception {
+        // Not timed cold
+        authorizationChecks.authorize(0L).get(5, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        assertTrue(authorizationChecks.authorize(1L).get(5, TimeUnit.SECONDS));
+        long joinMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Long paymentId = preAuthorizedPayment();
+        start = System.nanoTime();
+        paymentService.sendEvent(paymentId, PaymentEvent.AUTHORIZE);
+        assertEquals(PaymentState.AUTH, awaitStateChange(paymentId, PaymentState.PRE_AUTH));
+        long authMillis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.printf("Checks joined in %dms, AUTH reached in %dms, the checks take %dms one after another%n",
+                joinMillis, authMillis, SEQUENTIAL_MILLIS);
+        assertTrue(joinMillis >= SLOWEST_MILLIS && joinMillis < SEQUENTIAL_MILLIS, joinMillis + "ms");
+        assertTrue(authMillis < SEQUENTIAL_MILLIS, authMillis + "ms");
+    }
+
+    @Test
+    void failedCheckDeclinesWithoutWaitingForTheOthers() throws Exception {
+        properties.getLimits().setPassRate(0);
+        try {
+            long start = System.nanoTime();
+            assertFalse(authorizationChecks.authorize(2L).get(5, TimeUnit.SECONDS));
+            long declineMillis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(declineMillis < SLOWEST_MILLIS, declineMillis + "ms");
+
+            Long paymentId = preAuthorizedPayment();
+            paymentService.sendEvent(paymentId, PaymentEvent.AUTHORIZE);
+            assertEquals(PaymentState.AUTH_ERROR, awaitStateChange(paymentId, PaymentState.PRE_AUTH));
+        } finally {
+            properties.getLimits().setPassRate(1);
+        }
+    }
+
+    @Test
+    void checkThatDoesNotAnswerInTimeDeclines() throws Exception {
+        properties.setTimeout(Duration.ofMillis(100));
+        try {
+            assertFalse(authorizationChecks.authorize(3L).get(5, TimeUnit.SECONDS));
+        } finally {
+            properties.setTimeout(Duration.ofSeconds(5));
+        }
+    }
+
+    Long preAuthorizedPayment() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED);
+        return paymentId;
+    }
+
+    // The checks' verdict is delivered asynchronously, in its own transaction
+    PaymentState awaitStateChange(Long paymentId, PaymentState pending) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        PaymentState state;
+        while ((state = paymentRepository.findById(paymentId).orElseThrow().getState()) == pending
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return state;
+    }
+}
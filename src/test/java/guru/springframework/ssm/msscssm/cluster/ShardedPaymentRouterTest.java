@@ -0,0 +1,239 @@
+package guru.springframework.ssm.msscssm.cluster;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import guru.springframework.ssm.msscssm.services.PaymentEventDispatcher;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.cluster.enabled=true",
+        "payment.cluster.local-shards=2"})
+class ShardedPaymentRouterTest {
+
+    static final int IDS = 100_000;
+    static final int PAYMENTS = 300;
+    static final int SHARDS = 4;
+
+    @Autowired
+    ShardedPaymentRouter router;
+
+    @Autowired
+    PaymentEventDispatcher dispatcher;
+
+    @Autowired
+    LocalShardMembership membership;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Test
+    void addingAShardMovesOnlyItsShare() {
+        List<PaymentShard> shards = IntStream.range(0, 4).mapToObj(i -> shard("node-" + i)).collect(Collectors.toList());
+        Map<Long, PaymentShard> before = owners(new ConsistentHashRing(shards, 128));
+
+        Map<PaymentShard, Long> load = before.values().stream()
+                .collect(Collectors.groupingBy(shard -> shard, Collectors.counting()));
+        load.values().forEach(count -> assertEquals(IDS / 4.0, count, IDS * 0.08));
+
+        PaymentShard added = shard("node-4");
+        List<PaymentShard> grown = new ArrayList<>(shards);
+        grown.add(added);
+        Map<Long, PaymentShard> after = owners(new ConsistentHashRing(grown, 128));
+
+        List<Long> moved = before.keySet().stream()
+                .filter(id -> before.get(id) != after.get(id))
+                .collect(Collectors.toList());
+        assertEquals(IDS / 5.0, moved.size(), IDS * 0.06);
+        moved.forEach(id -> assertSame(added, after.get(id)));
+
+        // And when it leaves again, each payment goes back where it was
+        assertEquals(before, owners(new ConsistentHashRing(shards, 128)));
+    }
+
+    @Test
+    void eventsKeepTheirOrderWhileShardsJoinAndLeave() throws Exception {
+        List<Long> ids = newPayments(PAYMENTS);
+        LocalPaymentShard joining = new LocalPaymentShard("joining", paymentService, new PaymentStateMachineProperties.Dispatch());
+
+        List<CompletableFuture<PaymentState>> results = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i == PAYMENTS / 3) {
+                membership.join(joining);
+            }
+            if (i == 2 * PAYMENTS / 3) {
+                membership.leave(joining);
+            }
+            results.add(router.dispatch(ids.get(i), PaymentEvent.PRE_AUTH_APPROVED));
+            results.add(router.dispatch(ids.get(i), PaymentEvent.AUTH_DECLINED));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        joining.close();
+
+        for (Long id : ids) {
+            assertEquals(PaymentState.AUTH_ERROR, paymentRepository.findById(id).orElseThrow().getState());
+        }
+    }
+
+    @Test
+    void routerIsTheApplicationsDispatcher() throws Exception {
+        assertSame(router, dispatcher);
+
+        List<Long> ids = newPayments(20);
+        List<Long> requested = new ArrayList<>(ids);
+        requested.add(-1L); // does not exist
+
+        // Split over the shards, and put back together in the order asked for
+        List<PaymentEventResult> results = dispatcher.dispatchAll(PaymentEvent.PRE_AUTH_APPROVED, requested)
+                .get(30, TimeUnit.SECONDS);
+
+        assertEquals(requested.size(), results.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), results.get(i).getPaymentId());
+            assertEquals(PaymentState.PRE_AUTH, results.get(i).getState());
+        }
+        assertFalse(results.get(ids.size()).isAccepted());
+    }
+
+    @Test
+    void eachShardRunsTheEventsOfThePaymentsItOwns() throws Exception {
+        // One thread per shard, so the shards can only all be busy at once if each runs its own events
+        CountDownLatch allBusy = new CountDownLatch(SHARDS);
+        Map<String, List<Long>> ran = new ConcurrentHashMap<>();
+        LocalShardMembership members = new LocalShardMembership();
+        PaymentStateMachineProperties.Dispatch dispatch = new PaymentStateMachineProperties.Dispatch();
+        dispatch.setThreads(1);
+        for (int i = 0; i < SHARDS; i++) {
+            String id = "node-" + i;
+            members.join(new LocalPaymentShard(id, waitingForAll(allBusy, ran.computeIfAbsent(id,
+                    shard -> Collections.synchronizedList(new ArrayList<>()))), dispatch));
+        }
+        ShardedPaymentRouter shardedRouter = new ShardedPaymentRouter(members, 128);
+
+        Map<PaymentShard, Long> onePerShard = new HashMap<>();
+        for (long id = 1; onePerShard.size() < SHARDS; id++) {
+            onePerShard.putIfAbsent(shardedRouter.owner(id), id);
+        }
+
+        try {
+            CompletableFuture.allOf(onePerShard.values().stream()
+                    .map(id -> shardedRouter.dispatch(id, PaymentEvent.PRE_AUTH_APPROVED))
+                    .toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        } finally {
+            members.shutdown();
+        }
+
+        onePerShard.forEach((shard, id) -> assertEquals(List.of(id), ran.get(shard.getId())));
+    }
+
+    static Map<Long, PaymentShard> owners(ConsistentHashRing ring) {
+        Map<Long, PaymentShard> owners = new HashMap<>();
+        for (long id = 1; id <= IDS; id++) {
+            owners.put(id, ring.owner(id));
+        }
+        return owners;
+    }
+
+    List<Long> newPayments(int count) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
+        return ids;
+    }
+
+    static PaymentShard shard(String id) {
+        return new PaymentShard() {
+            @Override
+            public String getId() {
+                return id;
+            }
+
+            @Override
+            public CompletableFuture<PaymentState> sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<List<PaymentEventResult>> sendEvents(PaymentEvent event, Collection<Long> paymentIds) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Records the events it runs, each of which waits until every shard is running one
+    static PaymentService waitingForAll(CountDownLatch allBusy, List<Long> ran) {
+        return new PaymentService() {
+            @Override
+            public Payment newPayment(Payment payment) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public PaymentState preAuthorizePayment(Long paymentId) {
+                return sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE);
+            }
+
+            @Override
+            public PaymentState authorizePayment(Long paymentId) {
+                return sendEvent(paymentId, PaymentEvent.AUTHORIZE);
+            }
+
+            @Override
+            public PaymentState declineAuthorizePayment(Long paymentId) {
+                return sendEvent(paymentId, PaymentEvent.AUTH_DECLINED);
+            }
+
+            @Override
+            public PaymentState sendEvent(Long paymentId, PaymentEvent event) {
+                return sendEvent(paymentId, event, null);
+            }
+
+            @Override
+            public PaymentState sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+                ran.add(paymentId);
+                allBusy.countDown();
+                try {
+                    if (!allBusy.await(10, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Not every shard was running an event");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                return PaymentState.PRE_AUTH;
+            }
+
+            @Override
+            public List<PaymentEventResult> sendEvents(PaymentEvent event, Collection<Long> paymentIds) {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
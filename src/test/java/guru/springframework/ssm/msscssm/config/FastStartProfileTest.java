@@ -0,0 +1,70 @@
+package guru.springframework.ssm.msscssm.config;
+
+import guru.springframework.ssm.msscssm.config.table.PaymentTransitionModel;
+import guru.springframework.ssm.msscssm.config.table.TableStateMachineFactory;
+import guru.springframework.ssm.msscssm.config.table.TransitionModelGenerator;
+import guru.springframework.ssm.msscssm.config.table.TransitionTable;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ActiveProfiles("fast-start")
+@SpringBootTest(properties = "spring.jpa.show-sql=false")
+class FastStartProfileTest {
+
+    @Autowired
+    ConfigurableApplicationContext context;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Test
+    void classpathModelIsUpToDate() throws Exception {
+        assertEquals(TransitionModelGenerator.generate(), PaymentTransitionModel.load());
+    }
+
+    @Test
+    void paymentsRunWithoutTheSpringStateMachineFactory() {
+        Long paymentId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+
+        assertEquals(PaymentState.NEW, paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE));
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED));
+        assertEquals(PaymentState.AUTH, paymentService.sendEvent(paymentId, PaymentEvent.AUTH_APPROVED));
+
+        assertFalse(context.getBeanFactory().containsSingleton("stateMachineFactory"));
+    }
+
+    // Builds the Spring factory, which the other tests expect not to exist
+    @DirtiesContext
+    @Test
+    @SuppressWarnings("unchecked")
+    void precompiledTableMatchesTheDsl() {
+        TransitionTable precompiled = context.getBean(TableStateMachineFactory.class).getTable();
+        TransitionTable dsl = TransitionTable.compile(context.getBean(StateMachineFactory.class).getStateMachine());
+
+        assertEquals(dsl.getInitialState().getId(), precompiled.getInitialState().getId());
+        for (PaymentState state : PaymentState.values()) {
+            assertEquals(dsl.isEnd(state), precompiled.isEnd(state), state.name());
+            for (PaymentEvent event : PaymentEvent.values()) {
+                TransitionTable.Row expected = dsl.lookup(state, event);
+                TransitionTable.Row actual = precompiled.lookup(state, event);
+                assertEquals(expected == null, actual == null, state + " on " + event);
+                if (expected != null) {
+                    assertEquals(expected.getTarget(), actual.getTarget(), state + " on " + event);
+                }
+            }
+        }
+    }
+}
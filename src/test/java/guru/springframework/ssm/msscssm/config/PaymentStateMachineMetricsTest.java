@@ -0,0 +1,69 @@
+package guru.springframework.ssm.msscssm.config;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@AutoConfigureMockMvc
+@SpringBootTest
+class PaymentStateMachineMetricsTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Test
+    void eventsGuardsActionsAndPersistenceAreTimed() throws Exception {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        long accepted = count("payment.statemachine.events", "event", "PRE_AUTH_APPROVED", "outcome", "accepted");
+        long rejected = count("payment.statemachine.events", "event", "PRE_AUTH_APPROVED", "outcome", "rejected");
+        long actions = count("payment.statemachine.action", "action", "preAuthApprovedAction", "outcome", "success");
+        long persisted = count("payment.statemachine.persist", "target", "entity");
+        long resets = count("payment.statemachine.machine", "operation", "reset");
+        long guards = count("payment.statemachine.guard", "guard", "paymentIdGuard", "result", "true");
+
+        paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+        // Already PRE_AUTH, so this one has no transition
+        paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+
+        assertEquals(accepted + 1, count("payment.statemachine.events", "event", "PRE_AUTH_APPROVED", "outcome", "accepted"));
+        assertEquals(rejected + 1, count("payment.statemachine.events", "event", "PRE_AUTH_APPROVED", "outcome", "rejected"));
+        assertEquals(actions + 1, count("payment.statemachine.action", "action", "preAuthApprovedAction", "outcome", "success"));
+        assertEquals(persisted + 1, count("payment.statemachine.persist", "target", "entity"));
+        assertEquals(resets + 2, count("payment.statemachine.machine", "operation", "reset"));
+
+        Payment another = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        paymentService.preAuthorizePayment(another.getId());
+        assertEquals(guards + 1, count("payment.statemachine.guard", "guard", "paymentIdGuard", "result", "true"));
+    }
+
+    @Test
+    void timersAreExposedThroughActuator() throws Exception {
+        mockMvc.perform(get("/actuator/metrics/payment.statemachine.events").param("tag", "event:PRE_AUTH_APPROVED"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.name").value("payment.statemachine.events"));
+    }
+
+    long count(String name, String... tags) {
+        return meterRegistry.get(name).tags(tags).timer().count();
+    }
+}
@@ -1,13 +1,23 @@
 package guru.springframework.ssm.msscssm.config;
 
+import guru.springframework.ssm.msscssm.config.table.TableStateMachineFactory;
 import guru.springframework.ssm.msscssm.domain.PaymentEvent;
 import guru.springframework.ssm.msscssm.domain.PaymentState;
-import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.messaging.Message;
 import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.action.Action;
 import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.monitor.AbstractStateMachineMonitor;
+import org.springframework.statemachine.state.State;
+import org.springframework.statemachine.support.StateMachineInterceptorAdapter;
+import org.springframework.statemachine.transition.Transition;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -18,24 +28,119 @@ class StateMachineConfigTest {
     @Autowired
     StateMachineFactory<PaymentState, PaymentEvent> factory;
 
-    @Test
-    void testNewStateMachine() {
-        StateMachine<PaymentState, PaymentEvent> sm = factory.getStateMachine(UUID.randomUUID());
+    @Autowired
+    TableStateMachineFactory tableFactory;
+
+    @ParameterizedTest
+    @EnumSource(PaymentStateMachineProperties.Engine.class)
+    void testNewStateMachine(PaymentStateMachineProperties.Engine engine) {
+        StateMachine<PaymentState, PaymentEvent> sm = getStateMachine(engine, UUID.randomUUID());
 
         sm.start();
 
         System.out.println(sm.getState().toString()); // should be NEW
+        assertEquals(PaymentState.NEW, sm.getState().getId());
 
         sm.sendEvent(PaymentEvent.PRE_AUTHORIZE);
 
         System.out.println(sm.getState().toString());  // should still be NEW
+        assertEquals(PaymentState.NEW, sm.getState().getId());
 
         sm.sendEvent(PaymentEvent.PRE_AUTH_APPROVED);
 
         System.out.println(sm.getState().toString()); // should be PRE_AUTH
+        assertEquals(PaymentState.PRE_AUTH, sm.getState().getId());
 
         sm.sendEvent(PaymentEvent.PRE_AUTH_DECLINED);
 
         System.out.println(sm.getState().toString()); // should still be PRE_AUTH, and not throw any errors
+        assertEquals(PaymentState.PRE_AUTH, sm.getState().getId());
+    }
+
+    @ParameterizedTest
+    @EnumSource(PaymentStateMachineProperties.Engine.class)
+    void testTerminalStateCompletesMachine(PaymentStateMachineProperties.Engine engine) {
+        StateMachine<PaymentState, PaymentEvent> sm = getStateMachine(engine, UUID.randomUUID());
+
+        sm.start();
+
+        assertTrue(sm.sendEvent(PaymentEvent.PRE_AUTH_DECLINED));
+        assertEquals(PaymentState.PRE_AUTH_ERROR, sm.getState().getId());
+        assertTrue(sm.isComplete());
+
+        assertFalse(sm.sendEvent(PaymentEvent.PRE_AUTH_APPROVED)); // terminal state, nothing more is accepted
+        assertEquals(PaymentState.PRE_AUTH_ERROR, sm.getState().getId());
+    }
+
+    @ParameterizedTest
+    @EnumSource(PaymentStateMachineProperties.Engine.class)
+    void testInterceptorSeesStateChanges(PaymentStateMachineProperties.Engine engine) {
+        StateMachine<PaymentState, PaymentEvent> sm = getStateMachine(engine, UUID.randomUUID());
+        List<String> calls = new ArrayList<>();
+
+        sm.getStateMachineAccessor().doWithAllRegions(sma -> sma.addStateMachineInterceptor(new StateMachineInterceptorAdapter<>() {
+            @Override
+            public void preStateChange(State<PaymentState, PaymentEvent> state, Message<PaymentEvent> message,
+                                       Transition<PaymentState, PaymentEvent> transition, StateMachine<PaymentState, PaymentEvent> stateMachine) {
+                calls.add("pre " + state.getId());
+            }
+
+            @Override
+            public void postStateChange(State<PaymentState, PaymentEvent> state, Message<PaymentEvent> message,
+                                        Transition<PaymentState, PaymentEvent> transition, StateMachine<PaymentState, PaymentEvent> stateMachine) {
+                calls.add("post " + state.getId());
+            }
+        }));
+
+        sm.start();
+        sm.sendEvent(PaymentEvent.PRE_AUTH_APPROVED);
+        sm.sendEvent(PaymentEvent.AUTH_DECLINED);
+
+        assertEquals(List.of("post NEW", "pre PRE_AUTH", "post PRE_AUTH", "pre AUTH_ERROR", "post AUTH_ERROR"), calls);
+    }
+
+    @ParameterizedTest
+    @EnumSource(PaymentStateMachineProperties.Engine.class)
+    void testMonitorSeesTransitionsAndActions(PaymentStateMachineProperties.Engine engine) {
+        StateMachine<PaymentState, PaymentEvent> sm = getStateMachine(engine, UUID.randomUUID());
+        List<PaymentState> transitions = new ArrayList<>();
+        List<Action<PaymentState, PaymentEvent>> actions = new ArrayList<>();
+
+        sm.getStateMachineAccessor().doWithAllRegions(sma -> sma.addStateMachineMonitor(new AbstractStateMachineMonitor<>() {
+            @Override
+            public void transition(StateMachine<PaymentState, PaymentEvent> stateMachine,
+                                   Transition<PaymentState, PaymentEvent> transition, long duration) {
+                transitions.add(transition.getTarget().getId());
+            }
+
+            @Override
+            public void action(StateMachine<PaymentState, PaymentEvent> stateMachine,
+                               Action<PaymentState, PaymentEvent> action, long duration) {
+                actions.add(action);
+            }
+        }));
+
+        sm.start();
+        sm.sendEvent(PaymentEvent.PRE_AUTH_APPROVED);
+
+        assertEquals(PaymentState.PRE_AUTH, transitions.get(transitions.size() - 1));
+        assertFalse(actions.isEmpty());
+    }
+
+    @ParameterizedTest
+    @EnumSource(PaymentStateMachineProperties.Engine.class)
+    void testInitialStateDisabled(PaymentStateMachineProperties.Engine engine) {
+        StateMachine<PaymentState, PaymentEvent> sm = getStateMachine(engine, UUID.randomUUID());
+
+        sm.getStateMachineAccessor().doWithAllRegions(sma -> sma.setInitialEnabled(false));
+        sm.start();
+
+        assertNull(sm.getState());
+    }
+
+    private StateMachine<PaymentState, PaymentEvent> getStateMachine(PaymentStateMachineProperties.Engine engine, UUID uuid) {
+        return engine == PaymentStateMachineProperties.Engine.TABLE
+                ? tableFactory.getStateMachine(uuid)
+                : factory.getStateMachine(uuid);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,157 @@
+package guru.springframework.ssm.msscssm.outbox;
+
+import guru.springframework.ssm.msscssm.domain.OutboxMessage;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.outbox.relay.batch-size=20",
+        "payment.outbox.relay.poll-interval=10ms",
+        "payment.outbox.relay.initial-backoff=5ms",
+        "payment.outbox.relay.max-backoff=50ms",
+        "payment.outbox.in-memory.enabled=true",
+        // Small and flaky, so batches are both rejected for lack of room and failed outright
+        "payment.outbox.in-memory.capacity=50",
+        "payment.outbox.in-memory.failure-rate=0.3"})
+class PaymentOutboxTest {
+
+    static final int PAYMENTS = 200;
+    static final int BULK_PAYMENTS = 50;
+    static final int ROLLED_BACK_PAYMENTS = 20;
+    static final int THREADS = 8;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    InMemoryOutboxPublisher publisher;
+
+    @Autowired
+    OutboxRelay relay;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void everyCommittedNotificationIsPublishedExactlyOnce() throws Exception {
+        Map<Long, List<PaymentEvent>> expected = new ConcurrentHashMap<>();
+        List<OutboxMessage> received = new ArrayList<>();
+
+        // A slow consumer, so the publisher fills up and pushes back on the relay
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        Future<?> consuming = consumer.submit(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                received.addAll(publisher.take(10));
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < PAYMENTS; i++) {
+                boolean approve = i % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    Long id = newPayment().getId();
+                    PaymentEvent auth = approve ? PaymentEvent.AUTH_APPROVED : PaymentEvent.AUTH_DECLINED;
+                    paymentService.sendEvent(id, PaymentEvent.PRE_AUTH_APPROVED);
+                    paymentService.sendEvent(id, auth);
+                    expected.put(id, List.of(PaymentEvent.PRE_AUTH_APPROVED, auth));
+                }));
+            }
+            for (int i = 0; i < ROLLED_BACK_PAYMENTS; i++) {
+                futures.add(executor.submit(() -> {
+                    Long id = newPayment().getId();
+                    new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                        paymentService.sendEvent(id, PaymentEvent.PRE_AUTH_APPROVED);
+                        status.setRollbackOnly();
+                    });
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<Long> bulk = new ArrayList<>();
+        for (int i = 0; i < BULK_PAYMENTS; i++) {
+            bulk.add(newPayment().getId());
+        }
+        paymentService.sendEvents(PaymentEvent.PRE_AUTH_DECLINED, bulk);
+        bulk.forEach(id -> expected.put(id, List.of(PaymentEvent.PRE_AUTH_DECLINED)));
+
+        int expectedCount = expected.values().stream().mapToInt(List::size).sum();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (relay.pending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // Give the consumer time to take whatever was published last
+        Thread.sleep(200);
+        consuming.cancel(true);
+        consumer.shutdown();
+        assertTrue(consumer.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(0, relay.pending());
+        Set<Long> ids = received.stream().map(OutboxMessage::getId).collect(Collectors.toSet());
+        assertEquals(received.size(), ids.size(), "duplicate messages published");
+        assertEquals(expectedCount, received.size());
+
+        // Per payment, in the order the events happened, and nothing from the rolled back transactions
+        Map<Long, List<PaymentEvent>> published = received.stream().collect(Collectors.groupingBy(
+                OutboxMessage::getPaymentId, Collectors.mapping(OutboxMessage::getEvent, Collectors.toList())));
+        assertEquals(expected, published);
+        received.forEach(message -> assertEquals(expectedState(message.getEvent()), message.getState()));
+
+        // Some batches must have gone through only on a retry
+        assertTrue(received.stream().anyMatch(message -> message.getAttempts() > 0));
+        System.out.printf("Published %d notifications, %d after at least one retry%n", received.size(),
+                received.stream().filter(message -> message.getAttempts() > 0).count());
+    }
+
+    Payment newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+    }
+
+    static PaymentState expectedState(PaymentEvent event) {
+        switch (event) {
+            case PRE_AUTH_APPROVED:
+                return PaymentState.PRE_AUTH;
+            case PRE_AUTH_DECLINED:
+                return PaymentState.PRE_AUTH_ERROR;
+            case AUTH_APPROVED:
+                return PaymentState.AUTH;
+            case AUTH_DECLINED:
+                return PaymentState.AUTH_ERROR;
+            default:
+                throw new IllegalArgumentException(event.name());
+        }
+    }
+}
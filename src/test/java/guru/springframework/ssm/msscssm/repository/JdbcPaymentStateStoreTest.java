@@ -0,0 +1,99 @@
+package guru.springframework.ssm.msscssm.repository;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentStateStore.StateChange;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import guru.springframework.ssm.msscssm.services.PaymentService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+
+import javax.persistence.EntityNotFoundException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {"spring.jpa.show-sql=false", "payment.statemachine.store=jdbc"})
+class JdbcPaymentStateStoreTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentStateStore paymentStateStore;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void storeIsJdbc() {
+        assertTrue(paymentStateStore instanceof JdbcPaymentStateStore);
+    }
+
+    @Test
+    void sendEventWritesTheNewState() {
+        Long id = newPayment();
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(id, PaymentEvent.PRE_AUTH_APPROVED));
+
+        assertEquals("PRE_AUTH", jdbcTemplate.queryForObject("select state from payment where id = ?", String.class, id));
+        assertEquals(1, jdbcTemplate.queryForObject("select version from payment where id = ?", Integer.class, id));
+    }
+
+    @Test
+    void sendEventToUnknownPayment() {
+        assertThrows(EntityNotFoundException.class, () -> paymentService.sendEvent(-1L, PaymentEvent.PRE_AUTH_APPROVED));
+    }
+
+    @Test
+    void sendEventsWritesTheBatch() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(newPayment());
+        }
+        List<Long> requested = new ArrayList<>(ids);
+        requested.add(-1L); // does not exist
+
+        List<PaymentEventResult> results = paymentService.sendEvents(PaymentEvent.PRE_AUTH_APPROVED, requested);
+
+        for (int i = 0; i < ids.size(); i++) {
+            assertTrue(results.get(i).isAccepted());
+            assertEquals("PRE_AUTH", jdbcTemplate.queryForObject("select state from payment where id = ?", String.class, ids.get(i)));
+        }
+        assertFalse(results.get(ids.size()).isAccepted());
+        assertNull(results.get(ids.size()).getState());
+    }
+
+    @Test
+    void writeFailsIfThePaymentMovedSinceItWasLoaded() {
+        Long id = newPayment();
+        Long other = newPayment();
+        Map<Long, Payment> loaded = paymentStateStore.loadAll(List.of(id, other));
+        assertEquals(2, loaded.size());
+
+        // Another event gets there first
+        paymentStateStore.updateState(id, PaymentState.PRE_AUTH_ERROR);
+
+        Payment payment = loaded.get(id);
+        payment.setState(PaymentState.PRE_AUTH);
+        assertThrows(ObjectOptimisticLockingFailureException.class,
+                () -> paymentStateStore.writeState(payment, PaymentState.NEW));
+        assertEquals("PRE_AUTH_ERROR", jdbcTemplate.queryForObject("select state from payment where id = ?", String.class, id));
+
+        Payment unchanged = loaded.get(other);
+        unchanged.setState(PaymentState.PRE_AUTH);
+        paymentStateStore.writeStates(List.of(new StateChange(unchanged, PaymentState.NEW)));
+        assertEquals("PRE_AUTH", jdbcTemplate.queryForObject("select state from payment where id = ?", String.class, other));
+    }
+
+    private Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+}
@@ -0,0 +1,202 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.gateway.PaymentGateway;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.statemachine.idempotency.max-entries=100",
+        // Purged by the tests themselves
+        "payment.statemachine.idempotency.purge-interval=1h"})
+class IdempotencyStoreTest {
+
+    static final int RETRIES = 8;
+    static final int LOOKUPS = 100_000;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    IdempotencyStore idempotencyStore;
+
+    @Autowired
+    PaymentHistory history;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @SpyBean
+    PaymentGateway paymentGateway;
+
+    @Test
+    void retriedPreAuthorizeAsksTheGatewayOnce() {
+        Long paymentId = newPayment();
+
+        PaymentState first = paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE, "pre-auth-" + paymentId);
+        PaymentState retried = paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTHORIZE, "pre-auth-" + paymentId);
+
+        assertEquals(first, retried);
+        verify(paymentGateway, times(1)).preAuthorize(paymentId);
+    }
+
+    @Test
+    void keyUsedConcurrentlyOnTwoPaymentsIsRejected() throws Exception {
+        Long first = newPayment();
+        Long second = newPayment();
+        String key = "two-payments-" + first;
+        CountDownLatch recorded = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Stored but not committed, so the other payment's lookup does not see it
+            Future<PaymentState> holder = executor.submit(() -> transactionTemplate.execute(status -> {
+                PaymentState state = paymentService.sendEvent(first, PaymentEvent.PRE_AUTH_APPROVED, key);
+                recorded.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return state;
+            }));
+            assertTrue(recorded.await(30, TimeUnit.SECONDS));
+
+            assertThrows(IdempotencyKeyReusedException.class,
+                    () -> paymentService.sendEvent(second, PaymentEvent.PRE_AUTH_APPROVED, key));
+            assertEquals(PaymentState.PRE_AUTH, holder.get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals("NEW", jdbcTemplate.queryForObject("select state from payment where id = ?", String.class, second));
+    }
+
+    @Test
+    void concurrentRetriesRunTheEventOnce() throws Exception {
+        Long paymentId = newPayment();
+        String key = "concurrent-" + paymentId;
+
+        ExecutorService executor = Executors.newFixedThreadPool(RETRIES);
+        List<Future<PaymentState>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < RETRIES; i++) {
+                results.add(executor.submit(() -> paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, key)));
+            }
+            for (Future<PaymentState> result : results) {
+                assertEquals(PaymentState.PRE_AUTH, result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, history.transitions(paymentId).size());
+    }
+
+    @Test
+    void keyCannotBeReusedForAnotherEvent() {
+        Long paymentId = newPayment();
+        paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, "reused-" + paymentId);
+
+        assertThrows(IdempotencyKeyReusedException.class,
+                () -> paymentService.sendEvent(newPayment(), PaymentEvent.PRE_AUTH_APPROVED, "reused-" + paymentId));
+        assertThrows(IdempotencyKeyReusedException.class,
+                () -> paymentService.sendEvent(paymentId, PaymentEvent.AUTH_APPROVED, "reused-" + paymentId));
+    }
+
+    @Test
+    void keysEvictedFromMemoryAreFoundInTheDatabase() {
+        Long paymentId = newPayment();
+        String key = "evicted-" + paymentId;
+        paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, key);
+
+        // Push it out of the in-memory entries
+        for (int i = 0; i < 150; i++) {
+            idempotencyStore.record("filler-" + paymentId + "-" + i, paymentId, PaymentEvent.AUTH_APPROVED, PaymentState.AUTH);
+        }
+        assertTrue(idempotencyStore.findRecent(key).isEmpty());
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, key));
+        assertEquals(1, history.transitions(paymentId).size());
+    }
+
+    @Test
+    void expiredKeysArePurged() {
+        Long paymentId = newPayment();
+        String key = "expired-" + paymentId;
+        idempotencyStore.record(key, paymentId, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH);
+        jdbcTemplate.update("update processed_event set created = ? where idempotency_key = ?",
+                Timestamp.from(Instant.now().minus(Duration.ofDays(2))), key);
+
+        assertTrue(idempotencyStore.purgeExpired() >= 1);
+        assertEquals(0, jdbcTemplate.queryForObject(
+                "select count(*) from processed_event where idempotency_key = ?", Long.class, key));
+    }
+
+    @Test
+    void expiredKeyCanBeUsedAgainBeforeItIsPurged() {
+        Long paymentId = newPayment();
+        String key = "expired-reused-" + paymentId;
+        idempotencyStore.record(key, paymentId, PaymentEvent.PRE_AUTH_APPROVED, PaymentState.PRE_AUTH);
+        jdbcTemplate.update("update processed_event set created = ? where idempotency_key = ?",
+                Timestamp.from(Instant.now().minus(Duration.ofDays(2))), key);
+
+        idempotencyStore.record(key, paymentId, PaymentEvent.AUTH_APPROVED, PaymentState.AUTH);
+
+        assertEquals(PaymentEvent.AUTH_APPROVED, idempotencyStore.find(key).orElseThrow().getEvent());
+        assertEquals(1, jdbcTemplate.queryForObject(
+                "select count(*) from processed_event where idempotency_key = ?", Long.class, key));
+    }
+
+    @Test
+    void duplicatesAreAnsweredWithoutRunningTheMachine() {
+        // Warm up the keyed path first, so the first event below isn't timed cold
+        Long warmUp = newPayment();
+        paymentService.sendEvent(warmUp, PaymentEvent.PRE_AUTH_APPROVED, "warm-up-" + warmUp);
+
+        Long paymentId = newPayment();
+        String key = "duplicate-" + paymentId;
+        long start = System.nanoTime();
+        paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, key);
+        long firstNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, key));
+        }
+        long duplicateNanos = (System.nanoTime() - start) / LOOKUPS;
+
+        System.out.printf("First event %.2fms, each duplicate %dns%n", firstNanos / 1e6, duplicateNanos);
+        assertEquals(1, history.transitions(paymentId).size());
+    }
+
+    Long newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+    }
+}
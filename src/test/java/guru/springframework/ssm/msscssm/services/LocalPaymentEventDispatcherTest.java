@@ -0,0 +1,135 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load test for both dispatch modes. Each payment gets PRE_AUTH_APPROVED then AUTH_DECLINED, which only ends in
+ * AUTH_ERROR if the two ran in order. VIRTUAL is skipped before Java 21; mvn -Pjdk21 test runs it.
+ */
+@SpringBootTest(properties = "spring.jpa.show-sql=false")
+class LocalPaymentEventDispatcherTest {
+
+    private static final int PAYMENTS = 500;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @ParameterizedTest
+    @EnumSource(PaymentStateMachineProperties.DispatchMode.class)
+    void eventsForOnePaymentRunInOrder(PaymentStateMachineProperties.DispatchMode mode) throws Exception {
+        if (mode == PaymentStateMachineProperties.DispatchMode.VIRTUAL && !LocalPaymentEventDispatcher.isVirtualThreadsSupported()) {
+            // The jdk21 profile runs this on Java 21, where skipping would hide that virtual threads went untested
+            assertFalse(Boolean.getBoolean("payment.dispatch.virtual-threads-required"),
+                    "Virtual threads are required but this JVM has none: " + System.getProperty("java.version"));
+            assumeTrue(false, "Virtual threads need Java 21");
+        }
+
+        PaymentStateMachineProperties properties = new PaymentStateMachineProperties();
+        properties.getDispatch().setMode(mode);
+        LocalPaymentEventDispatcher dispatcher = new LocalPaymentEventDispatcher(paymentService, properties);
+
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < PAYMENTS; i++) {
+            ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
+
+        long[] latencies = new long[PAYMENTS * 2];
+        List<CompletableFuture<PaymentState>> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < PAYMENTS; i++) {
+            results.add(timed(dispatcher, ids.get(i), PaymentEvent.PRE_AUTH_APPROVED, latencies, i * 2));
+            results.add(timed(dispatcher, ids.get(i), PaymentEvent.AUTH_DECLINED, latencies, i * 2 + 1));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+
+        dispatcher.destroy();
+
+        Arrays.sort(latencies);
+        System.out.printf("%s dispatch: %.0f events/s, p50 %.2f ms, p99 %.2f ms%n", mode,
+                latencies.length * 1_000_000_000.0 / elapsed,
+                latencies[latencies.length / 2] / 1_000_000.0,
+                latencies[(int) (latencies.length * 0.99)] / 1_000_000.0);
+
+        for (Long id : ids) {
+            assertEquals(PaymentState.AUTH_ERROR, paymentRepository.findById(id).orElseThrow().getState());
+        }
+    }
+
+    @Test
+    void fullQueueFailsTheEventRatherThanLosingIt() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PaymentService blocking = mock(PaymentService.class);
+        when(blocking.sendEvent(eq(1L), any(), any())).thenAnswer(invocation -> {
+            release.await();
+            return PaymentState.PRE_AUTH;
+        });
+        when(blocking.sendEvent(eq(2L), any(), any())).thenReturn(PaymentState.PRE_AUTH);
+
+        PaymentStateMachineProperties properties = new PaymentStateMachineProperties();
+        properties.getDispatch().setThreads(1);
+        properties.getDispatch().setQueueCapacity(1);
+        LocalPaymentEventDispatcher dispatcher = new LocalPaymentEventDispatcher(blocking, properties);
+        try {
+            CompletableFuture<PaymentState> running = dispatcher.dispatch(1L, PaymentEvent.PRE_AUTH_APPROVED);
+            // Chained behind the running event, submitted once it completes
+            CompletableFuture<PaymentState> chained = dispatcher.dispatch(1L, PaymentEvent.AUTH_DECLINED);
+            CompletableFuture<PaymentState> queued = dispatcher.dispatch(2L, PaymentEvent.PRE_AUTH_APPROVED);
+
+            // The only thread is busy and the queue is full
+            CompletableFuture<PaymentState> rejected = dispatcher.dispatch(3L, PaymentEvent.PRE_AUTH_APPROVED);
+            assertRejected(rejected);
+            assertFalse(dispatcher.isInFlight(3L));
+
+            // Completing the running event submits the chained one while the queue is still full
+            release.countDown();
+            assertEquals(PaymentState.PRE_AUTH, running.get(5, TimeUnit.SECONDS));
+            assertRejected(chained);
+            assertEquals(PaymentState.PRE_AUTH, queued.get(5, TimeUnit.SECONDS));
+            assertFalse(dispatcher.isInFlight(1L));
+        } finally {
+            dispatcher.destroy();
+        }
+    }
+
+    private static void assertRejected(CompletableFuture<PaymentState> future) throws Exception {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    private static CompletableFuture<PaymentState> timed(LocalPaymentEventDispatcher dispatcher, Long paymentId,
+                                                         PaymentEvent event, long[] latencies, int slot) {
+        long submitted = System.nanoTime();
+        return dispatcher.dispatch(paymentId, event).whenComplete((state, ex) -> latencies[slot] = System.nanoTime() - submitted);
+    }
+}
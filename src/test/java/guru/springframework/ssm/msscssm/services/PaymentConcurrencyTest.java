@@ -0,0 +1,175 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentTransition;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fires PRE_AUTH_APPROVED and PRE_AUTH_DECLINED at the same payment at the same moment, one through the locked single
+ * event path and one through the optimistic batch path. At most one may win, and whatever is persisted must be the
+ * winner's target state. Single events racing each other on one payment are serialized by the payment lock, so none
+ * of them may fail on the version check.
+ */
+@SpringBootTest(properties = "spring.jpa.show-sql=false")
+class PaymentConcurrencyTest {
+
+    private static final int PAYMENTS = 200;
+
+    private static final int RACED_PAYMENTS = 20;
+    private static final int THREADS_PER_PAYMENT = 8;
+
+    // Rotated through by the racing threads; PRE_AUTHORIZE also has the gateway answer in the background
+    private static final PaymentEvent[] RACING_EVENTS = {
+            PaymentEvent.PRE_AUTHORIZE, PaymentEvent.AUTH_DECLINED, PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.AUTH_DECLINED};
+
+    // Every transition that changes a payment's state, as from + event -> to
+    private static final Set<String> LEGAL = Set.of(
+            "NEW PRE_AUTH_APPROVED PRE_AUTH", "NEW PRE_AUTH_DECLINED PRE_AUTH_ERROR",
+            "PRE_AUTH AUTH_APPROVED AUTH", "PRE_AUTH AUTH_DECLINED AUTH_ERROR");
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentHistory paymentHistory;
+
+    @Test
+    void conflictingEventsNeverPersistAnIllegalTransition() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Long> ids = new ArrayList<>();
+            List<Future<Boolean>> approvals = new ArrayList<>();
+            List<Future<Boolean>> declines = new ArrayList<>();
+
+            for (int i = 0; i < PAYMENTS; i++) {
+                Long id = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+                CyclicBarrier start = new CyclicBarrier(2);
+                ids.add(id);
+
+                approvals.add(executor.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    try {
+                        return paymentService.sendEvent(id, PaymentEvent.PRE_AUTH_APPROVED) == PaymentState.PRE_AUTH;
+                    } catch (ConcurrencyFailureException e) {
+                        return false;
+                    }
+                }));
+
+                declines.add(executor.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    try {
+                        return paymentService.sendEvents(PaymentEvent.PRE_AUTH_DECLINED, List.of(id)).get(0).isAccepted();
+                    } catch (ConcurrencyFailureException e) {
+                        return false;
+                    }
+                }));
+            }
+
+            int conflicts = 0;
+            for (int i = 0; i < PAYMENTS; i++) {
+                boolean approved = approvals.get(i).get(30, TimeUnit.SECONDS);
+                boolean declined = declines.get(i).get(30, TimeUnit.SECONDS);
+                PaymentState persisted = paymentRepository.findById(ids.get(i)).orElseThrow().getState();
+
+                assertFalse(approved && declined, "Both conflicting events won for payment " + ids.get(i));
+                if (approved) {
+                    assertEquals(PaymentState.PRE_AUTH, persisted);
+                } else if (declined) {
+                    assertEquals(PaymentState.PRE_AUTH_ERROR, persisted);
+                } else {
+                    assertEquals(PaymentState.NEW, persisted);
+                    conflicts++;
+                }
+            }
+
+            System.out.println("Payments where both events lost to a concurrency failure: " + conflicts);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void singleEventsOnOnePaymentAreSerialized() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(RACED_PAYMENTS * THREADS_PER_PAYMENT);
+        Map<Long, Throwable> optimisticFailures = new ConcurrentHashMap<>();
+        try {
+            List<Long> ids = new ArrayList<>();
+            List<Future<?>> sent = new ArrayList<>();
+
+            for (int i = 0; i < RACED_PAYMENTS; i++) {
+                Long id = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+                CyclicBarrier start = new CyclicBarrier(THREADS_PER_PAYMENT);
+                ids.add(id);
+
+                for (int t = 0; t < THREADS_PER_PAYMENT; t++) {
+                    PaymentEvent event = RACING_EVENTS[t % RACING_EVENTS.length];
+                    sent.add(executor.submit(() -> {
+                        start.await(10, TimeUnit.SECONDS);
+                        try {
+                            paymentService.sendEvent(id, event);
+                        } catch (OptimisticLockingFailureException e) {
+                            optimisticFailures.put(id, e);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : sent) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+
+            assertEquals(Map.of(), optimisticFailures);
+            for (Long id : ids) {
+                List<PaymentTransition> history = awaitSettled(id);
+                PaymentState state = PaymentState.NEW;
+                for (PaymentTransition transition : history) {
+                    assertEquals(state, transition.getFromState(), "History of payment " + id + " skips a state: " + history);
+                    String step = transition.getFromState() + " " + transition.getEvent() + " " + transition.getToState();
+                    assertTrue(LEGAL.contains(step), "Illegal transition for payment " + id + ": " + step);
+                    state = transition.getToState();
+                }
+                assertEquals(state, paymentRepository.findById(id).orElseThrow().getState());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // The gateway answers PRE_AUTHORIZE in the background; wait until the payment table and its history agree
+    private List<PaymentTransition> awaitSettled(Long paymentId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            List<PaymentTransition> history = paymentHistory.transitions(paymentId);
+            PaymentState last = history.isEmpty() ? PaymentState.NEW : history.get(history.size() - 1).getToState();
+            if (last == paymentRepository.findById(paymentId).orElseThrow().getState()
+                    || System.currentTimeMillis() > deadline) {
+                return history;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.support.DefaultExtendedState;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {"spring.jpa.show-sql=false", "payment.statemachine.context.enabled=true"})
+class PaymentContextStoreTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentContextStore contextStore;
+
+    @Test
+    void codecRoundTrip() {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(PaymentServiceImpl.PAYMENT_ID_HEADER, 42L);
+        headers.put("trace", UUID.randomUUID());
+        Map<Object, Object> variables = new HashMap<>();
+        variables.put("amount", new BigDecimal("-1234.5678"));
+        variables.put("attempts", 3);
+        variables.put("approved", true);
+        variables.put("note", "naïve");
+        variables.put("previous", PaymentState.NEW);
+        variables.put(PaymentEvent.AUTHORIZE, null);
+        Map<PaymentState, PaymentState> history = Map.of(PaymentState.PRE_AUTH, PaymentState.NEW);
+
+        PaymentContextCodec codec = new PaymentContextCodec();
+        StateMachineContext<PaymentState, PaymentEvent> decoded = codec.decode(codec.encode(new DefaultStateMachineContext<>(
+                PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED, headers, new DefaultExtendedState(variables),
+                history, "payment-42")));
+
+        assertEquals(PaymentState.PRE_AUTH, decoded.getState());
+        assertEquals(PaymentEvent.PRE_AUTH_APPROVED, decoded.getEvent());
+        assertEquals(headers, decoded.getEventHeaders());
+        assertEquals(variables, decoded.getExtendedState().getVariables());
+        assertEquals(history, decoded.getHistoryStates());
+        assertEquals("payment-42", decoded.getId());
+    }
+
+    @Test
+    void codecRejectsUnsupportedValues() {
+        Map<Object, Object> variables = new HashMap<>();
+        variables.put("payment", new Payment());
+
+        assertThrows(IllegalArgumentException.class, () -> new PaymentContextCodec().encode(new DefaultStateMachineContext<>(
+                PaymentState.NEW, null, null, new DefaultExtendedState(variables))));
+    }
+
+    @Test
+    void extendedStateSurvivesBetweenEvents() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        Map<Object, Object> variables = new HashMap<>();
+        variables.put("attempts", 1);
+        contextStore.write(new DefaultStateMachineContext<>(PaymentState.NEW, null, null,
+                new DefaultExtendedState(variables)), payment.getId());
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED));
+
+        StateMachineContext<PaymentState, PaymentEvent> stored = contextStore.read(payment.getId());
+        assertEquals(PaymentState.PRE_AUTH, stored.getState());
+        assertEquals(PaymentEvent.PRE_AUTH_APPROVED, stored.getEvent());
+        assertEquals(payment.getId(), stored.getEventHeaders().get(PaymentServiceImpl.PAYMENT_ID_HEADER));
+        assertEquals(1, stored.getExtendedState().getVariables().get("attempts"));
+        assertFalse(stored.getExtendedState().getVariables().containsKey(PaymentStateChangeInterceptor.PAYMENT_VARIABLE));
+    }
+
+    @Test
+    void staleContextIsIgnored() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        Map<Object, Object> variables = new HashMap<>();
+        variables.put("attempts", 1);
+        // Claims a state the payment is not in, as after a batch moved the payment on
+        contextStore.write(new DefaultStateMachineContext<>(PaymentState.AUTH, null, null,
+                new DefaultExtendedState(variables)), payment.getId());
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED));
+
+        StateMachineContext<PaymentState, PaymentEvent> stored = contextStore.read(payment.getId());
+        assertEquals(PaymentState.PRE_AUTH, stored.getState());
+        assertTrue(stored.getExtendedState().getVariables().isEmpty());
+    }
+}
@@ -0,0 +1,146 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentTransition;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        // Snapshots are taken by the tests themselves
+        "payment.statemachine.history.snapshot-interval=1h",
+        "payment.statemachine.history.page-size=500"})
+class PaymentHistoryTest {
+
+    static final int REPLAY_TRANSITIONS = 50_000;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentHistory history;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @Test
+    void transitionsAreRecordedWithTheirEvents() {
+        Payment payment = newPayment();
+        paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+        paymentService.sendEvent(payment.getId(), PaymentEvent.AUTH_APPROVED);
+
+        List<PaymentTransition> transitions = history.transitions(payment.getId());
+        assertEquals(2, transitions.size());
+        assertTransition(transitions.get(0), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+        assertTransition(transitions.get(1), PaymentState.PRE_AUTH, PaymentState.AUTH, PaymentEvent.AUTH_APPROVED);
+    }
+
+    @Test
+    void batchTransitionsAreRecorded() {
+        List<Long> ids = List.of(newPayment().getId(), newPayment().getId());
+        paymentService.sendEvents(PaymentEvent.PRE_AUTH_DECLINED, ids);
+
+        ids.forEach(id -> {
+            List<PaymentTransition> transitions = history.transitions(id);
+            assertEquals(1, transitions.size());
+            assertTransition(transitions.get(0), PaymentState.NEW, PaymentState.PRE_AUTH_ERROR, PaymentEvent.PRE_AUTH_DECLINED);
+        });
+    }
+
+    @Test
+    void rolledBackTransitionsAreNotRecorded() {
+        Payment payment = newPayment();
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+            status.setRollbackOnly();
+        });
+
+        assertEquals(PaymentState.NEW, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+        assertTrue(history.transitions(payment.getId()).isEmpty());
+    }
+
+    @Test
+    void stateIsRebuiltFromSnapshotAndLaterTransitions() {
+        List<Payment> payments = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Payment payment = newPayment();
+            paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+            payments.add(payment);
+        }
+        assertTrue(history.snapshot() >= payments.size());
+
+        // Half move on after the snapshot, so their state comes from the transitions after it
+        for (int i = 0; i < payments.size(); i += 2) {
+            paymentService.sendEvent(payments.get(i).getId(), PaymentEvent.AUTH_DECLINED);
+        }
+
+        for (Payment payment : payments) {
+            PaymentState stored = paymentRepository.findById(payment.getId()).orElseThrow().getState();
+            assertEquals(stored, history.currentState(payment.getId()).orElseThrow());
+        }
+
+        history.snapshot();
+        assertEquals(PaymentState.AUTH_ERROR, history.currentState(payments.get(0).getId()).orElseThrow());
+        assertFalse(history.currentState(newPayment().getId()).isPresent());
+    }
+
+    @Test
+    void replayStreamsTheWholeLogInOrder() {
+        long before = history.replay(0, transition -> {});
+
+        List<PaymentTransition> batch = new ArrayList<>();
+        for (long i = 0; i < REPLAY_TRANSITIONS; i++) {
+            batch.add(PaymentTransition.builder().paymentId(-1 - i).fromState(PaymentState.NEW).toState(PaymentState.PRE_AUTH)
+                    .event(PaymentEvent.PRE_AUTH_APPROVED).created(Instant.now()).build());
+            if (batch.size() == 5_000) {
+                history.recordAll(batch);
+                batch.clear();
+            }
+        }
+
+        long[] count = {0};
+        long[] lastId = {before};
+        long start = System.nanoTime();
+        long last = history.replay(before, transition -> {
+            assertTrue(transition.getId() > lastId[0]);
+            lastId[0] = transition.getId();
+            // Other contexts share the database and may log transitions of their own meanwhile
+            if (transition.getPaymentId() < 0) {
+                count[0]++;
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Replayed %d generated transitions in %.2fs (%.0f/s)%n", count[0], seconds, count[0] / seconds);
+
+        assertEquals(REPLAY_TRANSITIONS, count[0]);
+        assertEquals(lastId[0], last);
+    }
+
+    Payment newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+    }
+
+    static void assertTransition(PaymentTransition transition, PaymentState from, PaymentState to, PaymentEvent event) {
+        assertEquals(from, transition.getFromState());
+        assertEquals(to, transition.getToState());
+        assertEquals(event, transition.getEvent());
+        assertNotNull(transition.getCreated());
+    }
+}
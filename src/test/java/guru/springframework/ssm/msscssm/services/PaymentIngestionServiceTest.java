@@ -0,0 +1,83 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.ingest.flush-size=500",
+        "payment.ingest.commit-size=5000",
+        "payment.ingest.progress-interval=20000"})
+class PaymentIngestionServiceTest {
+
+    static final int PAYMENTS = 100_000;
+    static final int ONE_BY_ONE = 5_000;
+
+    @Autowired
+    PaymentIngestionService ingestionService;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void ingestsAStreamInBatches() {
+        long before = countPayments();
+        List<PaymentIngestionService.Progress> reports = new ArrayList<>();
+
+        PaymentIngestionService.Progress progress = ingestionService.ingest(
+                Stream.generate(PaymentIngestionServiceTest::newPayment).limit(PAYMENTS), reports::add);
+
+        assertEquals(PAYMENTS, progress.getIngested());
+        assertEquals(before + PAYMENTS, countPayments());
+        assertEquals(0, jdbcTemplate.queryForObject("select count(*) from payment where state <> 'NEW'", Long.class));
+        assertEquals(PAYMENTS / 20_000, reports.size());
+        assertEquals(20_000, reports.get(0).getIngested());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ONE_BY_ONE; i++) {
+            paymentService.newPayment(newPayment());
+        }
+        double oneByOne = ONE_BY_ONE * 1e9 / (System.nanoTime() - start);
+        System.out.printf("Ingested %d payments at %.0f/s, newPayment one at a time: %.0f/s%n",
+                PAYMENTS, progress.getPaymentsPerSecond(), oneByOne);
+    }
+
+    @Test
+    void failureKeepsEarlierCommits() {
+        long before = countPayments();
+        Iterator<Payment> failing = Stream.iterate(0, i -> i + 1)
+                .map(i -> {
+                    if (i == 12_345) {
+                        throw new IllegalArgumentException("Bad import row " + i);
+                    }
+                    return newPayment();
+                })
+                .iterator();
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> ingestionService.ingest(failing, p -> {}));
+        assertTrue(e.getMessage().contains("after 10000 payments"), e.getMessage());
+        assertEquals(before + 10_000, countPayments());
+    }
+
+    long countPayments() {
+        return jdbcTemplate.queryForObject("select count(*) from payment", Long.class);
+    }
+
+    static Payment newPayment() {
+        return Payment.builder().amount(new BigDecimal("12.99")).build();
+    }
+}
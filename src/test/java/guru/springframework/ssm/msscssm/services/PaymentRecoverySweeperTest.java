@@ -0,0 +1,133 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        // Sweeps are run by the tests themselves
+        "payment.statemachine.recovery.check-interval=1h",
+        "payment.statemachine.recovery.page-size=100",
+        "payment.statemachine.recovery.threads=4",
+        "payment.statemachine.recovery.max-rate=1000"})
+class PaymentRecoverySweeperTest {
+
+    static final int BACKLOG = 500;
+
+    @Autowired
+    PaymentRecoverySweeper sweeper;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentIngestionService ingestionService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void forgetEarlierCalls() {
+        jdbcTemplate.update("delete from gateway_request");
+    }
+
+    @Test
+    void gatewayCallsAreRecordedWithTheEventThatMadeThem() throws InterruptedException {
+        Payment payment = newPayment();
+        paymentService.preAuthorizePayment(payment.getId());
+
+        assertEquals("PRE_AUTHORIZE", jdbcTemplate.queryForObject(
+                "select event from gateway_request where payment_id = ?", String.class, payment.getId()));
+
+        // Answered, so the next sweep forgets it rather than re-driving it
+        awaitStateChange(payment, PaymentState.NEW);
+        assertEquals(0, sweeper.recover(Instant.now()));
+        assertEquals(0, requests());
+    }
+
+    @Test
+    void paymentsWhoseAnswerWasLostAreReDriven() throws InterruptedException {
+        // As left by a crash after PRE_AUTHORIZE committed, before the gateway's answer was delivered
+        Payment payment = newPayment();
+        jdbcTemplate.update("insert into gateway_request (payment_id, event, requested) values (?, 'PRE_AUTHORIZE', ?)",
+                payment.getId(), Timestamp.from(Instant.now().minus(Duration.ofMinutes(2))));
+
+        // Not yet overdue
+        assertEquals(0, sweeper.recover(Instant.now().minus(Duration.ofMinutes(5))));
+        assertEquals(PaymentState.NEW, stateOf(payment));
+
+        assertEquals(1, sweeper.recover(Instant.now().minus(Duration.ofMinutes(1))));
+        PaymentState answered = awaitStateChange(payment, PaymentState.NEW);
+        assertTrue(answered == PaymentState.PRE_AUTH || answered == PaymentState.PRE_AUTH_ERROR, answered.name());
+    }
+
+    @Test
+    void backlogIsReDrivenInPagesAtTheConfiguredRate() throws InterruptedException {
+        long before = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from payment", Long.class);
+        ingestionService.ingest(Stream.generate(PaymentRecoverySweeperTest::unsavedPayment).limit(BACKLOG));
+        List<Long> ids = jdbcTemplate.queryForList("select id from payment where id > ?", Long.class, before);
+        Timestamp requested = Timestamp.from(Instant.now().minus(Duration.ofMinutes(2)));
+        jdbcTemplate.batchUpdate("insert into gateway_request (payment_id, event, requested) values (?, 'PRE_AUTHORIZE', ?)",
+                ids, 500, (ps, id) -> {
+                    ps.setLong(1, id);
+                    ps.setTimestamp(2, requested);
+                });
+
+        long start = System.nanoTime();
+        int redriven = sweeper.recover(Instant.now());
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(BACKLOG, redriven);
+        // 1000 a second at most
+        assertTrue(elapsedMillis >= BACKLOG - 1, "took " + elapsedMillis + "ms");
+        for (Long id : ids) {
+            awaitStateChange(paymentRepository.findById(id).orElseThrow(), PaymentState.NEW);
+        }
+        System.out.printf("Re-drove %d payments in %dms%n", redriven, elapsedMillis);
+    }
+
+    long requests() {
+        return jdbcTemplate.queryForObject("select count(*) from gateway_request", Long.class);
+    }
+
+    PaymentState awaitStateChange(Payment payment, PaymentState from) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        PaymentState state = stateOf(payment);
+        while (state == from && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            state = stateOf(payment);
+        }
+        assertNotEquals(from, state, "payment " + payment.getId() + " still in " + from);
+        return state;
+    }
+
+    PaymentState stateOf(Payment payment) {
+        return paymentRepository.findById(payment.getId()).orElseThrow().getState();
+    }
+
+    Payment newPayment() {
+        return paymentService.newPayment(unsavedPayment());
+    }
+
+    static Payment unsavedPayment() {
+        return Payment.builder().amount(new BigDecimal("12.99")).build();
+    }
+}
@@ -0,0 +1,92 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentSummary;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.statemachine.timeout.enabled=false"})
+class PaymentReportsTest {
+
+    @Autowired
+    PaymentReports reports;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void countsAndExportsByState() {
+        Map<PaymentState, Long> before = reports.countByState();
+        Instant start = Instant.now();
+
+        List<Long> declined = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Payment payment = newPayment();
+            paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+            paymentService.sendEvent(payment.getId(), PaymentEvent.AUTH_DECLINED);
+            declined.add(payment.getId());
+        }
+        newPayment();
+        newPayment();
+
+        Map<PaymentState, Long> counts = reports.countByState();
+        assertEquals(PaymentState.values().length, counts.size());
+        assertEquals(before.get(PaymentState.AUTH_ERROR) + 5, counts.get(PaymentState.AUTH_ERROR));
+        assertEquals(before.get(PaymentState.NEW) + 2, counts.get(PaymentState.NEW));
+        assertEquals(counts.get(PaymentState.AUTH_ERROR), paymentRepository.countByState(PaymentState.AUTH_ERROR));
+        assertEquals(5, paymentRepository.countByStateAndCreatedGreaterThanEqual(PaymentState.AUTH_ERROR, start));
+
+        List<PaymentSummary> exported = new ArrayList<>();
+        long count = reports.export(PaymentState.AUTH_ERROR, exported::add);
+
+        assertEquals(counts.get(PaymentState.AUTH_ERROR), count);
+        List<Long> exportedIds = exported.stream().map(PaymentSummary::getId).collect(Collectors.toList());
+        assertTrue(exportedIds.containsAll(declined));
+        exported.forEach(summary -> {
+            assertEquals(PaymentState.AUTH_ERROR, summary.getState());
+            assertEquals(new BigDecimal("12.99"), summary.getAmount());
+            assertNotNull(summary.getCreated());
+        });
+        for (int i = 1; i < exported.size(); i++) {
+            assertFalse(exported.get(i).getCreated().isBefore(exported.get(i - 1).getCreated()));
+        }
+    }
+
+    @Test
+    void stateQueriesUseTheIndexes() {
+        assertUsesIndex("select count(*) from payment where state = 'AUTH_ERROR'");
+        assertUsesIndex("select count(*) from payment where state = 'AUTH_ERROR' and created >= current_timestamp");
+        assertUsesIndex("select id, state, amount, created from payment where state = 'AUTH_ERROR' order by created");
+    }
+
+    void assertUsesIndex(String sql) {
+        String plan = jdbcTemplate.queryForObject("explain " + sql, String.class).toUpperCase();
+        assertTrue(plan.contains("PAYMENT_STATE_CREATED_IDX"), plan);
+    }
+
+    Payment newPayment() {
+        return paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+    }
+}
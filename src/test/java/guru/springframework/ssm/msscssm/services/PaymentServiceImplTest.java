@@ -9,10 +9,12 @@ import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.statemachine.StateMachine;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -25,6 +27,9 @@ class PaymentServiceImplTest {
     @Autowired
     PaymentRepository paymentRepository;
 
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
     Payment payment;
 
     @BeforeEach
@@ -32,40 +37,85 @@ class PaymentServiceImplTest {
         payment = Payment.builder().amount(new BigDecimal("12.99")).build();
     }
 
-    @Transactional
     @Test
-    void preAuthorizePayment() {
+    void preAuthorizePayment() throws InterruptedException {
         Payment savedPayment = paymentService.newPayment(payment);
 
         System.out.println("Should be NEW");
         System.out.println(savedPayment.getState());
 
-        StateMachine<PaymentState, PaymentEvent> sm = paymentService.preAuthorizePayment(savedPayment.getId());
+        PaymentState state = paymentService.preAuthorizePayment(savedPayment.getId());
 
-        Payment preAuthedPayment = paymentRepository.getOne(savedPayment.getId());
+        System.out.println("Should still be NEW while the gateway decides");
+        System.out.println(state);
+        assertEquals(PaymentState.NEW, state);
 
-        System.out.println("Should be PRE_AUTH OR PRE_AUTH_ERROR");
-        System.out.println(sm.getState().getId());
+        PaymentState preAuthedState = awaitStateChange(savedPayment.getId(), PaymentState.NEW);
 
-        System.out.println(preAuthedPayment);
+        System.out.println("Should be PRE_AUTH OR PRE_AUTH_ERROR");
+        System.out.println(preAuthedState);
+        assertTrue(preAuthedState == PaymentState.PRE_AUTH || preAuthedState == PaymentState.PRE_AUTH_ERROR);
     }
 
-    @Transactional
     @RepeatedTest(10)
-    void authorizePayment() {
+    void authorizePayment() throws InterruptedException {
         Payment savedPayment = paymentService.newPayment(payment);
-        StateMachine<PaymentState, PaymentEvent> preAuthSM = paymentService.preAuthorizePayment(savedPayment.getId());
+        paymentService.preAuthorizePayment(savedPayment.getId());
+        PaymentState preAuthState = awaitStateChange(savedPayment.getId(), PaymentState.NEW);
 
-        if (preAuthSM.getState().getId() == PaymentState.PRE_AUTH) {
+        if (preAuthState == PaymentState.PRE_AUTH) {
             System.out.println("Payment is pre-authorized");
 
-            StateMachine<PaymentState, PaymentEvent> authSM = paymentService.authorizePayment(savedPayment.getId());
+            paymentService.authorizePayment(savedPayment.getId());
+            PaymentState authState = awaitStateChange(savedPayment.getId(), PaymentState.PRE_AUTH);
 
-            System.out.println("Result of Auth: " + authSM.getState().getId());
+            System.out.println("Result of Auth: " + authState);
+            assertTrue(authState == PaymentState.AUTH || authState == PaymentState.AUTH_ERROR);
         } else {
             System.out.println("Payment failed pre-auth...");
         }
+    }
 
+    @Transactional
+    @Test
+    void sendEventsToManyPayments() {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId());
+        }
 
+        Long preAuthedId = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()).getId();
+        paymentService.sendEvents(PaymentEvent.PRE_AUTH_APPROVED, List.of(preAuthedId));
+
+        List<Long> requested = new ArrayList<>(ids);
+        requested.add(preAuthedId); // already PRE_AUTH, so PRE_AUTH_APPROVED is not accepted again
+        requested.add(-1L); // does not exist
+
+        List<PaymentEventResult> results = paymentService.sendEvents(PaymentEvent.PRE_AUTH_APPROVED, requested);
+
+        assertEquals(requested.size(), results.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(ids.get(i), results.get(i).getPaymentId());
+            assertTrue(results.get(i).isAccepted());
+            assertEquals(PaymentState.PRE_AUTH, results.get(i).getState());
+            assertEquals("PRE_AUTH", jdbcTemplate.queryForObject("select state from payment where id = ?", String.class, ids.get(i)));
+        }
+
+        assertFalse(results.get(ids.size()).isAccepted());
+        assertEquals(PaymentState.PRE_AUTH, results.get(ids.size()).getState());
+
+        assertFalse(results.get(ids.size() + 1).isAccepted());
+        assertNull(results.get(ids.size() + 1).getState());
+    }
+
+    // Gateway responses are delivered asynchronously, in their own transaction
+    private PaymentState awaitStateChange(Long paymentId, PaymentState pending) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        PaymentState state;
+        while ((state = paymentRepository.findById(paymentId).orElseThrow().getState()) == pending
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return state;
     }
-}
\ No newline at end of file
+}
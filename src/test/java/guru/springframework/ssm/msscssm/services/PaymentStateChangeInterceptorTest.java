@@ -0,0 +1,201 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.statemachine.StateMachine;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Counts the SQL issued per event, so extra loads or saves on the state change path show up as failures. Statements
+ * are counted at the DataSource, so JdbcTemplate writes (history, outbox, gateway requests, idempotency keys and
+ * contexts) are seen as well as Hibernate's; only those run on the test thread are counted, not the background
+ * relays'. Not transactional, so every service call commits and flushes like it would in production.
+ */
+@SpringBootTest
+class PaymentStateChangeInterceptorTest {
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentStateMachinePool stateMachinePool;
+
+    @Autowired
+    StatementCounter statements;
+
+    @Test
+    void eventLoadsOnceAndUpdatesOnce() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        statements.clear();
+        PaymentState state = paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+
+        // NEW -> PRE_AUTH: one select and a single state-only update, plus the transition's history and outbox rows
+        assertEquals(PaymentState.PRE_AUTH, state);
+        assertEquals(List.of("select from payment", "insert into outbox_message", "insert into payment_transition",
+                "update payment"), statements.executed());
+        assertEquals(state, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+    }
+
+    @Test
+    void selfTransitionDoesNotUpdate() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+        paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+
+        statements.clear();
+        PaymentState state = paymentService.authorizePayment(payment.getId());
+
+        // PRE_AUTH -> PRE_AUTH while the gateway decides: nothing to write but the outstanding gateway call
+        assertEquals(PaymentState.PRE_AUTH, state);
+        assertEquals(List.of("select from payment", "merge into gateway_request"), statements.executed());
+    }
+
+    @Test
+    void machineWithoutLoadedPaymentWritesStateWithoutReading() {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        statements.clear();
+        StateMachine<PaymentState, PaymentEvent> sm = stateMachinePool.borrow(PaymentState.NEW);
+        try {
+            sm.sendEvent(MessageBuilder.withPayload(PaymentEvent.PRE_AUTH_APPROVED)
+                    .setHeader(PaymentServiceImpl.PAYMENT_ID_HEADER, payment.getId())
+                    .build());
+        } finally {
+            stateMachinePool.release(sm);
+        }
+
+        assertEquals(List.of("insert into outbox_message", "update payment", "insert into payment_transition"),
+                statements.executed());
+        assertEquals(PaymentState.PRE_AUTH, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+    }
+
+    @TestConfiguration
+    static class CountingDataSourceConfig {
+
+        @Bean
+        StatementCounter statementCounter() {
+            return new StatementCounter();
+        }
+
+        @Bean
+        static BeanPostProcessor countingDataSource(ObjectProvider<StatementCounter> counter) {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    return bean instanceof DataSource ? counter.getObject().wrap((DataSource) bean) : bean;
+                }
+            };
+        }
+    }
+
+    /**
+     * Records each statement executed on the thread that last cleared it, as its verb and table. A JDBC batch counts
+     * once, as it is one round trip.
+     */
+    static class StatementCounter {
+
+        private final List<String> executed = new CopyOnWriteArrayList<>();
+        private volatile Thread thread;
+
+        void clear() {
+            executed.clear();
+            thread = Thread.currentThread();
+        }
+
+        List<String> executed() {
+            return new ArrayList<>(executed);
+        }
+
+        DataSource wrap(DataSource dataSource) {
+            return proxy(DataSource.class, dataSource, (method, args, result) -> result instanceof Connection
+                    ? wrap((Connection) result) : result);
+        }
+
+        private Connection wrap(Connection connection) {
+            return proxy(Connection.class, connection, (method, args, result) -> {
+                if (result instanceof Statement) {
+                    String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                    return wrap((Statement) result, sql);
+                }
+                return result;
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private Statement wrap(Statement statement, String prepared) {
+            return proxy((Class<Statement>) statementInterface(statement), statement, (method, args, result) -> {
+                if (method.getName().startsWith("execute") && Thread.currentThread() == thread) {
+                    String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : prepared;
+                    executed.add(describe(sql));
+                }
+                return result;
+            });
+        }
+
+        private static Class<? extends Statement> statementInterface(Statement statement) {
+            if (statement instanceof CallableStatement) {
+                return CallableStatement.class;
+            }
+            return statement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+        }
+
+        // "select ... from payment p1_0 where ..." -> "select from payment"
+        private static String describe(String sql) {
+            String[] words = sql.trim().toLowerCase(Locale.ROOT).split("\\s+");
+            String verb = words[0];
+            String after = verb.equals("update") ? "update" : verb.equals("select") || verb.equals("delete") ? "from" : "into";
+            for (int i = 0; i < words.length - 1; i++) {
+                if (words[i].equals(after)) {
+                    String table = words[i + 1];
+                    return verb.equals("update") ? "update " + table
+                            : verb + (verb.equals("select") || verb.equals("delete") ? " from " : " into ") + table;
+                }
+            }
+            return sql;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, T target, AfterCall after) {
+            return (T) Proxy.newProxyInstance(StatementCounter.class.getClassLoader(), new Class<?>[]{type},
+                    (proxy, method, args) -> {
+                        try {
+                            return after.apply(method, args, method.invoke(target, args));
+                        } catch (InvocationTargetException e) {
+                            throw e.getTargetException();
+                        }
+                    });
+        }
+
+        private interface AfterCall {
+            Object apply(Method method, Object[] args, Object result) throws Throwable;
+        }
+    }
+}
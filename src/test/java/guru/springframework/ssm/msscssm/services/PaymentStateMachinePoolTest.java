@@ -0,0 +1,138 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.StateMachineContext;
+import org.springframework.statemachine.config.StateMachineFactory;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest
+class PaymentStateMachinePoolTest {
+
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 300;
+
+    @Autowired
+    PaymentStateMachinePool pool;
+
+    @Autowired
+    StateMachineFactory<PaymentState, PaymentEvent> factory;
+
+    @Autowired
+    PaymentStateChangeInterceptor paymentStateChangeInterceptor;
+
+    @Test
+    void borrowedMachineIsResetToRequestedState() {
+        StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(PaymentState.PRE_AUTH);
+        try {
+            assertEquals(PaymentState.PRE_AUTH, sm.getState().getId());
+        } finally {
+            pool.release(sm);
+        }
+
+        StateMachine<PaymentState, PaymentEvent> reused = pool.borrow(PaymentState.NEW);
+        try {
+            assertSame(sm, reused);
+            assertEquals(PaymentState.NEW, reused.getState().getId());
+        } finally {
+            pool.release(reused);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void failedResetFreesTheSlot() {
+        StateMachineContext<PaymentState, PaymentEvent> broken = mock(StateMachineContext.class);
+        when(broken.getState()).thenThrow(new IllegalStateException("unreadable context"));
+
+        // More failures than the pool has machines
+        for (int i = 0; i < 20; i++) {
+            assertThrows(IllegalStateException.class, () -> pool.borrow(broken));
+        }
+
+        StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(PaymentState.NEW);
+        try {
+            assertEquals(PaymentState.NEW, sm.getState().getId());
+        } finally {
+            pool.release(sm);
+        }
+    }
+
+    @Test
+    void pooledMachinesBeatBuildingOnePerEvent() {
+        Runnable built = () -> {
+            StateMachine<PaymentState, PaymentEvent> sm = factory.getStateMachine("1");
+            sm.stop();
+            sm.getStateMachineAccessor()
+                    .doWithAllRegions(sma -> {
+                        sma.addStateMachineInterceptor(paymentStateChangeInterceptor);
+                        sma.resetStateMachine(new DefaultStateMachineContext<>(PaymentState.NEW, null, null, null));
+                    });
+            sm.start();
+            // AUTHORIZE is not accepted in NEW, so this only measures getting a machine ready and dispatching to it
+            sm.sendEvent(PaymentEvent.AUTHORIZE);
+        };
+
+        Runnable pooled = () -> {
+            StateMachine<PaymentState, PaymentEvent> sm = pool.borrow(PaymentState.NEW);
+            try {
+                sm.sendEvent(PaymentEvent.AUTHORIZE);
+            } finally {
+                pool.release(sm);
+            }
+        };
+
+        Measurement builtResult = measure(built);
+        Measurement pooledResult = measure(pooled);
+
+        System.out.println("Built per event:  " + builtResult);
+        System.out.println("Pooled per event: " + pooledResult);
+
+        assertTrue(pooledResult.bytesPerEvent < builtResult.bytesPerEvent);
+        assertTrue(pooledResult.eventsPerSecond > builtResult.eventsPerSecond);
+    }
+
+    private static Measurement measure(Runnable task) {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+        return new Measurement(bytes / ITERATIONS, ITERATIONS * 1_000_000_000.0 / elapsed);
+    }
+
+    private static class Measurement {
+        final long bytesPerEvent;
+        final double eventsPerSecond;
+
+        Measurement(long bytesPerEvent, double eventsPerSecond) {
+            this.bytesPerEvent = bytesPerEvent;
+            this.eventsPerSecond = eventsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes, %.0f events/s", bytesPerEvent, eventsPerSecond);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentTransition;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.statemachine.timeout.states.NEW=1m",
+        "payment.statemachine.timeout.states.PRE_AUTH=1m",
+        // Checks are run by the tests themselves
+        "payment.statemachine.timeout.check-interval=1h",
+        "payment.statemachine.timeout.batch-size=500"})
+class PaymentTimeoutSchedulerTest {
+
+    static final int PAYMENTS = 20_000;
+
+    @Autowired
+    PaymentTimeoutScheduler scheduler;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentIngestionService ingestionService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentHistory history;
+
+    @Autowired
+    PaymentGatewayEventSender sender;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Test
+    void paymentsWaitingTooLongOnTheGatewayAreDeclined() {
+        Payment stuckNew = newPayment();
+        call(stuckNew, PaymentEvent.PRE_AUTHORIZE, Duration.ofMinutes(2));
+        Payment stuckPreAuth = newPayment();
+        paymentService.sendEvent(stuckPreAuth.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+        call(stuckPreAuth, PaymentEvent.AUTHORIZE, Duration.ofMinutes(2));
+        Payment fresh = newPayment();
+        call(fresh, PaymentEvent.PRE_AUTHORIZE, Duration.ofSeconds(10));
+        Payment answered = newPayment();
+        call(answered, PaymentEvent.PRE_AUTHORIZE, Duration.ofMinutes(2));
+        paymentService.sendEvent(answered.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+
+        assertEquals(2, scheduler.declineExpired());
+
+        assertEquals(PaymentState.PRE_AUTH_ERROR, stateOf(stuckNew));
+        assertEquals(PaymentState.AUTH_ERROR, stateOf(stuckPreAuth));
+        assertEquals(PaymentState.NEW, stateOf(fresh));
+        assertEquals(PaymentState.PRE_AUTH, stateOf(answered));
+
+        // Declined through the state machine, so the decline is in the history like any other
+        List<PaymentTransition> transitions = history.transitions(stuckPreAuth.getId());
+        assertEquals(PaymentEvent.AUTH_DECLINED, transitions.get(transitions.size() - 1).getEvent());
+
+        // Calls whose payments moved on are forgotten
+        assertFalse(hasCall(stuckNew) || hasCall(stuckPreAuth) || hasCall(answered));
+        assertTrue(hasCall(fresh));
+        assertEquals(0, scheduler.declineExpired());
+    }
+
+    @Test
+    void paymentsNeverSentToTheGatewayDoNotTimeOut() {
+        // As a bulk import leaves them: in NEW for a long time, with no call made
+        Payment imported = newPayment();
+        jdbcTemplate.update("update payment set state_entered_at = ? where id = ?",
+                Timestamp.from(Instant.now().minus(Duration.ofHours(1))), imported.getId());
+
+        scheduler.declineExpired();
+
+        assertEquals(PaymentState.NEW, stateOf(imported));
+    }
+
+    @Test
+    void timeoutRunsFromTheFirstAttemptAtACall() {
+        // Retried, or re-driven by recovery, since the first attempt two minutes ago
+        Payment retried = newPayment();
+        call(retried, PaymentEvent.PRE_AUTHORIZE, Duration.ofMinutes(2));
+        call(retried, PaymentEvent.PRE_AUTHORIZE, Duration.ZERO);
+        // Called in NEW two minutes ago, but only just in PRE_AUTH
+        Payment moved = newPayment();
+        call(moved, PaymentEvent.PRE_AUTHORIZE, Duration.ofMinutes(2));
+        paymentService.sendEvent(moved.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+        call(moved, PaymentEvent.AUTHORIZE, Duration.ZERO);
+
+        assertEquals(1, scheduler.declineExpired());
+
+        assertEquals(PaymentState.PRE_AUTH_ERROR, stateOf(retried));
+        assertEquals(PaymentState.PRE_AUTH, stateOf(moved));
+    }
+
+    @Test
+    void expiredCallsAreFoundThroughTheIndex() {
+        String plan = jdbcTemplate.queryForObject("explain select r.payment_id, p.state from gateway_request r "
+                + "join payment p on p.id = r.payment_id where r.event = 'PRE_AUTHORIZE' "
+                + "and r.awaiting_since < current_timestamp order by r.awaiting_since limit 500", String.class);
+
+        assertTrue(plan.toUpperCase().contains("GATEWAY_REQUEST_AWAITING_IDX"), plan);
+    }
+
+    @Test
+    void manyExpiredPaymentsAreDeclinedInBatches() {
+        long before = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from payment", Long.class);
+        ingestionService.ingest(Stream.generate(PaymentTimeoutSchedulerTest::unsavedPayment).limit(PAYMENTS), p -> {});
+        Timestamp requested = Timestamp.from(Instant.now().minus(Duration.ofMinutes(2)));
+        jdbcTemplate.update("insert into gateway_request (payment_id, event, requested, awaiting_since) "
+                + "select id, 'PRE_AUTHORIZE', ?, ? from payment where id > ?", requested, requested, before);
+
+        long start = System.nanoTime();
+        int declined = scheduler.declineExpired();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(declined >= PAYMENTS, "declined " + declined);
+        assertEquals(0, jdbcTemplate.queryForObject("select count(*) from payment where id > ? and state = 'NEW'",
+                Long.class, before));
+        System.out.printf("Declined %d timed out payments in %dms%n", declined, elapsedMillis);
+    }
+
+    // A gateway call that never answers, made as the action for the event would make it, then aged if it's not new
+    void call(Payment payment, PaymentEvent event, Duration age) {
+        sender.sendWhenComplete(payment.getId(), event, CompletableFuture::new);
+        if (!age.isZero()) {
+            Timestamp made = Timestamp.from(Instant.now().minus(age));
+            jdbcTemplate.update("update gateway_request set requested = ?, awaiting_since = ? where payment_id = ?",
+                    made, made, payment.getId());
+        }
+    }
+
+    boolean hasCall(Payment payment) {
+        return jdbcTemplate.queryForObject("select count(*) from gateway_request where payment_id = ?", Long.class,
+                payment.getId()) > 0;
+    }
+
+    PaymentState stateOf(Payment payment) {
+        return paymentRepository.findById(payment.getId()).orElseThrow().getState();
+    }
+
+    Payment newPayment() {
+        return paymentService.newPayment(unsavedPayment());
+    }
+
+    static Payment unsavedPayment() {
+        return Payment.builder().amount(new BigDecimal("12.99")).build();
+    }
+}
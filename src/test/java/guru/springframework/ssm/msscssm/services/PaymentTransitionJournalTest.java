@@ -0,0 +1,334 @@
+package guru.springframework.ssm.msscssm.services;
+
+import guru.springframework.ssm.msscssm.config.PaymentStateMachineProperties;
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.domain.PaymentTransition;
+import guru.springframework.ssm.msscssm.repository.PaymentRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.jpa.show-sql=false",
+        "payment.statemachine.journal.enabled=true",
+        "payment.statemachine.journal.path=${java.io.tmpdir}/payment-journal-test.log"})
+class PaymentTransitionJournalTest {
+
+    static final int THREADS = 8;
+    static final int TRANSITIONS_PER_THREAD = 500;
+
+    @Autowired
+    PaymentService paymentService;
+
+    @Autowired
+    PaymentRepository paymentRepository;
+
+    @Autowired
+    PaymentTransitionJournal journal;
+
+    @Autowired
+    PaymentHistory history;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void eventsAreReadBackBeforeTheyAreApplied() throws Exception {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED));
+        // The next event starts from the journaled state whether or not the applier has caught up
+        assertEquals(PaymentState.AUTH_ERROR, paymentService.sendEvent(payment.getId(), PaymentEvent.AUTH_DECLINED));
+
+        journal.awaitApplied();
+        assertEquals(PaymentState.AUTH_ERROR, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+        assertFalse(journal.pendingState(payment.getId()).isPresent());
+        // Both transitions reach the history, although only the last state was written to the payment
+        assertEquals(List.of(PaymentEvent.PRE_AUTH_APPROVED, PaymentEvent.AUTH_DECLINED), history.transitions(payment.getId())
+                .stream().map(PaymentTransition::getEvent).collect(Collectors.toList()));
+    }
+
+    @Test
+    void rolledBackEventIsNotJournaled() throws Exception {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED));
+            status.setRollbackOnly();
+        });
+
+        journal.awaitApplied();
+        assertNotApplied(payment);
+    }
+
+    @Test
+    void failedCommitIsNeverApplied() throws Exception {
+        Payment payment = paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build());
+
+        // Fails the commit after the journal has written the transition, and once the applier has had its chance
+        assertThrows(IllegalStateException.class, () -> new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    assertEquals(PaymentState.PRE_AUTH, journal.pendingState(payment.getId()).orElseThrow());
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    assertEquals("NEW", jdbcTemplate.queryForObject("select state from payment where id = ?",
+                            String.class, payment.getId()));
+                    throw new IllegalStateException("commit failed");
+                }
+            });
+        }));
+
+        journal.awaitApplied();
+        assertNotApplied(payment);
+    }
+
+    void assertNotApplied(Payment payment) {
+        assertFalse(journal.pendingState(payment.getId()).isPresent());
+        assertEquals(PaymentState.NEW, paymentRepository.findById(payment.getId()).orElseThrow().getState());
+        assertTrue(history.transitions(payment.getId()).isEmpty());
+        // Nothing left behind that would stop the payment taking the event again
+        assertEquals(PaymentState.PRE_AUTH, paymentService.sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED));
+    }
+
+    @Test
+    void unappliedTransitionsAreReplayedAfterCrash() throws Exception {
+        List<Payment> payments = newPayments(100);
+
+        // Never applies on its own, so everything is still only in the log when it "crashes"
+        PaymentTransitionJournal crashed = newJournal(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        crashed.open();
+        for (Payment payment : payments) {
+            crashed.append(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+            crashed.append(payment.getId(), PaymentState.PRE_AUTH, PaymentState.AUTH, PaymentEvent.AUTH_APPROVED);
+        }
+        assertEquals(PaymentState.AUTH, crashed.pendingState(payments.get(0).getId()).orElseThrow());
+        crashed.halt();
+
+        assertEquals(payments.size(), countInState(payments, PaymentState.NEW));
+
+        PaymentTransitionJournal recovered = newJournal(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        recovered.open();
+        try {
+            assertEquals(payments.size(), countInState(payments, PaymentState.AUTH));
+            assertFalse(recovered.pendingState(payments.get(0).getId()).isPresent());
+        } finally {
+            recovered.halt();
+        }
+
+        // Replayed records are not replayed again
+        jdbcTemplate.update("update payment set state = 'NEW' where id = ?", payments.get(0).getId());
+        PaymentTransitionJournal reopened = newJournal(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        reopened.open();
+        reopened.halt();
+        assertEquals(1, countInState(payments.subList(0, 1), PaymentState.NEW));
+    }
+
+    @Test
+    void transitionsAreReplayedOnlyIfTheirTransactionCommitted() throws Exception {
+        List<Payment> payments = newPayments(3);
+        Path log = tempDir.resolve("journal.log");
+        Path atCrash = tempDir.resolve("journal-at-crash.log");
+
+        PaymentTransitionJournal crashed = newJournal(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        crashed.open();
+        try {
+            crashed.append(payments.get(0).getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+            new TransactionTemplate(transactionManager).executeWithoutResult(status -> crashed.append(
+                    payments.get(1).getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED));
+
+            // The process dies once the journal has forced the transition, before the database commits
+            assertThrows(IllegalStateException.class, () -> new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                crashed.append(payments.get(2).getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void beforeCommit(boolean readOnly) {
+                        try {
+                            Files.copy(log, atCrash);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        throw new IllegalStateException("crashed");
+                    }
+                });
+            }));
+        } finally {
+            crashed.halt();
+        }
+
+        // The log as it was on disk, before the rollback could void anything
+        Files.copy(atCrash, log, StandardCopyOption.REPLACE_EXISTING);
+        PaymentTransitionJournal recovered = newJournal(DataSize.ofMegabytes(1), Duration.ofHours(1));
+        recovered.open();
+        recovered.halt();
+
+        assertEquals(2, countInState(payments.subList(0, 2), PaymentState.PRE_AUTH));
+        assertEquals(1, countInState(payments.subList(2, 3), PaymentState.NEW));
+        // Its commit rows, told apart by the id at offset 16 of the header, are no longer needed
+        long journalId = ByteBuffer.wrap(Files.readAllBytes(log)).getLong(16);
+        assertEquals(0, jdbcTemplate.queryForObject("select count(*) from journal_commit where journal = ?",
+                Integer.class, journalId));
+    }
+
+    @Test
+    void fullLogWrapsOnceApplied() throws Exception {
+        List<Payment> payments = newPayments(50);
+
+        // Room for four records, so appends keep waiting for the applier and wrapping
+        PaymentTransitionJournal small = newJournal(DataSize.ofBytes(64 + 4 * 32), Duration.ofMillis(10));
+        small.open();
+        try {
+            for (Payment payment : payments) {
+                small.append(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+            }
+            small.awaitApplied();
+        } finally {
+            small.halt();
+        }
+
+        assertEquals(payments.size(), countInState(payments, PaymentState.PRE_AUTH));
+    }
+
+    @Test
+    void transactionWrapsTheLogRatherThanSplitting() throws Exception {
+        List<Payment> payments = newPayments(4);
+
+        PaymentTransitionJournal small = newJournal(DataSize.ofBytes(64 + 4 * 32), Duration.ofMillis(10));
+        small.open();
+        try {
+            // One slot left, and the transaction needs two
+            for (Payment payment : payments.subList(0, 3)) {
+                small.append(payment.getId(), PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+            }
+            small.awaitApplied();
+
+            Long id = payments.get(3).getId();
+            new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                small.append(id, PaymentState.NEW, PaymentState.PRE_AUTH, PaymentEvent.PRE_AUTH_APPROVED);
+                small.append(id, PaymentState.PRE_AUTH, PaymentState.AUTH, PaymentEvent.AUTH_APPROVED);
+            });
+            small.awaitApplied();
+        } finally {
+            small.halt();
+        }
+
+        assertEquals(3, countInState(payments.subList(0, 3), PaymentState.PRE_AUTH));
+        assertEquals(1, countInState(payments.subList(3, 4), PaymentState.AUTH));
+    }
+
+    @Test
+    void capacityMustFitTheMapping() {
+        assertThrows(IllegalArgumentException.class, () -> newJournal(DataSize.ofGigabytes(2), Duration.ofMillis(100)));
+        assertThrows(IllegalArgumentException.class, () -> newJournal(DataSize.ofBytes(64), Duration.ofMillis(100)));
+    }
+
+    @Test
+    void compareWithWriteThrough() throws Exception {
+        List<Payment> payments = newPayments(THREADS);
+
+        double writeThrough = transitionsPerSecond(payments, (payment, state) ->
+                paymentRepository.updateState(payment.getId(), state));
+
+        PaymentTransitionJournal writeBehind = newJournal(DataSize.ofMegabytes(16), Duration.ofMillis(100));
+        writeBehind.open();
+        double journaled;
+        try {
+            journaled = transitionsPerSecond(payments, (payment, state) ->
+                    writeBehind.append(payment.getId(), PaymentState.NEW, state, PaymentEvent.PRE_AUTH_APPROVED));
+            writeBehind.awaitApplied();
+        } finally {
+            writeBehind.halt();
+        }
+
+        System.out.printf("write-through: %.0f transitions/s, journal: %.0f transitions/s%n", writeThrough, journaled);
+        assertEquals(payments.size(), countInState(payments, PaymentState.PRE_AUTH));
+    }
+
+    interface Transition {
+        void apply(Payment payment, PaymentState state);
+    }
+
+    double transitionsPerSecond(List<Payment> payments, Transition transition) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (Payment payment : payments) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < TRANSITIONS_PER_THREAD; i++) {
+                        transition.apply(payment, i % 2 == 0 ? PaymentState.NEW : PaymentState.PRE_AUTH);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return payments.size() * TRANSITIONS_PER_THREAD / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    PaymentTransitionJournal newJournal(DataSize capacity, Duration applyInterval) {
+        PaymentStateMachineProperties properties = new PaymentStateMachineProperties();
+        properties.getJournal().setPath(tempDir.resolve("journal.log").toString());
+        properties.getJournal().setCapacity(capacity);
+        properties.getJournal().setApplyInterval(applyInterval);
+        return new PaymentTransitionJournal(jdbcTemplate, transactionManager, properties, Optional.of(history));
+    }
+
+    List<Payment> newPayments(int count) {
+        List<Payment> payments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            payments.add(paymentService.newPayment(Payment.builder().amount(new BigDecimal("12.99")).build()));
+        }
+        return payments;
+    }
+
+    int countInState(List<Payment> payments, PaymentState state) {
+        int count = 0;
+        for (Payment payment : payments) {
+            count += jdbcTemplate.queryForObject("select count(*) from payment where id = ? and state = ?",
+                    Integer.class, payment.getId(), state.name());
+        }
+        return count;
+    }
+}
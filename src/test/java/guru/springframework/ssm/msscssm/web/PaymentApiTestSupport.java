@@ -0,0 +1,147 @@
+package guru.springframework.ssm.msscssm.web;
+
+import guru.springframework.ssm.msscssm.domain.Payment;
+import guru.springframework.ssm.msscssm.domain.PaymentEvent;
+import guru.springframework.ssm.msscssm.domain.PaymentState;
+import guru.springframework.ssm.msscssm.services.PaymentEventResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The same API checks and local load test, run against the servlet and the reactive flavour by the subclasses.
+ */
+abstract class PaymentApiTestSupport {
+
+    static final int LOAD_PAYMENTS = 500;
+    static final int CONCURRENCY = 64;
+
+    @LocalServerPort
+    int port;
+
+    // Boot's builder, so responses are read with the same Jackson setup the API writes them with
+    @Autowired
+    WebClient.Builder clientBuilder;
+
+    WebClient client;
+
+    @BeforeEach
+    void setUp() {
+        client = clientBuilder.baseUrl("http://localhost:" + port + PaymentController.BASE_PATH).build();
+    }
+
+    @Test
+    void paymentLifecycle() {
+        Payment created = newPayment().block();
+        assertNotNull(created.getId());
+        assertEquals(PaymentState.NEW, created.getState());
+
+        PaymentStateResponse response = sendEvent(created.getId(), PaymentEvent.PRE_AUTH_APPROVED).block();
+        assertEquals(new PaymentStateResponse(created.getId(), PaymentState.PRE_AUTH), response);
+
+        assertEquals(PaymentState.PRE_AUTH, getPayment(created.getId()).block().getState());
+    }
+
+    @Test
+    void unknownPaymentIsNotFound() {
+        assertEquals(HttpStatus.NOT_FOUND, client.get().uri("/{id}", -1L).exchangeToMono(r -> Mono.just(r.statusCode())).block());
+        assertEquals(HttpStatus.NOT_FOUND, client.post().uri("/{id}/events/{event}", -1L, PaymentEvent.PRE_AUTH_APPROVED)
+                .exchangeToMono(r -> Mono.just(r.statusCode())).block());
+    }
+
+    @Test
+    void bulkEvent() {
+        List<Long> ids = Flux.range(0, 5).flatMap(i -> newPayment()).map(Payment::getId).collectList().block();
+
+        List<PaymentEventResult> results = client.post().uri("/events/{event}", PaymentEvent.PRE_AUTH_DECLINED)
+                .bodyValue(ids)
+                .retrieve()
+                .bodyToMono(new ParameterizedTypeReference<List<PaymentEventResult>>() {})
+                .block();
+
+        assertEquals(ids, results.stream().map(PaymentEventResult::getPaymentId).collect(Collectors.toList()));
+        results.forEach(result -> assertEquals(PaymentState.PRE_AUTH_ERROR, result.getState()));
+    }
+
+    @Test
+    void retriedEventWithIdempotencyKey() {
+        Long paymentId = newPayment().block().getId();
+
+        PaymentStateResponse first = sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, "retry-" + paymentId).block();
+        sendEvent(paymentId, PaymentEvent.AUTH_DECLINED).block();
+        PaymentStateResponse retried = sendEvent(paymentId, PaymentEvent.PRE_AUTH_APPROVED, "retry-" + paymentId).block();
+
+        // The first response again, although the payment has moved on since
+        assertEquals(first, retried);
+        assertEquals(PaymentState.AUTH_ERROR, getPayment(paymentId).block().getState());
+
+        Long otherPaymentId = newPayment().block().getId();
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, client.post().uri("/{id}/events/{event}", otherPaymentId, PaymentEvent.PRE_AUTH_APPROVED)
+                .header(PaymentController.IDEMPOTENCY_KEY_HEADER, "retry-" + paymentId)
+                .exchangeToMono(r -> Mono.just(r.statusCode())).block());
+    }
+
+    @Test
+    void loadTest() {
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        long start = System.nanoTime();
+        List<PaymentState> states = Flux.range(0, LOAD_PAYMENTS)
+                .flatMap(i -> timed(newPayment(), latencies)
+                        .flatMap(payment -> timed(sendEvent(payment.getId(), PaymentEvent.PRE_AUTH_APPROVED), latencies)
+                                .then(timed(sendEvent(payment.getId(), PaymentEvent.AUTH_APPROVED), latencies))
+                                .then(timed(getPayment(payment.getId()), latencies)))
+                        .map(Payment::getState), CONCURRENCY)
+                .collectList()
+                .block(Duration.ofMinutes(2));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<Long> sorted = latencies.stream().sorted().collect(Collectors.toList());
+        System.out.printf("%s: %d requests, %.0f requests/s, p50 %.2fms, p99 %.2fms%n", getClass().getSimpleName(),
+                sorted.size(), sorted.size() / seconds,
+                sorted.get(sorted.size() / 2) / 1e6, sorted.get((int) (sorted.size() * 0.99)) / 1e6);
+
+        assertEquals(LOAD_PAYMENTS, states.size());
+        states.forEach(state -> assertEquals(PaymentState.AUTH, state));
+    }
+
+    Mono<Payment> newPayment() {
+        return client.post().bodyValue(new NewPaymentRequest(new BigDecimal("12.99"))).retrieve().bodyToMono(Payment.class);
+    }
+
+    Mono<Payment> getPayment(Long paymentId) {
+        return client.get().uri("/{id}", paymentId).retrieve().bodyToMono(Payment.class);
+    }
+
+    Mono<PaymentStateResponse> sendEvent(Long paymentId, PaymentEvent event) {
+        return client.post().uri("/{id}/events/{event}", paymentId, event).retrieve().bodyToMono(PaymentStateResponse.class);
+    }
+
+    Mono<PaymentStateResponse> sendEvent(Long paymentId, PaymentEvent event, String idempotencyKey) {
+        return client.post().uri("/{id}/events/{event}", paymentId, event)
+                .header(PaymentController.IDEMPOTENCY_KEY_HEADER, idempotencyKey)
+                .retrieve()
+                .bodyToMono(PaymentStateResponse.class);
+    }
+
+    static <T> Mono<T> timed(Mono<T> request, ConcurrentLinkedQueue<Long> latencies) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return request.doOnSuccess(result -> latencies.add(System.nanoTime() - start));
+        });
+    }
+}
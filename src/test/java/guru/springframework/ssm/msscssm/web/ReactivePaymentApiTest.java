@@ -0,0 +1,9 @@
+package guru.springframework.ssm.msscssm.web;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+@ActiveProfiles("reactive")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "spring.jpa.show-sql=false")
+class ReactivePaymentApiTest extends PaymentApiTestSupport {
+}
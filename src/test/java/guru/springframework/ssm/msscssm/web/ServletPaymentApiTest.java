@@ -0,0 +1,7 @@
+package guru.springframework.ssm.msscssm.web;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "spring.jpa.show-sql=false")
+class ServletPaymentApiTest extends PaymentApiTestSupport {
+}